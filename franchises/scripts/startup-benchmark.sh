@@ -0,0 +1,45 @@
+#!/usr/bin/env bash
+# Benchmark de arranque: tiempo desde el lanzamiento de la JVM hasta el primer comando exitoso (HTTP 200).
+# Compara el arranque normal con el modo rápido (AppCDS + Spring AOT).
+#
+# Uso: ./gradlew cdsArchive && scripts/startup-benchmark.sh [repeticiones]
+# Requiere DynamoDB accesible con la configuración del .env (por ejemplo, DynamoDB Local).
+set -euo pipefail
+
+RUNS="${1:-5}"
+PORT="${SERVER_PORT:-8080}"
+CDS_DIR="$(cd "$(dirname "$0")/.." && pwd)/build/cds"
+JAR="$CDS_DIR/franchises-app.jar"
+
+[ -f "$JAR" ] || { echo "No existe $JAR: ejecuta ./gradlew cdsArchive" >&2; exit 1; }
+
+now_ms() { date +%s%3N; }
+
+# Un comando distinto por ejecución para no chocar con el control de idempotencia
+first_command_ms() {
+  local started="$1" run="$2"
+  local body="{\"type\":\"CreateFranchise\",\"franchiseId\":\"BENCH${run}$(date +%s%N)\",\"franchiseName\":\"Startup benchmark\"}"
+  while true; do
+    status=$(curl -s -o /dev/null -w '%{http_code}' -H 'Content-Type: application/json' -d "$body" "http://localhost:$PORT/command" || true)
+    [ "$status" = "200" ] && { echo $(( $(now_ms) - started )); return; }
+    sleep 0.05
+  done
+}
+
+measure() {
+  local mode="$1"; shift
+  local total=0
+  for run in $(seq 1 "$RUNS"); do
+    local started; started=$(now_ms)
+    (cd "$CDS_DIR" && exec java "$@" -Dserver.port="$PORT" -jar "$JAR" >/dev/null 2>&1) &
+    local pid=$!
+    local elapsed; elapsed=$(first_command_ms "$started" "$run")
+    kill "$pid"; wait "$pid" 2>/dev/null || true
+    echo "$mode run $run: ${elapsed} ms"
+    total=$(( total + elapsed ))
+  done
+  echo "$mode promedio: $(( total / RUNS )) ms"
+}
+
+measure "normal"
+measure "rapido" -XX:SharedArchiveFile=application.jsa -Dspring.aot.enabled=true
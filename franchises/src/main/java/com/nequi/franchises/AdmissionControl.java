@@ -0,0 +1,234 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.IO.AggregateSharding;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.Map;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Control de admisión delante del pipeline de comandos: token buckets global y por franquicia y un límite de
+// concurrencia adaptativo (AIMD) que se reduce ante throttling de DynamoDB y crece con cada éxito.
+// La carga excedente espera en una cola acotada o se rechaza con 429.
+// Apagado por defecto (ADMISSION_ENABLED). Los límites de tasa dependen de la capacidad de cada despliegue: sin
+// ADMISSION_GLOBAL_RATE / ADMISSION_FRANCHISE_RATE no hay token bucket y solo aplica el límite de concurrencia.
+public class AdmissionControl {
+
+    static final boolean enabled = env("ADMISSION_ENABLED", false);
+    static final double globalRate = env("ADMISSION_GLOBAL_RATE", 0);
+    static final double globalBurst = env("ADMISSION_GLOBAL_BURST", (int) Math.max(1, globalRate * 2));
+    static final double franchiseRate = env("ADMISSION_FRANCHISE_RATE", 0);
+    static final double franchiseBurst = env("ADMISSION_FRANCHISE_BURST", (int) Math.max(1, franchiseRate * 2));
+    static final int minLimit = env("ADMISSION_MIN_CONCURRENCY", 2);
+    static final int maxLimit = env("ADMISSION_MAX_CONCURRENCY", 64);
+    static final int initialLimit = env("ADMISSION_INITIAL_CONCURRENCY", 16);
+    static final double backoffRatio = env("ADMISSION_BACKOFF_PERCENT", 70) / 100.0;
+    static final long maxWaitMillis = env("ADMISSION_MAX_WAIT_MS", 500);
+    static final int maxQueue = env("ADMISSION_MAX_QUEUE", 256);
+    static final int maxFranchiseBuckets = env("ADMISSION_MAX_FRANCHISE_BUCKETS", 10_000);
+
+    public static class OverloadedException extends RuntimeException {
+        private final long retryAfterMillis;
+
+        OverloadedException(String message, long retryAfterMillis) {
+            super(message);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public long retryAfterSeconds() {
+            return Math.max(1, (retryAfterMillis + 999) / 1000);
+        }
+    }
+
+    // Bucket con reserva: los tokens pueden quedar en negativo y el llamador espera hasta que se repongan
+    static final class TokenBucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        // Nanosegundos de espera para el token reservado, o -1 si excede la espera máxima (no reserva nada)
+        synchronized long reserve(long maxWaitNanos) {
+            if (rate <= 0) return 0;
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+            long waitNanos = tokens >= 1 ? 0 : (long) ((1 - tokens) / rate * 1e9);
+            if (waitNanos > maxWaitNanos) return -1;
+            tokens -= 1;
+            return waitNanos;
+        }
+
+        synchronized void refund() {
+            if (rate <= 0) return;
+            tokens = Math.min(burst, tokens + 1);
+        }
+    }
+
+    private record Waiter(Sinks.One<Boolean> grant, AtomicBoolean claimed) { }
+
+    private static final TokenBucket globalBucket = new TokenBucket(globalRate, globalBurst);
+    // LRU: al llenarse se descarta la franquicia usada hace más tiempo, las activas conservan su presupuesto
+    private static final java.util.Map<String, TokenBucket> franchiseBuckets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<String, TokenBucket> eldest) {
+            return size() > maxFranchiseBuckets;
+        }
+    };
+    private static final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static volatile double limit = initialLimit;
+
+    private static final AtomicLong admitted = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong shed = new AtomicLong();
+    private static final AtomicLong throttled = new AtomicLong();
+
+    public static <T> Mono<T> admit(String franchiseKey, Supplier<Mono<T>> work) {
+        if (!enabled) return Mono.defer(work);
+        return Mono.defer(() -> {
+            long maxWaitNanos = Duration.ofMillis(maxWaitMillis).toNanos();
+            TokenBucket franchise = franchiseBucket(franchiseKey);
+            long franchiseWait = franchise.reserve(maxWaitNanos);
+            if (franchiseWait < 0) return reject("Límite de solicitudes por franquicia excedido.", franchiseRate);
+            long globalWait = globalBucket.reserve(maxWaitNanos);
+            if (globalWait < 0) {
+                franchise.refund();
+                return reject("Límite global de solicitudes excedido.", globalRate);
+            }
+            long waitNanos = Math.max(franchiseWait, globalWait);
+            // Rechazada en la cola (llena o sin slot a tiempo) la solicitud no se ejecutó: devuelve sus tokens
+            Mono<Boolean> slot = (waitNanos == 0 ? acquire() : Mono.delay(Duration.ofNanos(waitNanos)).then(acquire()))
+                .doOnError(OverloadedException.class, e -> {
+                    franchise.refund();
+                    globalBucket.refund();
+                });
+            return slot.flatMap(granted -> {
+                admitted.incrementAndGet();
+                return work.get()
+                    .doOnSuccess(result -> onSuccess())
+                    .doOnError(AdmissionControl::onError)
+                    .doFinally(signal -> release());
+            });
+        });
+    }
+
+    // Throttling de DynamoDB que llegó hasta el handler, en cualquier nivel de la cadena de causas
+    public static boolean isOverload(Throwable error) {
+        for (Throwable current = error; current != null; current = current.getCause()) {
+            if (current instanceof OverloadedException || AggregateSharding.isThrottling(current)) return true;
+        }
+        return false;
+    }
+
+    public static long retryAfterSeconds(Throwable error) {
+        return error instanceof OverloadedException overloaded ? overloaded.retryAfterSeconds() : Math.max(1, (maxWaitMillis + 999) / 1000);
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.of(
+            "enabled", enabled,
+            "concurrencyLimit", limit,
+            "inFlight", inFlight.get(),
+            "queued", queued.get(),
+            "admitted", admitted.get(),
+            "completed", completed.get(),
+            "shed", shed.get(),
+            "throttled", throttled.get());
+    }
+
+    private static TokenBucket franchiseBucket(String franchiseKey) {
+        synchronized (franchiseBuckets) {
+            return franchiseBuckets.computeIfAbsent(franchiseKey, key -> new TokenBucket(franchiseRate, franchiseBurst));
+        }
+    }
+
+    private static <T> Mono<T> reject(String message, double rate) {
+        shed.incrementAndGet();
+        return Mono.error(new OverloadedException(message, (long) (1000 / Math.max(rate, 0.001))));
+    }
+
+    // Slot de concurrencia inmediato o en cola con espera acotada; el primero en reclamar el Waiter (concesión o timeout) gana
+    private static Mono<Boolean> acquire() {
+        return Mono.defer(() -> {
+            if (tryAcquire()) return Mono.just(true);
+            if (queued.incrementAndGet() > maxQueue) {
+                queued.decrementAndGet();
+                return reject("Cola de admisión llena.", limit);
+            }
+            Waiter waiter = new Waiter(Sinks.one(), new AtomicBoolean());
+            waiters.add(waiter);
+            drain();
+            return waiter.grant().asMono()
+                .timeout(Duration.ofMillis(maxWaitMillis), Mono.defer(() -> abandon(waiter)
+                    ? reject("Tiempo de espera de admisión agotado.", limit)
+                    : waiter.grant().asMono()))
+                .doOnCancel(() -> {
+                    // Si el slot ya fue concedido y la solicitud se canceló, se devuelve
+                    if (!abandon(waiter)) release();
+                });
+        });
+    }
+
+    private static boolean abandon(Waiter waiter) {
+        if (!waiter.claimed().compareAndSet(false, true)) return false;
+        if (waiters.remove(waiter)) queued.decrementAndGet();
+        return true;
+    }
+
+    private static boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) return false;
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    private static void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private static void drain() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            Waiter waiter = waiters.poll();
+            if (waiter == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            if (waiter.claimed().compareAndSet(false, true)) waiter.grant().tryEmitValue(true);
+            else inFlight.decrementAndGet();
+        }
+    }
+
+    // Incremento aditivo: +1 por cada ventana completa de éxitos
+    private static synchronized void onSuccess() {
+        completed.incrementAndGet();
+        limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+
+    // Decremento multiplicativo solo ante throttling; los errores de negocio no afectan el límite
+    private static synchronized void onError(Throwable error) {
+        if (!isOverload(error)) return;
+        throttled.incrementAndGet();
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+}
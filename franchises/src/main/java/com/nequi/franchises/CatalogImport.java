@@ -0,0 +1,205 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.IO.ReadConsistency;
+import com.nequi.franchises.util.Step;
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.collection.Set;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static com.nequi.franchises.comands.Validators.productErrors;
+import static com.nequi.franchises.util.Utils.env;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Importación masiva de catálogo: validación en streaming, chunks acotados por tamaño y confirmación paralela reanudable
+public class CatalogImport {
+
+    // Un ítem de DynamoDB admite 400 KB; se deja margen para el resto del evento
+    static final long chunkTargetBytes = env("IMPORT_CHUNK_TARGET_BYTES", 300_000);
+    // Límite de TransactWriteItems. Los productos por chunk salen de las escrituras que appendEvents agrega a la transacción
+    // (evento, ledger por producto, feed, condición de layout) más el progreso; IMPORT_CHUNK_MAX_PRODUCTS solo puede bajarlo
+    static final int transactionMaxItems = 100;
+    static final int chunkMaxProducts = env("IMPORT_CHUNK_MAX_PRODUCTS", transactionMaxItems);
+    static final int commitConcurrency = env("IMPORT_COMMIT_CONCURRENCY", 4);
+    static final int commitAttempts = env("IMPORT_COMMIT_ATTEMPTS", 3);
+    static final int maxReportedErrors = env("IMPORT_MAX_REPORTED_ERRORS", 100);
+
+    // Steps de IO que usa la importación (ver Utils.createEventLoader)
+    public record Steps(Step commitChunk, Step transactionItems, Step aggregateVersion, Step saveEventsAtVersion) {}
+
+    public static Mono<Map<String, Serializable>> importCatalog(Steps steps, Set<Integer> committedChunks, Map<String, Serializable> state,
+                                                                int lastVersion, Map<String, Serializable> command, String importId,
+                                                                Flux<Map<String, Serializable>> products) {
+        String branchId = getValue(command, "branchId", "");
+        Map<String, Map<String, Serializable>> existingProducts = getValue(state, "products", HashMap.empty());
+        java.util.Set<String> seen = ConcurrentHashMap.newKeySet();
+        ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger nextVersion = new AtomicInteger(lastVersion);
+        long started = System.nanoTime();
+        Predicate<List<String>> accept = productErrors -> {
+            if (productErrors.isEmpty()) return true;
+            if (rejected.incrementAndGet() <= maxReportedErrors) errors.addAll(productErrors.asJava());
+            return false;
+        };
+
+        // Validación de la entrada producto a producto: los inválidos se descartan y se reportan sin detener la importación.
+        // Solo depende de la entrada, así los chunks (y su índice) son los mismos en cada reanudación con el mismo archivo
+        Flux<Tuple2<String, Map<String, Serializable>>> validProducts = products
+            .map(line -> Tuple.of(String.valueOf(line.get("productId").getOrElse("")), line.remove("productId")))
+            .filter(product -> accept.test(productErrors(product._1(), product._2())
+                .appendAll(!seen.add(product._1()) ? List.of("products.%s is duplicated in the import".formatted(product._1())) : List.empty())));
+
+        return maxProductsPerChunk(steps.transactionItems(), command, importId)
+            .flatMap(maxProducts -> chunks(validProducts, maxProducts)
+                .index((index, chunk) -> Tuple.of(index.intValue(), chunk))
+                .flatMap(chunk -> {
+                    if (committedChunks.contains(chunk._1())) return skipped(chunk._1(), chunk._2().size());
+                    // Lo que ya existe en la sucursal se rechaza dentro del chunk, sin mover los límites de los chunks
+                    List<Tuple2<String, Map<String, Serializable>>> newProducts = chunk._2().filter(product -> accept.test(
+                        existingProducts.containsKey("%s|%s".formatted(product._1(), branchId)) ? List.of("products.%s already exists in the branch".formatted(product._1())) : List.empty()));
+                    return newProducts.isEmpty()
+                        ? skipped(chunk._1(), 0)
+                        : commit(steps, nextVersion, command, importId, chunk._1(), newProducts);
+                }, commitConcurrency)
+                .collectList())
+            .map(results -> summary(importId, List.ofAll(results), rejected.get(), List.ofAll(errors), System.nanoTime() - started));
+    }
+
+    // Agrupa productos hasta alcanzar el tamaño estimado o el máximo de productos por transacción
+    static Flux<List<Tuple2<String, Map<String, Serializable>>>> chunks(Flux<Tuple2<String, Map<String, Serializable>>> products, int maxProducts) {
+        return Flux.defer(() -> {
+            long[] bytes = {0};
+            int[] count = {0};
+            return products.bufferUntil(product -> {
+                bytes[0] += estimateSize(product._1()) + estimateSize(product._2());
+                boolean full = bytes[0] >= chunkTargetBytes || ++count[0] >= maxProducts;
+                if (full) {
+                    bytes[0] = 0;
+                    count[0] = 0;
+                }
+                return full;
+            });
+        }).map(List::ofAll);
+    }
+
+    // Ítems de un chunk vacío (evento + progreso + lo fijo de appendEvents) y lo que suma cada producto
+    private static Mono<Integer> maxProductsPerChunk(Step transactionItems, Map<String, Serializable> command, String importId) {
+        Tuple2<String, Map<String, Serializable>> sample = Tuple.of("0", HashMap.of("productName", "", "currentStock", 0));
+        Function<List<Tuple2<String, Map<String, Serializable>>>, Mono<Integer>> items = products -> transactionItems.apply(HashMap.of(
+                "aggregateId", getValue(command, "aggregateId", ""),
+                "events", List.of(chunkEvent(command, importId, 0, products)),
+                "extraItems", 1))
+            .map(result -> getValue(result, "items", 0));
+        return items.apply(List.empty()).zipWith(items.apply(List.of(sample)), (fixed, withOne) -> {
+            int perProduct = Math.max(1, withOne - fixed);
+            int maxProducts = Math.min(chunkMaxProducts, (transactionMaxItems - fixed) / perProduct);
+            if (maxProducts < 1) throw new IllegalStateException("La transacción de importación no admite productos (%s ítems fijos)".formatted(fixed));
+            return maxProducts;
+        });
+    }
+
+    // La versión del chunk se toma una sola vez: los reintentos por errores transitorios la conservan, así un intento fallido
+    // no deja un hueco. Solo si otra escritura ocupó la versión se relee la última del agregado y se toma una por encima de
+    // ella y de las ya asignadas a otros chunks. Un chunk que falla en todos sus intentos ocupa su versión con un
+    // ImportChunkFailed (ver releaseVersion); reanudar la importación lo vuelve a confirmar en otra versión.
+    private static Mono<Map<String, Serializable>> commit(Steps steps, AtomicInteger nextVersion, Map<String, Serializable> command,
+                                                         String importId, int index, List<Tuple2<String, Map<String, Serializable>>> products) {
+        String aggregateId = getValue(command, "aggregateId", "");
+        Map<String, Serializable> event = chunkEvent(command, importId, index, products);
+        int[] version = {0};
+        return Mono.defer(() -> {
+                if (version[0] == 0) version[0] = nextVersion.incrementAndGet();
+                return steps.commitChunk().apply(HashMap.<String, Serializable>of(
+                    "aggregateId", aggregateId,
+                    "importId", importId,
+                    "chunk", index,
+                    "version", version[0],
+                    "event", event));
+            })
+            .subscribeOn(Schedulers.boundedElastic())
+            .onErrorResume(e -> ReadConsistency.isStaleWrite(e, 1), e -> steps.aggregateVersion().apply(HashMap.of("aggregateId", aggregateId))
+                .flatMap(latest -> {
+                    version[0] = nextVersion.updateAndGet(assigned -> Math.max(assigned, getValue(latest, "version", 0)) + 1);
+                    return Mono.<Map<String, Serializable>>error(e);
+                }))
+            .retry(commitAttempts - 1)
+            .map(result -> result.put("status", "committed"))
+            .onErrorResume(e -> releaseVersion(steps, command, importId, index, version[0], e)
+                .map(released -> HashMap.<String, Serializable>of("chunk", index, "products", products.size(), "status", "failed",
+                    "error", String.valueOf(e.getMessage()), "versionReleased", released)));
+    }
+
+    // Evento sin efecto en la proyección que ocupa la versión reservada, así el agregado no queda con un hueco. Si la versión
+    // ya está ocupada (el chunk sí se confirmó o la tomó otra escritura) tampoco hay hueco
+    private static Mono<Boolean> releaseVersion(Steps steps, Map<String, Serializable> command, String importId, int index, int version, Throwable error) {
+        if (version == 0) return Mono.just(true);
+        Map<String, Serializable> marker = HashMap.of(
+            "type", "ImportChunkFailed",
+            "aggregateId", getValue(command, "aggregateId", ""),
+            "payload", HashMap.of("importId", importId, "chunk", index, "error", String.valueOf(error.getMessage())),
+            "metadata", HashMap.of("importId", importId, "chunk", index));
+        return Mono.defer(() -> steps.saveEventsAtVersion().apply(HashMap.<String, Serializable>of(
+                "command", HashMap.<String, Serializable>of("type", "ImportChunkFailed", "expectedVersion", version - 1),
+                "events", List.of(marker))))
+            .subscribeOn(Schedulers.boundedElastic())
+            .thenReturn(true)
+            .onErrorResume(e -> Mono.just(ReadConsistency.isStaleWrite(e, 1)));
+    }
+
+    private static Mono<Map<String, Serializable>> skipped(int index, int products) {
+        return Mono.just(HashMap.of("chunk", index, "products", products, "status", "skipped"));
+    }
+
+    static Map<String, Serializable> chunkEvent(Map<String, Serializable> command, String importId, int index, List<Tuple2<String, Map<String, Serializable>>> products) {
+        return HashMap.of(
+            "type", "ProductAddedToBranch",
+            "aggregateId", getValue(command, "aggregateId", ""),
+            "payload", HashMap.of(
+                "franchiseId", getValue(command, "franchiseId", ""),
+                "branchId", getValue(command, "branchId", ""),
+                "products", HashMap.ofEntries(products)),
+            "metadata", HashMap.of("importId", importId, "chunk", index));
+    }
+
+    private static Map<String, Serializable> summary(String importId, List<Map<String, Serializable>> results, int rejected, List<String> errors, long elapsedNanos) {
+        List<Map<String, Serializable>> committed = results.filter(result -> "committed".equals(getValue(result, "status", "")));
+        int imported = committed.map(result -> getValue(result, "products", 0)).sum().intValue();
+        double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        return HashMap.of(
+            "importId", importId,
+            "chunks", results.size(),
+            "committedChunks", committed.size(),
+            "skippedChunks", results.count(result -> "skipped".equals(getValue(result, "status", ""))),
+            "failedChunks", results.filter(result -> "failed".equals(getValue(result, "status", ""))).map(result -> getValue(result, "chunk", 0)),
+            "importedProducts", imported,
+            "rejectedProducts", rejected,
+            "errors", errors,
+            "productsPerSecond", imported / seconds,
+            "elapsedMs", elapsedNanos / 1_000_000);
+    }
+
+    // Estimación del tamaño serializado en DynamoDB (nombres de atributos + valores)
+    static long estimateSize(Object value) {
+        return switch (value) {
+            case Map<?, ?> m -> 3 + m.toList().map(entry -> estimateSize(entry._1()) + estimateSize(entry._2())).sum().longValue();
+            case List<?> l -> 3 + l.map(CatalogImport::estimateSize).sum().longValue();
+            case String s -> s.length();
+            case Number n -> 21;
+            case null -> 1;
+            default -> value.toString().length();
+        };
+    }
+}
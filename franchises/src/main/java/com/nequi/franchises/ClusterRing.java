@@ -0,0 +1,153 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.config.SerializerConfig;
+import com.nequi.franchises.util.Step;
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import io.vavr.control.Try;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.nequi.franchises.util.Utils.env;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Modo cluster: anillo de hash consistente sobre aggregateId. Cada instancia es dueña de un subconjunto de agregados,
+// procesa sus comandos en orden (una cola por agregado) y reenvía por HTTP los comandos de agregados ajenos.
+// Los peers vienen de CLUSTER_PEERS o de un archivo (CLUSTER_PEERS_FILE) que se relee periódicamente.
+public class ClusterRing {
+
+    public static final String FORWARDED_HEADER = "X-Cluster-Forwarded-By";
+
+    static final boolean enabled = env("CLUSTER_ENABLED", false);
+    static final String self = env("CLUSTER_SELF", "http://localhost:" + env("SERVER_PORT", "8080"));
+    static final String staticPeers = env("CLUSTER_PEERS", "");
+    static final String peersFile = env("CLUSTER_PEERS_FILE", "");
+    static final long peersRefreshMillis = env("CLUSTER_PEERS_REFRESH_MS", 5_000);
+    static final int virtualNodes = env("CLUSTER_VIRTUAL_NODES", 64);
+
+    private static final WebClient client = WebClient.create();
+    // Cola por agregado: señal de término del último comando aceptado
+    private static final ConcurrentHashMap<String, Mono<Void>> tails = new ConcurrentHashMap<>();
+    // (anillo inmutable, vence en)
+    private static volatile Tuple2<NavigableMap<Long, String>, Long> ring = Tuple.of(new TreeMap<>(), 0L);
+
+    public static Mono<ResponseEntity<Map<String, Serializable>>> route(Map<String, Serializable> command, String forwardedBy, Step resolveAggregateId,
+                                                                       Function<Map<String, Serializable>, Mono<ResponseEntity<Map<String, Serializable>>>> local) {
+        // Un comando reenviado se procesa aquí aunque el anillo local difiera: se evitan ciclos entre instancias
+        if (!enabled || forwardedBy != null) return inOrder(command, local);
+        return resolveAggregateId.apply(command)
+            .flatMap(resolved -> Option.of(getValue(resolved, "aggregateId", (String) null))
+                .map(ClusterRing::owner)
+                .filter(owner -> !owner.equals(self))
+                .map(owner -> forward(owner, resolved)
+                    // Dueño caído: la condición de versión en DynamoDB sigue protegiendo la escritura local
+                    .onErrorResume(WebClientRequestException.class, e -> inOrder(resolved, local)))
+                .getOrElse(() -> inOrder(resolved, local)));
+    }
+
+    public static String owner(String aggregateId) {
+        NavigableMap<Long, String> nodes = nodes();
+        if (nodes.isEmpty()) return self;
+        java.util.Map.Entry<Long, String> node = nodes.ceilingEntry(hash(aggregateId));
+        return (node != null ? node : nodes.firstEntry()).getValue();
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.of(
+            "enabled", enabled,
+            "self", self,
+            "peers", peers(),
+            "queuedAggregates", tails.size());
+    }
+
+    private static Mono<ResponseEntity<Map<String, Serializable>>> forward(String owner, Map<String, Serializable> command) {
+        return Mono.deferContextual(context -> Mono.fromCallable(() -> SerializerConfig.mapper.writeValueAsString(command))
+            .flatMap(body -> client.post()
+                .uri(owner + "/command")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(FORWARDED_HEADER, self)
+                // El dueño recibe solo el presupuesto que queda, no uno nuevo
+                .headers(headers -> Deadline.remainingMillis(context).forEach(millis -> headers.set(Deadline.HEADER, String.valueOf(millis))))
+                .bodyValue(body)
+                .exchangeToMono(response -> response.bodyToMono(String.class)
+                    .defaultIfEmpty("{}")
+                    .map(responseBody -> ResponseEntity.status(response.statusCode())
+                        .headers(headers -> response.headers().header(HttpHeaders.RETRY_AFTER).forEach(value -> headers.add(HttpHeaders.RETRY_AFTER, value)))
+                        .body(parse(responseBody))))));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Serializable> parse(String body) {
+        return Try.of(() -> (Map<String, Serializable>) SerializerConfig.mapper.readValue(body, Map.class))
+            .getOrElse(() -> HashMap.of("error", body));
+    }
+
+    // Los comandos de un mismo agregado se ejecutan uno tras otro: el dueño no compite consigo mismo por la versión
+    private static <T> Mono<T> inOrder(Map<String, Serializable> command, Function<Map<String, Serializable>, Mono<T>> local) {
+        String aggregateId = getValue(command, "aggregateId", (String) null);
+        return aggregateId == null || !enabled ? local.apply(command) : serialized(tails, aggregateId, () -> local.apply(command));
+    }
+
+    // Cola por clave: cada trabajo espera a que termine el anterior con la misma clave en el mismo mapa de colas
+    static <T> Mono<T> serialized(ConcurrentHashMap<String, Mono<Void>> tails, String key, Supplier<Mono<T>> work) {
+        return Mono.defer(() -> {
+            Sinks.Empty<Void> done = Sinks.empty();
+            Mono<Void> tail = done.asMono();
+            Mono<Void> previous = Option.of(tails.put(key, tail)).getOrElse(Mono.empty());
+            return previous
+                .then(Mono.defer(work))
+                .doFinally(signal -> {
+                    done.tryEmitEmpty();
+                    tails.remove(key, tail);
+                });
+        });
+    }
+
+    // Anillo con nodos virtuales por peer, reconstruido cuando vence el refresco del archivo de peers
+    private static NavigableMap<Long, String> nodes() {
+        Tuple2<NavigableMap<Long, String>, Long> current = ring;
+        if (current._2() > System.currentTimeMillis()) return current._1();
+        NavigableMap<Long, String> rebuilt = new TreeMap<>();
+        peers().forEach(peer -> List.range(0, virtualNodes).forEach(node -> rebuilt.put(hash(peer + "#" + node), peer)));
+        ring = Tuple.of(rebuilt, peersFile.isBlank() && !rebuilt.isEmpty() ? Long.MAX_VALUE : System.currentTimeMillis() + peersRefreshMillis);
+        return rebuilt;
+    }
+
+    private static List<String> peers() {
+        String source = peersFile.isBlank()
+            ? staticPeers
+            : Try.of(() -> Files.readString(Path.of(peersFile))).getOrElse(staticPeers);
+        return List.of(source.split("[,\\s]+"))
+            .map(String::trim)
+            .filter(peer -> !peer.isEmpty())
+            .append(self)
+            .distinct();
+    }
+
+    private static long hash(String key) {
+        byte[] digest = Try.of(() -> MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8))).get();
+        long hash = 0;
+        for (int i = 0; i < 8; i++) hash = (hash << 8) | (digest[i] & 0xff);
+        return hash;
+    }
+}
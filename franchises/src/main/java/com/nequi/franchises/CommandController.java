@@ -1,135 +1,381 @@
 package com.nequi.franchises;
 
-import com.nequi.franchises.comands.Command;
+import com.fasterxml.jackson.databind.exc.MismatchedInputException;
+import com.nequi.franchises.IO.EventFeed;
+import com.nequi.franchises.IO.EventStoreFactory;
+import com.nequi.franchises.IO.HedgedReads;
+import com.nequi.franchises.IO.ReadConsistency;
+import com.nequi.franchises.IO.StockLevels;
+import com.nequi.franchises.comands.TypedCommand;
 import com.nequi.franchises.comands.ValidationResult;
-import com.nequi.franchises.comands.Validator;
 import com.nequi.franchises.util.Step;
 import com.nequi.franchises.util.Utils;
 import io.vavr.Function2;
 import io.vavr.collection.HashMap;
+import io.vavr.collection.HashSet;
 import io.vavr.collection.List;
 
 import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.messaging.handler.annotation.MessageExceptionHandler;
+import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.Instant;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 
-import static com.nequi.franchises.comands.Validators.*;
 import static com.nequi.franchises.util.Utils.getValue;
 
 @RestController
 public class CommandController {
 
+    static final int channelConcurrency = Utils.env("RSOCKET_CHANNEL_CONCURRENCY", 32);
+
     // Inyectamos la función del eventLoader usando la fábrica
     private final Map<String, Step> depsLoader = Utils.createEventLoader();
     private static final Function2<String, String, List<Map<String, Serializable>>> initStateMachine = (franchiseId, franchiseName) ->
         List.of(HashMap.of("aggregateId", UUID.randomUUID(), "type", "FranchiseCreated", "payload", HashMap.of("franchiseId", franchiseId, "franchiseName", franchiseName, "version", 1)));
 
     @PostMapping("/command")
-    public Mono<ResponseEntity<Map<String, Serializable>>> handleCommand(@RequestBody Map<String, Serializable> commandMap) {
-        return createCommandHandler().apply(commandMap) // Directamente invoca createCommandHandler
+    public Mono<ResponseEntity<Map<String, Serializable>>> handleCommand(@RequestBody TypedCommand command,
+                                                                        @RequestHeader(value = ClusterRing.FORWARDED_HEADER, required = false) String forwardedBy,
+                                                                        @RequestHeader(value = Deadline.HEADER, required = false) String timeout) {
+        return dispatch(command, forwardedBy, timeout);
+    }
+
+    // Canal RSocket (TCP o WebSocket, ver application.properties): el mismo pipeline que /command sin el costo de una petición
+    // HTTP por comando, con conexiones multiplexadas y codificación JSON o CBOR. El estado HTTP equivalente viaja en "status"
+    @MessageMapping("command")
+    public Mono<Map<String, Serializable>> commandRequest(TypedCommand command) {
+        return dispatch(command, null, null).map(CommandController::socketResponse);
+    }
+
+    // request-channel: hasta RSOCKET_CHANNEL_CONCURRENCY comandos en vuelo y respuestas en el orden de llegada. Se piden más
+    // comandos al cliente solo a medida que consume respuestas, así un productor rápido no acumula trabajo en el servidor.
+    // Dentro de un canal, los comandos con el mismo aggregateId (o, sin él, el mismo franchiseId) se ejecutan uno tras otro
+    // en el orden de llegada, con o sin modo cluster; los comandos sin ninguno de los dos no tienen orden entre sí
+    @MessageMapping("commands")
+    public Flux<Map<String, Serializable>> commandChannel(Flux<TypedCommand> commands) {
+        return Flux.defer(() -> {
+            ConcurrentHashMap<String, Mono<Void>> tails = new ConcurrentHashMap<>();
+            return commands.flatMapSequential(command -> channelKey(command.toMap())
+                .map(key -> ClusterRing.serialized(tails, key, () -> commandRequest(command)))
+                .getOrElse(() -> commandRequest(command)), channelConcurrency, 1);
+        });
+    }
+
+    private static Option<String> channelKey(Map<String, Serializable> command) {
+        return List.of("aggregateId", "franchiseId")
+            .find(field -> !getValue(command, field, "").isBlank())
+            .map(field -> field + "#" + getValue(command, field, ""));
+    }
+
+    private static Map<String, Serializable> socketResponse(ResponseEntity<Map<String, Serializable>> response) {
+        return Option.of(response.getBody()).getOrElse(HashMap::empty).put("status", response.getStatusCode().value());
+    }
+
+    private Mono<ResponseEntity<Map<String, Serializable>>> dispatch(TypedCommand command, String forwardedBy, String timeout) {
+        // El cuerpo se lee directamente como comando tipado; en modo cluster se reenvía a la instancia dueña del agregado.
+        // El deadline viaja en el contexto de Reactor hasta cada etapa (y en el header del reenvío)
+        return ClusterRing.route(command.toMap(), forwardedBy, depsLoader.get("resolveAggregateId").get(), commandMap -> executeCommand(command, commandMap))
+                .onErrorResume(e -> Mono.just(ResponseEntity.badRequest().body(HashMap.of("error", e.getMessage()))))
+                .doOnCancel(Deadline::recordClientCancelled)
+                .contextWrite(Deadline.of(command.type(), timeout).context());
+    }
+
+    // Un campo que el decoder no puede convertir al tipo del record responde el mismo 400 que la validación
+    // ("quantityChange must be a numeric value"); el resto de errores de entrada conserva su motivo
+    @ExceptionHandler(ServerWebInputException.class)
+    public ResponseEntity<Map<String, Serializable>> malformedCommand(ServerWebInputException e) {
+        return ResponseEntity.badRequest().body(HashMap.of("error", invalidField(e).getOrElse(() -> String.valueOf(e.getReason()))));
+    }
+
+    @MessageExceptionHandler(DecodingException.class)
+    public Map<String, Serializable> malformedSocketCommand(DecodingException e) {
+        return HashMap.of("error", invalidField(e).getOrElse(() -> String.valueOf(e.getMessage())), "status", HttpStatus.BAD_REQUEST.value());
+    }
+
+    private static Option<String> invalidField(Throwable error) {
+        Throwable cause = error;
+        while (cause != null && !(cause instanceof MismatchedInputException)) cause = cause.getCause();
+        if (!(cause instanceof MismatchedInputException mismatch) || mismatch.getPath().isEmpty()) return Option.none();
+        String field = List.ofAll(mismatch.getPath())
+            .map(reference -> reference.getFieldName() != null ? reference.getFieldName() : String.valueOf(reference.getIndex()))
+            .mkString(".");
+        Class<?> target = mismatch.getTargetType();
+        String message = target != null && (Number.class.isAssignableFrom(target) || target == int.class)
+            ? "%s must be a numeric value".formatted(field)
+            : "%s has an invalid value".formatted(field);
+        return Option.some(validationFailed(new ValidationResult(false, List.of(message))));
+    }
+
+    private Mono<ResponseEntity<Map<String, Serializable>>> executeCommand(TypedCommand command, Map<String, Serializable> commandMap) {
+        // Admisión por franquicia (o agregado) antes de tocar DynamoDB
+        String franchiseKey = getValue(commandMap, "franchiseId", getValue(commandMap, "aggregateId", ""));
+        return AdmissionControl.admit(franchiseKey, () -> createCommandHandler(command).apply(commandMap))
                 .map(ResponseEntity::ok)
+                .onErrorResume(AdmissionControl::isOverload, e -> Mono.just(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                        .header(HttpHeaders.RETRY_AFTER, String.valueOf(AdmissionControl.retryAfterSeconds(e)))
+                        .body(HashMap.of("error", String.valueOf(e.getMessage())))))
+                .onErrorResume(Deadline::isExceeded, e -> Mono.just(ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+                        .body(HashMap.of("error", String.valueOf(e.getMessage())))))
                 .onErrorResume(e -> Mono.just(ResponseEntity.badRequest().body(HashMap.of("error", e.getMessage()))));
     }
 
-    // Función para crear el handler reactivo que maneja los comandos
-    private Function<Map<String, Serializable>, Mono<Map<String, Serializable>>> createCommandHandler() {
-        return command -> Mono.just(command)
-            .flatMap(this::validateCommand)    // Validación del comando
-            .flatMap(depsLoader.get("checkIdempotency").get())
-            // Carga de eventos del event store
-            .flatMap(depsLoader.get("fetchEvents").get())
-            // Proyección del estado a partir de los eventos
+    // Etapa con evento JFR y control del presupuesto restante del comando
+    private static <T> Function<T, Mono<Map<String, Serializable>>> stage(CommandTrace trace, String name, Function<T, Mono<Map<String, Serializable>>> step) {
+        return trace.stage(name, Deadline.guard(name, step));
+    }
+
+    @GetMapping("/admin/admission")
+    public Mono<ResponseEntity<Map<String, Serializable>>> admissionStats() {
+        return Mono.just(ResponseEntity.ok(AdmissionControl.stats()));
+    }
+
+    @GetMapping("/admin/cluster")
+    public Mono<ResponseEntity<Map<String, Serializable>>> clusterStats(@RequestParam(required = false) String aggregateId) {
+        return Mono.just(ResponseEntity.ok(Option.of(aggregateId)
+            .map(id -> ClusterRing.stats().put("owner", ClusterRing.owner(id)))
+            .getOrElse(ClusterRing::stats)));
+    }
+
+    @GetMapping("/admin/deadlines")
+    public Mono<ResponseEntity<Map<String, Serializable>>> deadlineStats() {
+        return Mono.just(ResponseEntity.ok(Deadline.stats()));
+    }
+
+    @GetMapping("/admin/projections")
+    public Mono<ResponseEntity<Map<String, Serializable>>> projectionStats() {
+        return Mono.just(ResponseEntity.ok(ParallelProjection.stats()));
+    }
+
+    @GetMapping("/admin/reads")
+    public Mono<ResponseEntity<Map<String, Serializable>>> readStats() {
+        return Mono.just(ResponseEntity.ok(HedgedReads.stats().put("consistency", ReadConsistency.stats()).put("stateView", StateView.stats())));
+    }
+
+    @GetMapping("/admin/pipeline")
+    public Mono<ResponseEntity<Map<String, Serializable>>> pipelineStats() {
+        return Mono.just(ResponseEntity.ok(StageGraph.stats()));
+    }
+
+    // Asignaciones y CPU por tipo de comando y etapa (ver CommandResources)
+    @GetMapping("/admin/resources")
+    public Mono<ResponseEntity<Map<String, Serializable>>> resourceStats() {
+        return Mono.just(ResponseEntity.ok(CommandResources.stats()));
+    }
+
+    @GetMapping("/admin/stock")
+    public Mono<ResponseEntity<Map<String, Serializable>>> stockStats() {
+        return Mono.just(ResponseEntity.ok(StockLevels.stats()));
+    }
+
+    // Productos con stock en [min, max] de todas las franquicias, de menor a mayor stock, sin replay (ver StockLevels)
+    @GetMapping(value = "/stock/levels", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<Map<String, Serializable>> stockLevels(@RequestParam(defaultValue = "0") BigDecimal min,
+                                                       @RequestParam BigDecimal max,
+                                                       @RequestParam(defaultValue = "1000") int limit) {
+        return EventStoreFactory.stockBetween(min, max).take(limit);
+    }
+
+    @GetMapping("/admin/writes")
+    public Mono<ResponseEntity<Map<String, Serializable>>> writeStats() {
+        return Mono.just(ResponseEntity.ok(EventStoreFactory.writeStats()));
+    }
+
+    // Feed global en NDJSON para integraciones: eventos posteriores a la posición after, hasta el horizonte asentado.
+    // Para seguir leyendo se vuelve a pedir con la posición del último evento recibido; un cliente que no debe perder eventos
+    // confirmados tarde pide desde esa posición menos EVENT_FEED_OVERLAP_MS y descarta los (aggregateId, version) ya vistos.
+    @GetMapping(value = "/events", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<Map<String, Object>> eventFeed(@RequestParam(defaultValue = EventFeed.START) String after) {
+        return EventStoreFactory.readFeed(after);
+    }
+
+    // Importación masiva de productos a una sucursal (NDJSON: una línea por producto con productId, productName y currentStock).
+    // Reenviar el mismo importId reanuda la importación sin repetir los chunks ya confirmados.
+    @PostMapping(value = "/franchises/{aggregateId}/branches/{branchId}/products", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public Mono<ResponseEntity<Map<String, Serializable>>> importCatalog(@PathVariable String aggregateId, @PathVariable String branchId,
+                                                                         @RequestParam String franchiseId, @RequestParam(required = false) String importId,
+                                                                         @RequestBody Flux<Map<String, Serializable>> products) {
+        String id = importId == null || importId.isBlank() ? UUID.randomUUID().toString() : importId;
+        Map<String, Serializable> command = HashMap.of("type", "AddProductToBranch", "aggregateId", aggregateId, "franchiseId", franchiseId, "branchId", branchId);
+        return depsLoader.get("fetchEvents").get().apply(command)
             .flatMap(result -> {
-                Map<String, Serializable> initialState = HashMap.of("command", getValue(result, "command", HashMap.empty()));
                 List<Map<String, Serializable>> events = getValue(result, "events", List.empty());
-                return projectState.apply(initialState, events);
+                int lastVersion = events.map(event -> Integer.parseInt(String.valueOf(getValue(event, "version", "0")))).max().getOrElse(0);
+                return projectState.apply(HashMap.empty(), events)
+                    .flatMap(state -> !state.containsValue(franchiseId) || !getBranches(state).containsKey(branchId)
+                        ? Mono.error(new IllegalStateException("La sucursal no existe o no pertenece a la franquicia."))
+                        : depsLoader.get("loadImportProgress").get().apply(HashMap.of("importId", id))
+                            .flatMap(progress -> CatalogImport.importCatalog(new CatalogImport.Steps(depsLoader.get("commitImportChunk").get(),
+                                    depsLoader.get("transactionItems").get(), depsLoader.get("aggregateVersion").get(), depsLoader.get("saveEventsAtVersion").get()),
+                                getValue(progress, "committedChunks", HashSet.empty()), state, lastVersion, command, id, products)));
             })
+            .map(ResponseEntity::ok)
+            .onErrorResume(e -> Mono.just(ResponseEntity.badRequest().body(HashMap.of("error", e.getMessage()))));
+    }
+
+    // Estado actual con ETag = última versión: If-None-Match vigente responde 304 con una sola consulta de versión
+    @GetMapping("/franchises/{aggregateId}")
+    public Mono<ResponseEntity<Object>> currentState(@PathVariable String aggregateId,
+                                                     @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return StateView.current(aggregateId, ifNoneMatch)
+            .onErrorResume(e -> Mono.just(ResponseEntity.badRequest().<Object>body(HashMap.of("error", String.valueOf(e.getMessage())))));
+    }
+
+    // Estado histórico de una franquicia en una versión (version=N) o en un instante ISO-8601 (at=2024-05-01T10:00:00Z)
+    @GetMapping("/franchises/{aggregateId}/history")
+    public Mono<ResponseEntity<Map<String, Serializable>>> stateAt(@PathVariable String aggregateId,
+                                                                   @RequestParam(required = false) Integer version,
+                                                                   @RequestParam(required = false) String at) {
+        return Mono.fromCallable(() -> Option.of(at).map(Instant::parse))
+            .flatMap(instant -> PointInTime.stateAt(aggregateId, Option.of(version), instant))
+            .map(ResponseEntity::ok)
+            .onErrorResume(e -> Mono.just(ResponseEntity.badRequest().body(HashMap.of("error", String.valueOf(e.getMessage())))));
+    }
+
+    // Reconstrucción de snapshots y proyecciones de todas las franquicias; reenviar el mismo rebuildId la reanuda desde sus checkpoints
+    @PostMapping("/admin/projections/rebuild")
+    public Mono<ResponseEntity<Map<String, Serializable>>> rebuildProjections(@RequestParam(required = false) String rebuildId,
+                                                                              @RequestParam(required = false) Integer segments,
+                                                                              @RequestParam(required = false) Integer writeConcurrency,
+                                                                              @RequestParam(required = false) Integer itemsPerSecond) {
+        return Mono.fromCallable(() -> ProjectionRebuild.start(
+                Option.of(rebuildId).getOrElse(() -> UUID.randomUUID().toString()),
+                Option.of(segments).getOrElse(ProjectionRebuild.defaultSegments),
+                Option.of(writeConcurrency).getOrElse(ProjectionRebuild.defaultWriteConcurrency),
+                Option.of(itemsPerSecond).getOrElse(ProjectionRebuild.defaultItemsPerSecond)))
+            .subscribeOn(Schedulers.boundedElastic())
+            .map(progress -> ResponseEntity.accepted().body(progress))
+            .onErrorResume(e -> Mono.just(ResponseEntity.badRequest().body(HashMap.of("error", e.getMessage()))));
+    }
+
+    @GetMapping("/admin/projections/rebuild/{rebuildId}")
+    public Mono<ResponseEntity<Map<String, Serializable>>> rebuildProgress(@PathVariable String rebuildId) {
+        return Mono.justOrEmpty(ProjectionRebuild.progress(rebuildId).toJavaOptional())
+            .map(ResponseEntity::ok)
+            .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    // Función para crear el handler reactivo que maneja los comandos
+    // Las etapas previas a la decisión forman un grafo (ver StageGraph): si el comando ya trae el aggregateId, resolve
+    // solo verifica la clave de negocio y resolve, idempotency y fetch corren en paralelo tras la validación.
+    // Cada etapa queda registrada como evento JFR (ver CommandTrace)
+    private Function<Map<String, Serializable>, Mono<Map<String, Serializable>>> createCommandHandler(TypedCommand typed) {
+        return command -> {
+            CommandTrace trace = CommandTrace.start(command);
+            boolean concurrent = StageGraph.concurrent(typed.type()) && command.containsKey("aggregateId");
+            // UpdateProductStock se resuelve contra el ledger de stock; si el contador no existe se hace el replay completo
+            boolean ledger = "UpdateProductStock".equals(getValue(command, "type", ""));
+            String idempotencyAfter = concurrent ? "validate" : "resolve";
+            String fetchAfter = concurrent ? "validate" : "idempotency";
+            StageGraph graph = StageGraph.named(concurrent ? typed.type() : typed.type() + ".sequential")
+                .stage("validate", List.of(StageGraph.INPUT), StageGraph.using(StageGraph.INPUT, stage(trace, "validate", cmd -> validateCommand(typed).thenReturn(cmd))))    // Validación del comando
+                .stage("resolve", List.of("validate"), StageGraph.using("validate", stage(trace, "resolve", depsLoader.get("resolveAggregateId").get())))    // Enrutamiento por franchiseId / branchId
+                .stage("idempotency", List.of(idempotencyAfter), StageGraph.using(idempotencyAfter, stage(trace, "idempotency", depsLoader.get("checkIdempotency").get())));
+            StageGraph pipeline = ledger ? graph : graph.stage("fetch", List.of(fetchAfter), StageGraph.using(fetchAfter, fetchStage(trace, typed)));
+            return trace.pipeline(pipeline.run(command, trace::overlapped)
+                // El comando que sigue es el de idempotency (aggregateId y createAggregateFunc); los eventos vienen de fetch
+                .flatMap(results -> {
+                    Map<String, Serializable> cmd = results.get("idempotency").get();
+                    return ledger
+                        ? stage(trace, "ledger", depsLoader.get("updateStock").get()).apply(cmd)
+                            .switchIfEmpty(Mono.defer(() -> decideReplayed(Mono.just(cmd).flatMap(fetchStage(trace, typed)), typed, trace)))
+                        : decideReplayed(Mono.just(results.get("fetch").get().put("command", cmd)), typed, trace);
+                })
+                // Los productos que este comando dejó en cero se notifican a través del mismo pipeline. Sin control de deadline:
+                // los eventos ya están confirmados y cortar aquí solo perdería la notificación
+                .flatMap(result -> trace.stage("depletion", depsLoader.get("claimDepleted").get()).apply(result)
+                    .doOnNext(this::notifyDepleted)
+                    .thenReturn(result)))
+                .doFinally(trace::finish);
+//                .flatMap(this::notifyEvents);      // Notificación de eventos externos
+        };
+    }
+
+    // Lectura eventual (según el tipo de comando, ver ReadConsistency) o fuerte
+    private Function<Map<String, Serializable>, Mono<Map<String, Serializable>>> fetchStage(CommandTrace trace, TypedCommand typed) {
+        return stage(trace, "fetch", depsLoader.get(ReadConsistency.eventual(typed.type()) ? "fetchEventsEventually" : "fetchEvents").get());
+    }
+
+    // Con lectura eventual la escritura se condiciona a la versión observada; si la lectura estaba atrasada se relee
+    // la cola con lectura fuerte y se decide de nuevo una sola vez
+    private Mono<Map<String, Serializable>> decideReplayed(Mono<Map<String, Serializable>> fetched, TypedCommand typed, CommandTrace trace) {
+        String type = typed.type();
+        if (!ReadConsistency.eventual(type)) {
+            return decideAndSave(fetched, typed, trace, "saveEvents", events -> { });
+        }
+        AtomicReference<Map<String, Serializable>> replayed = new AtomicReference<>();
+        // Solo un conflicto en los Put de los eventos decididos indica una lectura atrasada
+        AtomicInteger decided = new AtomicInteger();
+        return decideAndSave(fetched.doOnNext(replayed::set), typed, trace, "saveEventsAtVersion", decided::set)
+            .onErrorResume(e -> ReadConsistency.isStaleWrite(e, decided.get()), e -> {
+                ReadConsistency.recordFallback(type);
+                return decideAndSave(Mono.justOrEmpty(replayed.get()).flatMap(stage(trace, "fetch", depsLoader.get("fetchEventsTail").get())), typed, trace, "saveEventsAtVersion", events -> { });
+            });
+    }
+
+    private Mono<Map<String, Serializable>> decideAndSave(Mono<Map<String, Serializable>> fetched, TypedCommand typed, CommandTrace trace, String saveStep,
+                                                          IntConsumer decidedEvents) {
+        return fetched
+            // Proyección del estado a partir de los eventos; la última versión leída condiciona la escritura
+            .flatMap(stage(trace, "project", result -> {
+                List<Map<String, Serializable>> events = getValue(result, "events", List.empty());
+                int lastVersion = events.map(event -> Integer.parseInt(String.valueOf(getValue(event, "version", "0")))).max().getOrElse(0);
+                Map<String, Serializable> initialState = HashMap.of("command", getValue(result, "command", HashMap.<String, Serializable>empty()).put("expectedVersion", lastVersion));
+                trace.eventsReplayed(events.size());
+                return projectState.apply(initialState, events);
+            }))
             // Toma de decisiones de negocio
-            .flatMap(state -> {
+            .flatMap(stage(trace, "decide", state -> {
                 Map<String, Serializable> cmd = getValue(state, "command", HashMap.empty());
                 Map<String, Serializable> currentState = state.filter((key, value) -> !key.equals("command"));
-                return decide(cmd, currentState).map(events -> HashMap.<String, Serializable>of("command", cmd, "events", events));
-            })
-            .flatMap(result -> depsLoader.get("saveEvents").get().apply(result));     // Persistencia de los eventos generados
-//                .flatMap(this::notifyEvents);      // Notificación de eventos externos
+                return decide(typed, getValue(cmd, "aggregateId", ""), currentState)
+                    .doOnNext(events -> {
+                        trace.payloadBytes(CatalogImport.estimateSize(events));
+                        decidedEvents.accept(events.size());
+                    })
+                    .map(events -> HashMap.<String, Serializable>of("command", cmd, "events", events));
+            }))
+            .flatMap(stage(trace, "save", depsLoader.get(saveStep).get()));     // Persistencia de los eventos generados
     }
 
-    // Función de validación del comando
-    private Mono<Map<String, Serializable>> validateCommand(Map<String, Serializable> command) {
-        return Mono.justOrEmpty(command.getOrElse("type", ""))
-            .map(type -> switch (type.toString()) {
-                case "CreateFranchise" -> new Command("CreateFranchise", command)
-                        .validate(required("franchiseName"), isNonEmptyString("franchiseName"),
-                            required("franchiseId"), isNonEmptyString("franchiseId"));
-                case "UpdateFranchiseName" -> new Command("UpdateFranchiseName", command)
-                        .validate(required("franchiseId"), isNonEmptyString("franchiseId"),
-                            required("newName"), isNonEmptyString("newName"),
-                            matchesPattern("franchiseId", "[A-Z]*\\d+"));
-                case "AddBranch" -> new Command("AddBranch", command)
-                        .validate(required("franchiseId"), isNonEmptyString("franchiseId"),
-                            matchesPattern("franchiseId", "[A-Z]*\\d+"),
-                            required("branchId"), isNonEmptyString("branchId"),
-                            matchesPattern("branchId", "[A-Z]*\\d+"),
-                            required("branchName"), isNonEmptyString("branchName"));
-                case "AddProductToBranch" -> {
-                    var nameValidators = getValue(command, "products", HashMap.empty()).toList()
-                        .map(entry -> required("products.%s.productName".formatted(entry._1())));
-                    var stockValidators = getValue(command, "products", HashMap.empty()).toList()
-                        .map(entry -> required("products.%s.currentStock".formatted(entry._1())));
-                    List<Validator> validators = List.of(required("franchiseId"), isNonEmptyString("franchiseId"),
-                        matchesPattern("franchiseId", "[A-Z]*\\d+"),
-                        required("branchId"), isNonEmptyString("branchId"), matchesPattern("branchId", "[A-Z]*\\d+"))
-                    .appendAll(nameValidators)
-                    .appendAll(stockValidators);
-                    yield new Command("AddProductToBranch", command).validate(validators.toJavaArray(Validator[]::new));
-                }
-                case "UpdateBranchName" -> new Command("UpdateBranchName", command)
-                        .validate(required("branchId"), isNonEmptyString("branchId"),
-                            matchesPattern("branchId", "[A-Z]*\\d+"), required("newName"),
-                            isNonEmptyString("newName"));
-                case "UpdateProductStock" -> new Command("UpdateProductStock", command)
-                        .validate(  required("branchId"), isNonEmptyString("branchId"),
-                            matchesPattern("branchId", "[A-Z]*\\d+"),
-                            required("productId"), isNonEmptyString("productId"), matchesPattern("productId", "[A-Z]*\\d+"),
-                            required("quantityChange"), isNumeric("quantityChange"));
-                case "RemoveProductFromBranch" -> new Command("RemoveProductFromBranch", command)
-                        .validate(required("franchiseId"), isNonEmptyString("franchiseId"),
-                            matchesPattern("franchiseId", "[A-Z]*\\d+"), required("branchId"),
-                            isNonEmptyString("branchId"), matchesPattern("branchId", "[A-Z]*\\d+"),
-                            required("productId"), isNonEmptyString("productId"));
-                case "RemoveBranch" -> new Command("RemoveBranch", command)
-                        .validate(required("franchiseId"), isNonEmptyString("franchiseId"),
-                            matchesPattern("franchiseId", "[A-Z]*\\d+"),
-                            required("branchId"), isNonEmptyString("branchId"), matchesPattern("branchId", "[A-Z]*\\d+"));
-                case "RemoveFranchise" -> new Command("RemoveFranchise", command)
-                        .validate(required("franchiseId"), isNonEmptyString("franchiseId"),
-                                matchesPattern("franchiseId", "[A-Z]*\\d+"));
-                case "NotifyStockDepleted" -> new Command("NotifyStockDepleted", command)
-                        .validate(required("franchiseId"), isNonEmptyString("franchiseId"),
-                            matchesPattern("franchiseId", "[A-Z]*\\d+"), required("branchId"),
-                            isNonEmptyString("branchId"), matchesPattern("branchId", "[A-Z]*\\d+"),
-                            required("productId"), isNonEmptyString("productId"), isUUID("productId"));
-                case "TransferProductBetweenBranches" -> new Command("TransferProductBetweenBranches", command)
-                        .validate(required("fromBranchId"), isNonEmptyString("fromBranchId"),
-                                required("toBranchId"), isNonEmptyString("toBranchId"),
-                                required("productId"), isNonEmptyString("productId"),
-                                required("quantity"), isNumeric("quantity"), isPositive("quantity"));
-                case "AdjustProductStock" -> new Command("AdjustProductStock", command)
-                        .validate(required("productId"), isNonEmptyString("productId"),
-                                required("newStock"), isNumeric("newStock"), isPositive("newStock"));
-                default -> new ValidationResult(false, List.of("Type doesn't exist in the system!"));
-            }).flatMap((ValidationResult result) -> result.isValid()
-                ? Mono.just(command) // Si es válido, devolver el comando
-                : Mono.error(new IllegalArgumentException("Validation failed: " + result.errors().mkString(", ")))); // Si no es válido, devolver un Mono.error con los errores de validación)
+    // Validación sobre los campos del comando tipado
+    private Mono<TypedCommand> validateCommand(TypedCommand command) {
+        return Mono.fromSupplier(command::validate)
+            .flatMap(result -> result.isValid()
+                ? Mono.just(command)
+                : Mono.error(new IllegalArgumentException(validationFailed(result))));
+    }
+
+    private static String validationFailed(ValidationResult result) {
+        return "Validation failed: " + result.errors().mkString(", ");
     }
 
+    // Historias grandes se pliegan en paralelo por sucursal (ver ParallelProjection); el resultado es el mismo que el del foldLeft
     public static Function2<Map<String, Serializable>, List<Map<String, Serializable>>, Mono<Map<String, Serializable>>> projectState = (initialState, events) ->
-        Mono.defer(() -> Mono.just(events.foldLeft(initialState, (state, event) ->
+        events.size() >= ParallelProjection.minEvents
+            ? ParallelProjection.project(initialState, events)
+            : Mono.defer(() -> Mono.just(events.foldLeft(initialState, CommandController.projectEvent)));
+
+    // Aplica un evento al estado
+    static Function2<Map<String, Serializable>, Map<String, Serializable>, Map<String, Serializable>> projectEvent = (state, event) ->
             switch (getValue(event, "type", "")) {
                 case "FranchiseCreated" -> state
                         .put("aggregateId", getValue(event, "aggregateId", UUID.randomUUID().toString()))
@@ -151,7 +397,11 @@ public class CommandController {
 
                 case "ProductStockUpdated" -> {
                     String productKey = "%s|%s".formatted(getValue(event, "payload.productId", ""), getValue(event, "payload.branchId", ""));
-                    yield state.put("products", getValue(state, "products", HashMap.<String, Serializable>empty()).put(productKey, getValue(state, "products.%s".formatted(productKey), HashMap.<String, Serializable>empty()).put("currentStock", getValue(event, "payload.currentStock", 0.0))));
+                    // Los eventos del ledger solo traen quantityChange (conmutativo); los del replay traen el stock resultante
+                    Map<String, Serializable> payload = getValue(event, "payload", HashMap.empty());
+                    Map<String, Serializable> product = getValue(getProducts(state), productKey, HashMap.empty());
+                    double currentStock = getValue(payload, "currentStock", getValue(product, "currentStock", 0.0) + getValue(payload, "quantityChange", 0.0));
+                    yield state.put("products", getValue(state, "products", HashMap.<String, Serializable>empty()).put(productKey, product.put("currentStock", currentStock)));
                 }
 
                 case "ProductStockAdjusted" -> {
@@ -179,7 +429,7 @@ public class CommandController {
                 case "NotifyStockDepleted" -> state;
 
                 default -> state;
-            })));
+            };
 
     // Función auxiliar para obtener el mapa de sucursales (branches)
     private static Map<String, Map<String, Serializable>> getBranches(Map<String, Serializable> state) {
@@ -195,7 +445,7 @@ public class CommandController {
     private static Map<String, Serializable> updateProductStock(Map<String, Serializable> branchData, String productId, int quantityChange) {
         return getProducts(branchData)
                 .get(productId)
-                .map(product -> product.put("currentStock", getValue(product, "currentStock", 0) + quantityChange))
+                .map(product -> product.put("currentStock", getValue(product, "currentStock", (Number) 0).doubleValue() + quantityChange))
                 .getOrElse(HashMap.of("currentStock", quantityChange));
     }
 
@@ -204,7 +454,7 @@ public class CommandController {
         String fromBranchId = getValue(payload, "fromBranchId", "");
         String toBranchId = getValue(payload, "toBranchId", "");
         String productId = getValue(payload, "productId", "");
-        int quantity = Integer.parseInt(getValue(payload, "quantity", "0"));
+        int quantity = getValue(payload, "quantity", (Number) 0).intValue();
 
         Map<String, Map<String, Serializable>> branches = getBranches(state);
 
@@ -214,307 +464,298 @@ public class CommandController {
     }
 
 
-    // Función para tomar decisiones de negocio
-    private Mono<List<Map<String, Serializable>>> decide(Map<String, Serializable> command, Map<String, Serializable> state) {
+    // Función para tomar decisiones de negocio sobre el comando tipado; el aggregateId es el resuelto por el pipeline
+    Mono<List<Map<String, Serializable>>> decide(TypedCommand command, String aggregateId, Map<String, Serializable> state) {
         // Dispatcher por tipo de comando
-        return Mono.justOrEmpty(getValue(command, "type", ""))
-                .flatMap(commandType -> switch (commandType) {
-                    case "CreateFranchise" -> {
-                        // Validación: No se puede crear una franquicia si ya existe
-                        if (state.containsValue(getValue(command, "franchiseId", ""))) {
-                            yield Mono.error(new IllegalStateException("La franquicia ya existe."));
-                        } else {
-                            yield Mono.just(List.of(HashMap.of(
-                                    "type", "FranchiseCreated",
-                                    "aggregateId", getValue(command, "aggregateId", ""),
-                                    "payload", HashMap.of(
-                                            "franchiseId", getValue(command, "franchiseId", ""),
-                                            "franchiseName", getValue(command, "franchiseName", "")
-                                    )
+        return Mono.defer(() -> switch (command) {
+            case TypedCommand.CreateFranchise create -> {
+                // Validación: No se puede crear una franquicia si ya existe
+                if (state.containsValue(create.franchiseId())) {
+                    yield Mono.error(new IllegalStateException("La franquicia ya existe."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "FranchiseCreated",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of(
+                                    "franchiseId", create.franchiseId(),
+                                    "franchiseName", create.franchiseName()
                             )
-                            ));
-                        }
-                    }
+                    )));
+                }
+            }
 
-                    case "UpdateFranchiseName" -> {
-                        // Validación: La franquicia del comando debe coincidir con la de la creación
-                        if (!state.containsValue(getValue(command, "franchiseId", ""))) {
-                            yield Mono.error(new IllegalStateException("La franquicia no corresponde al orden lógico de los eventos. Tal vez quieras ajustar la franquicia o necesites modelar una interacción nueva."));
-                        }
-                        // Validación: La franquicia debe existir
-                        if (!getValue(state, "franchiseExists", false)) {
-                            yield Mono.error(new IllegalStateException("La franquicia no existe."));
+            case TypedCommand.UpdateFranchiseName update -> {
+                // Validación: La franquicia del comando debe coincidir con la de la creación
+                if (!state.containsValue(update.franchiseId())) {
+                    yield Mono.error(new IllegalStateException("La franquicia no corresponde al orden lógico de los eventos. Tal vez quieras ajustar la franquicia o necesites modelar una interacción nueva."));
+                }
+                // Validación: La franquicia debe existir
+                if (!getValue(state, "franchiseExists", false)) {
+                    yield Mono.error(new IllegalStateException("La franquicia no existe."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "FranchiseNameUpdated",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of(
+                                    "newFranchiseName", update.newName(),
+                                    "oldFranchiseName", getValue(state, "franchiseName", "")
+                            )
+                    )));
+                }
+            }
+
+            case TypedCommand.AddBranch add -> {
+                // Validación: La franquicia del comando debe coincidir con la de la creación
+                if (!state.containsValue(add.franchiseId())) {
+                    yield Mono.error(new IllegalStateException("La franquicia no corresponde al orden lógico de los eventos. Tal vez quieras ajustar la franquicia o necesites modelar una interacción nueva."));
+                }
+                // Validación: La franquicia debe existir
+                if (!getValue(state, "franchiseExists", false)) {
+                    yield Mono.error(new IllegalStateException("La franquicia no existe."));
+                } else if (getBranches(state).containsKey(add.branchId())) {
+                    // Validación: No se puede agregar una sucursal que ya existe
+                    yield Mono.error(new IllegalStateException("La sucursal ya existe en la franquicia."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "BranchAdded",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of(add.branchId(), add.branchName()),
+                            "metadata", HashMap.of("franchiseId", getValue(state, "franchiseId", ""))
+                    )));
+                }
+            }
+
+            case TypedCommand.UpdateBranchName update -> {
+                // Validación: La sucursal debe existir
+                Map<String, Serializable> branches = getValue(state, "branches", HashMap.empty());
+                if (!branches.containsKey(update.branchId())) {
+                    yield Mono.error(new IllegalStateException("La sucursal no existe."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "BranchNameUpdated",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of(
+                                    "branchId", update.branchId(),
+                                    "newBranchName", update.newName(),
+                                    "oldBranchName", getValue(branches, update.branchId(), "")
+                            )
+                    )));
+                }
+            }
+
+            case TypedCommand.AddProductToBranch add -> {
+                // Validación: La franquicia del comando debe coincidir con la de la creación
+                if (!state.containsValue(add.franchiseId())) {
+                    yield Mono.error(new IllegalStateException("La franquicia no corresponde al orden lógico de los eventos. Tal vez quieras ajustar la franquicia o necesites modelar una interacción nueva."));
+                }
+
+                // Validación: La sucursal debe existir
+                if (!getBranches(state).containsKey(add.branchId())) {
+                    yield Mono.error(new IllegalStateException("La sucursal no existe o no pertenece a la franquicia."));
+                } else {
+                    Map<String, Map<String, Serializable>> products = Option.of(add.products()).getOrElse(HashMap.empty());
+                    Map<String, Map<String, Serializable>> existentProducts = products.filterKeys(getProducts(state)::containsKey);
+                    if (!existentProducts.isEmpty()) {
+                        yield Mono.error(new IllegalStateException("Hay productos que ya existen en la sucursal. %s".formatted(existentProducts)));
+                    } else {
+                        yield Mono.just(List.of(HashMap.of(
+                                "type", "ProductAddedToBranch",
+                                "aggregateId", aggregateId,
+                                "payload", HashMap.of(
+                                        "franchiseId", add.franchiseId(),
+                                        "branchId", add.branchId(),
+                                        "products", products
+                                )
+                        )));
+                    }
+                }
+            }
+
+            case TypedCommand.UpdateProductStock update -> {
+                // Validación: La sucursal y el producto deben existir
+                String keyProduct = "%s|%s".formatted(update.productId(), update.branchId());
+                if (!getBranches(state).containsKey(update.branchId())) {
+                    yield Mono.error(new IllegalStateException("La sucursal no existe."));
+                } else {
+                    Option<Map<String, Serializable>> product = getProducts(state).get(keyProduct);
+                    if (product.isEmpty()) {
+                        yield Mono.error(new IllegalStateException("El producto no existe en la sucursal."));
+                    } else {
+                        double currentStock = getValue(product.get(), "currentStock", (Number) 0.0).doubleValue();
+                        int quantityChange = update.quantityChange();
+                        double newStock = currentStock + quantityChange;
+
+                        // Validación: El stock resultante no puede ser negativo
+                        if (newStock < 0) {
+                            yield Mono.error(new IllegalStateException("El stock disponible no es suficiente para cubrir la demanda. Disponible: %s | Faltante: %s".formatted(currentStock, Math.abs(newStock))));
                         } else {
                             yield Mono.just(List.of(HashMap.of(
-                                    "type", "FranchiseNameUpdated",
-                                    "aggregateId", getValue(command, "aggregateId", ""),
+                                    "type", "ProductStockUpdated",
+                                    "aggregateId", aggregateId,
                                     "payload", HashMap.of(
-                                            "newFranchiseName", getValue(command, "newName", ""),
-                                            "oldFranchiseName", getValue(state, "franchiseName", "")
+                                            "branchId", update.branchId(),
+                                            "productId", update.productId(),
+                                            "quantityChange", quantityChange,
+                                            "previousStock", currentStock,
+                                            "currentStock", newStock
                                     )
                             )));
                         }
                     }
-
-                    case "AddBranch" -> {
-                        // Validación: La franquicia del comando debe coincidir con la de la creación
-                        if (!state.containsValue(getValue(command, "franchiseId", ""))) {
-                            yield Mono.error(new IllegalStateException("La franquicia no corresponde al orden lógico de los eventos. Tal vez quieras ajustar la franquicia o necesites modelar una interacción nueva."));
-                        }
-                        // Validación: La franquicia debe existir
-                        if (!getValue(state, "franchiseExists", false)) {
-                            yield Mono.error(new IllegalStateException("La franquicia no existe."));
-                        } else {
-                            // Validación: No se puede agregar una sucursal que ya existe
-                            Map<String, Serializable> branches = getValue(state, "branches", HashMap.empty());
-                            if (branches.containsKey(getValue(command, "branchId", ""))) {
-                                yield Mono.error(new IllegalStateException("La sucursal ya existe en la franquicia."));
-                            } else {
-                                yield Mono.just(List.of(HashMap.of(
-                                        "type", "BranchAdded",
-                                        "aggregateId", getValue(command, "aggregateId", ""),
-                                        "payload", HashMap.of(
-                                            getValue(command, "branchId", ""),
-                                            getValue(command, "branchName", "")
-                                        )
-                                )));
-                            }
-                        }
-                    }
-
-                    case "UpdateBranchName" -> {
-                        // Validación: La sucursal debe existir
-                        Map<String, Serializable> branches = getValue(state, "branches", HashMap.empty());
-                        if (!branches.containsKey(getValue(command, "branchId", ""))) {
-                            yield Mono.error(new IllegalStateException("La sucursal no existe."));
+                }
+            }
+
+            case TypedCommand.TransferProductBetweenBranches transfer -> {
+                // Validación: Ambas sucursales deben existir
+                Map<String, Map<String, Serializable>> branches = getBranches(state);
+                if (!branches.containsKey(transfer.fromBranchId()) || !branches.containsKey(transfer.toBranchId())) {
+                    yield Mono.error(new IllegalStateException("Una o ambas sucursales no existen."));
+                } else {
+                    Map<String, Serializable> fromProducts = branches.get(transfer.fromBranchId()).getOrElse(HashMap.empty());
+                    if (!fromProducts.containsKey(transfer.productId())) {
+                        yield Mono.error(new IllegalStateException("El producto no existe en la sucursal de origen."));
+                    } else {
+                        int currentStock = getValue(getValue(fromProducts, transfer.productId(), HashMap.empty()), "currentStock", 0);
+                        int quantity = transfer.quantity();
+
+                        if (quantity > currentStock) {
+                            yield Mono.error(new IllegalStateException("Stock insuficiente en la sucursal de origen."));
                         } else {
-                            String oldBranchName = getValue(branches, getValue(command, "branchId", ""), "");
                             yield Mono.just(List.of(HashMap.of(
-                                    "type", "BranchNameUpdated",
-                                    "aggregateId", getValue(command, "aggregateId", ""),
+                                    "type", "ProductTransferredBetweenBranches",
+                                    "aggregateId", aggregateId,
                                     "payload", HashMap.of(
-                                            "branchId", getValue(command, "branchId", ""),
-                                            "newBranchName", getValue(command, "newName", ""),
-                                            "oldBranchName", oldBranchName
+                                            "fromBranchId", transfer.fromBranchId(),
+                                            "toBranchId", transfer.toBranchId(),
+                                            "productId", transfer.productId(),
+                                            "quantity", quantity
                                     )
                             )));
                         }
                     }
+                }
+            }
+
+            case TypedCommand.RemoveProductFromBranch remove -> {
+                // Validación: La sucursal y el producto deben existir
+                Map<String, Map<String, Serializable>> branches = getBranches(state);
+                if (!branches.containsKey(remove.branchId())) {
+                    yield Mono.error(new IllegalStateException("La sucursal no existe."));
+                } else if (!branches.get(remove.branchId()).getOrElse(HashMap.empty()).containsKey(remove.productId())) {
+                    yield Mono.error(new IllegalStateException("El producto no existe en la sucursal."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "ProductRemovedFromBranch",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of(
+                                    "branchId", remove.branchId(),
+                                    "productId", remove.productId()
+                            )
+                    )));
+                }
+            }
+
+            case TypedCommand.RemoveBranch remove -> {
+                // Validación: La sucursal debe existir y no tener productos asociados
+                Map<String, Map<String, Serializable>> branches = getBranches(state);
+                if (!branches.containsKey(remove.branchId())) {
+                    yield Mono.error(new IllegalStateException("La sucursal no existe."));
+                } else if (!branches.get(remove.branchId()).getOrElse(HashMap.empty()).isEmpty()) {
+                    yield Mono.error(new IllegalStateException("La sucursal tiene productos asociados y no puede ser eliminada."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "BranchRemoved",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of("branchId", remove.branchId()),
+                            "metadata", HashMap.of("franchiseId", getValue(state, "franchiseId", ""))
+                    )));
+                }
+            }
+
+            case TypedCommand.RemoveFranchise remove -> {
+                // Validación: La franquicia debe existir y no tener sucursales activas
+                if (!getValue(state, "franchiseExists", false)) {
+                    yield Mono.error(new IllegalStateException("La franquicia no existe."));
+                } else if (!getBranches(state).isEmpty()) {
+                    yield Mono.error(new IllegalStateException("La franquicia tiene sucursales activas y no puede ser eliminada."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "FranchiseRemoved",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of("franchiseId", remove.franchiseId())
+                    )));
+                }
+            }
+
+            case TypedCommand.AdjustProductStock adjust -> {
+                // Validación: La sucursal y el producto deben existir
+                Map<String, Map<String, Serializable>> branches = getBranches(state);
+                String branchId = Option.of(adjust.branchId()).getOrElse("");
+                if (!branches.containsKey(branchId)) {
+                    yield Mono.error(new IllegalStateException("La sucursal no existe."));
+                } else if (!branches.get(branchId).getOrElse(HashMap.empty()).containsKey(adjust.productId())) {
+                    yield Mono.error(new IllegalStateException("El producto no existe en la sucursal."));
+                } else if (adjust.newStock() < 0) {
+                    // Validación: El nuevo stock no puede ser negativo
+                    yield Mono.error(new IllegalStateException("El nuevo stock no puede ser negativo."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "ProductStockAdjusted",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of(
+                                    "branchId", branchId,
+                                    "productId", adjust.productId(),
+                                    "newStock", adjust.newStock()
+                            )
+                    )));
+                }
+            }
+
+            case TypedCommand.NotifyStockDepleted notify -> {
+                // Validación: El producto debe existir y su stock debe ser cero
+                Option<Map<String, Serializable>> product = getProducts(state).get("%s|%s".formatted(notify.productId(), notify.branchId()));
+                if (!getBranches(state).containsKey(notify.branchId())) {
+                    yield Mono.error(new IllegalStateException("La sucursal no existe."));
+                } else if (product.isEmpty()) {
+                    yield Mono.error(new IllegalStateException("El producto no existe en la sucursal."));
+                } else if (getValue(product.get(), "currentStock", (Number) 0.0).doubleValue() > 0) {
+                    yield Mono.error(new IllegalStateException("El stock del producto aún no está agotado."));
+                } else {
+                    yield Mono.just(List.of(HashMap.of(
+                            "type", "NotifyStockDepleted",
+                            "aggregateId", aggregateId,
+                            "payload", HashMap.of(
+                                    "franchiseId", getValue(state, "franchiseId", ""),
+                                    "branchId", notify.branchId(),
+                                    "productId", notify.productId()
+                            )
+                    )));
+                }
+            }
 
-                    case "AddProductToBranch" -> {
-                        // Validación: La franquicia del comando debe coincidir con la de la creación
-                        if (!state.containsValue(getValue(command, "franchiseId", ""))) {
-                            yield Mono.error(new IllegalStateException("La franquicia no corresponde al orden lógico de los eventos. Tal vez quieras ajustar la franquicia o necesites modelar una interacción nueva."));
-                        }
-
-                        // Validación: La sucursal debe existir
-                        Map<String, Serializable> branches = getValue(state, "branches", HashMap.empty());
-                        String branchId = getValue(command, "branchId", "");
-                        if (!branches.containsKey(branchId)) {
-                            yield Mono.error(new IllegalStateException("La sucursal no existe o no pertenece a la franquicia."));
-                        } else {
-                            Map<String, Serializable> existentProducts = getValue(command, "products", HashMap.<String, Serializable>empty()).filterKeys(getValue(state, "products", HashMap.<String, Serializable>empty())::containsKey);
-                            if (!existentProducts.isEmpty()) {
-                                yield Mono.error(new IllegalStateException("Hay productos que ya existen en la sucursal. %s".formatted(existentProducts)));
-                            } else {
-                                yield Mono.just(List.of(HashMap.of(
-                                        "type", "ProductAddedToBranch",
-                                        "aggregateId", getValue(command, "aggregateId", ""),
-                                        "payload", command.filterKeys(key -> !List.of("createAggregateFunc", "type", "aggregateId").contains(key))
-                                )));
-                            }
-                        }
-                    }
-
-                    case "UpdateProductStock" -> {
-                        // Validación: La sucursal y el producto deben existir
-                        Map<String, Map<String, Serializable>> branches = getValue(state, "branches", HashMap.empty());
-                        String branchId = getValue(command, "branchId", "");
-                        String productId = getValue(command, "productId", "");
-                        String keyProduct = "%s|%s".formatted(productId, branchId);
-                        if (!branches.containsKey(branchId)) {
-                            yield Mono.error(new IllegalStateException("La sucursal no existe."));
-                        } else {
-                            Map<String, Map<String, Serializable>> products = getProducts(state);
-                            if (!products.containsKey(keyProduct)) {
-                                yield Mono.error(new IllegalStateException("El producto no existe en la sucursal."));
-                            } else {
-                                double currentStock = getValue(products, keyProduct.concat(".currentStock"), 0.0);
-                                int quantityChange = getValue(command, "quantityChange", 0);
-                                double newStock = currentStock + quantityChange;
-
-                                // Validación: El stock resultante no puede ser negativo
-                                if (newStock < 0) {
-                                    yield Mono.error(new IllegalStateException("El stock disponible no es suficiente para cubrir la demanda. Disponible: %s | Faltante: %s".formatted(currentStock, Math.abs(newStock))));
-                                } else {
-                                    yield Mono.just(List.of(HashMap.of(
-                                            "type", "ProductStockUpdated",
-                                            "aggregateId", getValue(command, "aggregateId", ""),
-                                            "payload", HashMap.of(
-                                                    "branchId", branchId,
-                                                    "productId", productId,
-                                                    "quantityChange", quantityChange,
-                                                    "previousStock", currentStock,
-                                                    "currentStock", newStock
-                                            )
-                                    )));
-                                }
-                            }
-                        }
-                    }
-
-                    case "TransferProductBetweenBranches" -> {
-                        // Validación: Ambas sucursales deben existir
-                        Map<String, Map<String, Serializable>> branches = getValue(state,"branches", HashMap.empty());
-                        if (!branches.containsKey(getValue(command, "fromBranchId", "")) || !branches.containsKey(getValue(command, "toBranchId", ""))) {
-                            yield Mono.error(new IllegalStateException("Una o ambas sucursales no existen."));
-                        } else {
-                            Map<String, Serializable> fromProducts = getValue(branches, getValue(command, "fromBranchId", ""), HashMap.empty());
-                            Map<String, Serializable> toProducts = getValue(branches, getValue(command, "toBranchId", ""), HashMap.empty());
-
-                            if (!fromProducts.containsKey(getValue(command, "productId", ""))) {
-                                yield Mono.error(new IllegalStateException("El producto no existe en la sucursal de origen."));
-                            } else {
-                                int currentStock = getValue(getValue(fromProducts, getValue(command, "productId", ""), HashMap.empty()), "currentStock", 0);
-                                int quantity = getValue(command, "quantity", 0);
-
-                                if (quantity > currentStock) {
-                                    yield Mono.error(new IllegalStateException("Stock insuficiente en la sucursal de origen."));
-                                } else {
-                                    yield Mono.just(List.of(HashMap.of(
-                                            "type", "ProductTransferredBetweenBranches",
-                                            "aggregateId", getValue(command, "aggregateId", ""),
-                                            "payload", HashMap.of(
-                                                    "fromBranchId", getValue(command, "fromBranchId", ""),
-                                                    "toBranchId", getValue(command, "toBranchId", ""),
-                                                    "productId", getValue(command, "productId", ""),
-                                                    "quantity", quantity
-                                            )
-                                    )));
-                                }
-                            }
-                        }
-                    }
-
-                    case "RemoveProductFromBranch" -> {
-                        // Validación: La sucursal y el producto deben existir
-                        Map<String, Map<String, Serializable>> branches = getValue(state, "branches", HashMap.empty());
-                        if (!branches.containsKey(getValue(command, "branchId", ""))) {
-                            yield Mono.error(new IllegalStateException("La sucursal no existe."));
-                        } else {
-                            Map<String, Serializable> products = getValue(branches, getValue(command, "branchId", ""), HashMap.empty());
-                            if (!products.containsKey(getValue(command, "productId", ""))) {
-                                yield Mono.error(new IllegalStateException("El producto no existe en la sucursal."));
-                            } else {
-                                yield Mono.just(List.of(HashMap.of(
-                                        "type", "ProductRemovedFromBranch",
-                                        "aggregateId", getValue(command, "aggregateId", ""),
-                                        "payload", HashMap.of(
-                                                "branchId", getValue(command, "branchId", ""),
-                                                "productId", getValue(command, "productId", "")
-                                        )
-                                )));
-                            }
-                        }
-                    }
-
-                    case "RemoveBranch" -> {
-                        // Validación: La sucursal debe existir y no tener productos asociados
-                        Map<String, Map<String, Serializable>> branches = getValue(state, "branches", HashMap.empty());
-                        if (!branches.containsKey(getValue(command, "branchId", ""))) {
-                            yield Mono.error(new IllegalStateException("La sucursal no existe."));
-                        } else {
-                            Map<String, Serializable> products = getValue(branches, getValue(command, "branchId", ""), HashMap.empty());
-                            if (!products.isEmpty()) {
-                                yield Mono.error(new IllegalStateException("La sucursal tiene productos asociados y no puede ser eliminada."));
-                            } else {
-                                yield Mono.just(List.of(HashMap.of(
-                                        "type", "BranchRemoved",
-                                        "aggregateId", getValue(command, "aggregateId", ""),
-                                        "payload", HashMap.of(
-                                                "branchId", getValue(command, "branchId", "")
-                                        )
-                                )));
-                            }
-                        }
-                    }
-
-                    case "RemoveFranchise" -> {
-                        // Validación: La franquicia debe existir y no tener sucursales activas
-                        if (!getValue(state, "franchiseExists", false)) {
-                            yield Mono.error(new IllegalStateException("La franquicia no existe."));
-                        } else {
-                            Map<String, Map<String, Serializable>> branches = getValue(state, "branches", HashMap.empty());
-                            if (!branches.isEmpty()) {
-                                yield Mono.error(new IllegalStateException("La franquicia tiene sucursales activas y no puede ser eliminada."));
-                            } else {
-                                yield Mono.just(List.of(HashMap.of(
-                                        "type", "FranchiseRemoved",
-                                        "aggregateId", getValue(command, "aggregateId", ""),
-                                        "payload", HashMap.empty()
-                                )));
-                            }
-                        }
-                    }
-
-                    case "AdjustProductStock" -> {
-                        // Validación: La sucursal y el producto deben existir
-                        Map<String, Map<String, Serializable>> branches = getValue(state, "branches", HashMap.empty());
-                        if (!branches.containsKey(getValue(command, "branchId", ""))) {
-                            yield Mono.error(new IllegalStateException("La sucursal no existe."));
-                        } else {
-                            Map<String, Serializable> products = getValue(branches, getValue(command, "branchId", ""), HashMap.empty());
-                            if (!products.containsKey(getValue(command, "productId", ""))) {
-                                yield Mono.error(new IllegalStateException("El producto no existe en la sucursal."));
-                            } else {
-                                int newStock = getValue(command, "newStock", 0);
-                                // Validación: El nuevo stock no puede ser negativo
-                                if (newStock < 0) {
-                                    yield Mono.error(new IllegalStateException("El nuevo stock no puede ser negativo."));
-                                } else {
-                                    yield Mono.just(List.of(HashMap.of(
-                                            "type", "ProductStockAdjusted",
-                                            "aggregateId", getValue(command, "aggregateId", ""),
-                                            "payload", HashMap.of(
-                                                    "branchId", getValue(command, "branchId", ""),
-                                                    "productId", getValue(command, "productId", ""),
-                                                    "newStock", newStock
-                                            )
-                                    )));
-                                }
-                            }
-                        }
-                    }
-
-                    case "NotifyStockDepleted" -> {
-                        // Validación: El producto debe existir y su stock debe ser cero
-                        Map<String, Map<String, Serializable>> branches = getValue(state, "branches", HashMap.empty());
-                        if (!branches.containsKey(getValue(command, "branchId", ""))) {
-                            yield Mono.error(new IllegalStateException("La sucursal no existe."));
-                        } else {
-                            Map<String, Serializable> products = getValue(branches, getValue(command, "branchId", ""), HashMap.empty());
-                            if (!products.containsKey(getValue(command, "productId", ""))) {
-                                yield Mono.error(new IllegalStateException("El producto no existe en la sucursal."));
-                            } else {
-                                int currentStock = getValue(getValue(products, getValue(command, "productId", ""), HashMap.empty()), "currentStock", 0);
-                                if (currentStock > 0) {
-                                    yield Mono.error(new IllegalStateException("El stock del producto aún no está agotado."));
-                                } else {
-                                    yield Mono.just(List.of(HashMap.of(
-                                            "type", "NotifyStockDepleted",
-                                            "aggregateId", getValue(command, "aggregateId", ""),
-                                            "payload", HashMap.of(
-                                                    "branchId", getValue(command, "branchId", ""),
-                                                    "productId", getValue(command, "productId", "")
-                                            )
-                                    )));
-                                }
-                            }
-                        }
-                    }
+            case TypedCommand.Unknown unknown -> Mono.error(new IllegalArgumentException("Comando no reconocido."));
+        });
+    }
 
-                    default -> Mono.error(new IllegalArgumentException("Comando no reconocido."));
-                });
+    // Cada agotamiento reclamado entra como NotifyStockDepleted; no retrasa la respuesta del comando que lo causó.
+    // Si el despacho falla se libera el reclamo (ver StockLevels)
+    private void notifyDepleted(Map<String, Serializable> claimed) {
+        getValue(claimed, "depleted", List.<Map<String, Serializable>>empty()).forEach(product -> {
+            StockLevels.Depletion depletion = new StockLevels.Depletion(
+                getValue(product, "aggregateId", ""), getValue(product, "branchId", ""), getValue(product, "productId", ""));
+            TypedCommand.NotifyStockDepleted notify = new TypedCommand.NotifyStockDepleted(
+                depletion.aggregateId(), null, depletion.branchId(), depletion.productId());
+            executeCommand(notify, notify.toMap())
+                .contextWrite(Deadline.of(notify.type(), null).context())
+                .map(response -> response.getStatusCode().is2xxSuccessful())
+                .onErrorReturn(false)
+                .flatMap(succeeded -> {
+                    StockLevels.recordNotification(succeeded);
+                    return succeeded ? Mono.<Void>empty() : Mono.<Void>fromRunnable(() -> EventStoreFactory.releaseDepleted(depletion))
+                        .subscribeOn(Schedulers.boundedElastic());
+                })
+                .subscribe();
+        });
     }
 
     // Función para notificar eventos a sistemas externos
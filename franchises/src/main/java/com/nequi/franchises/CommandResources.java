@@ -0,0 +1,160 @@
+package com.nequi.franchises;
+
+import io.vavr.collection.HashMap;
+import io.vavr.collection.Map;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Bytes asignados y CPU por comando y etapa, leídos de los contadores por hilo de ThreadMXBean.
+// Cada hilo guarda el tramo que está midiendo (etapa + contadores al empezar); al entrar a otra etapa el tramo anterior
+// se carga a la suya, así cada byte cuenta una sola vez aunque las etapas se aniden. Los saltos de hilo se siguen con un
+// hook de Schedulers: la tarea programada desde un tramo medido se mide en su hilo y se carga a la misma etapa.
+// No se ven las subtareas que un ForkJoinPool reparte por su cuenta (ParallelProjection) ni el hilo del WriteCoalescer,
+// que es compartido entre comandos.
+public class CommandResources {
+
+    static final boolean enabled;
+    // Se mide 1 de cada N comandos; los promedios siguen siendo por comando medido
+    static final int sampleEvery = Math.max(1, env("COMMAND_RESOURCES_SAMPLE_EVERY", 1));
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Etapa medida de un comando
+    private record Usage(String stage, LongAdder bytes, LongAdder cpuNanos) {
+        Usage(String stage) {
+            this(stage, new LongAdder(), new LongAdder());
+        }
+
+        void charge(long bytes, long cpuNanos) {
+            this.bytes.add(Math.max(0, bytes));
+            this.cpuNanos.add(Math.max(0, cpuNanos));
+        }
+    }
+
+    // Tramo en curso en un hilo
+    private record Segment(Usage usage, long bytes, long cpuNanos) {}
+
+    private record Totals(AtomicLong commands, ConcurrentHashMap<String, Usage> stages) {
+        Totals() {
+            this(new AtomicLong(), new ConcurrentHashMap<>());
+        }
+    }
+
+    private static final ThreadLocal<Segment> current = new ThreadLocal<>();
+    private static final AtomicLong started = new AtomicLong();
+    // tipo de comando -> etapa -> acumulado
+    private static final ConcurrentHashMap<String, Totals> totals = new ConcurrentHashMap<>();
+
+    static {
+        enabled = env("COMMAND_RESOURCES_ENABLED", true)
+            && threads.isThreadAllocatedMemorySupported() && threads.isThreadCpuTimeSupported();
+        if (enabled) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+            threads.setThreadCpuTimeEnabled(true);
+            Schedulers.onScheduleHook(CommandResources.class.getName(), task -> {
+                Segment scheduledFrom = current.get();
+                if (scheduledFrom == null) return task;
+                Usage usage = scheduledFrom.usage();
+                return () -> {
+                    Segment previous = enter(usage);
+                    try {
+                        task.run();
+                    } finally {
+                        exit(previous);
+                    }
+                };
+            });
+        }
+    }
+
+    // Cuenta de un comando; sin muestrear no mide nada
+    public static final class Account {
+        private final String commandType;
+        private final boolean sampled;
+        private final ConcurrentHashMap<String, Usage> stages = new ConcurrentHashMap<>();
+
+        private Account(String commandType, boolean sampled) {
+            this.commandType = commandType;
+            this.sampled = sampled;
+        }
+
+        // Mide la suscripción a source y lo que ella programe en otros hilos como la etapa indicada
+        public <T> Mono<T> within(String stage, Mono<T> source) {
+            if (!sampled) return source;
+            Usage usage = stages.computeIfAbsent(stage, Usage::new);
+            return Mono.<T>from(subscriber -> {
+                Segment previous = enter(usage);
+                try {
+                    source.subscribe(subscriber);
+                } finally {
+                    exit(previous);
+                }
+            });
+        }
+
+        public long allocatedBytes() {
+            return stages.values().stream().mapToLong(usage -> usage.bytes().sum()).sum();
+        }
+
+        public long cpuNanos() {
+            return stages.values().stream().mapToLong(usage -> usage.cpuNanos().sum()).sum();
+        }
+
+        // Lo que llegue a cargarse después (tareas tardías de un comando cancelado) no entra en los totales
+        public void finish() {
+            if (!sampled) return;
+            Totals type = totals.computeIfAbsent(commandType, key -> new Totals());
+            type.commands().incrementAndGet();
+            stages.forEach((stage, usage) -> type.stages().computeIfAbsent(stage, Usage::new).charge(usage.bytes().sum(), usage.cpuNanos().sum()));
+        }
+    }
+
+    public static Account start(String commandType) {
+        return new Account(commandType, enabled && started.incrementAndGet() % sampleEvery == 0);
+    }
+
+    // Por tipo de comando: promedios por comando medido y el reparto entre etapas, para ordenar los puntos calientes
+    public static Map<String, Serializable> stats() {
+        return HashMap.<String, Serializable>of("enabled", enabled, "sampleEvery", sampleEvery, "commandTypes", HashMap.ofAll(totals).mapValues(type -> {
+            long commands = Math.max(1, type.commands().get());
+            long bytes = type.stages().values().stream().mapToLong(usage -> usage.bytes().sum()).sum();
+            long cpu = type.stages().values().stream().mapToLong(usage -> usage.cpuNanos().sum()).sum();
+            return (Serializable) HashMap.<String, Serializable>of(
+                "commands", type.commands().get(),
+                "avgAllocatedBytes", bytes / commands,
+                "avgCpuMicros", cpu / commands / 1_000,
+                "stages", HashMap.ofAll(type.stages()).mapValues(usage -> (Serializable) HashMap.<String, Serializable>of(
+                    "avgAllocatedBytes", usage.bytes().sum() / commands,
+                    "avgCpuMicros", usage.cpuNanos().sum() / commands / 1_000,
+                    "allocatedShare", bytes == 0 ? 0.0 : (double) usage.bytes().sum() / bytes)));
+        }));
+    }
+
+    // Cierra el tramo en curso del hilo (cargándolo a su etapa) y abre uno para usage
+    private static Segment enter(Usage usage) {
+        Segment previous = current.get();
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long cpuNanos = threads.getCurrentThreadCpuTime();
+        if (previous != null) previous.usage().charge(bytes - previous.bytes(), cpuNanos - previous.cpuNanos());
+        current.set(new Segment(usage, bytes, cpuNanos));
+        return previous;
+    }
+
+    // Cierra el tramo en curso y retoma la etapa anterior desde los contadores actuales
+    private static void exit(Segment previous) {
+        Segment segment = current.get();
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long cpuNanos = threads.getCurrentThreadCpuTime();
+        if (segment != null) segment.usage().charge(bytes - segment.bytes(), cpuNanos - segment.cpuNanos());
+        if (previous == null) current.remove();
+        else current.set(new Segment(previous.usage(), bytes, cpuNanos));
+    }
+}
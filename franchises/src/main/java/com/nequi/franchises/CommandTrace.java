@@ -0,0 +1,148 @@
+package com.nequi.franchises;
+
+import io.vavr.collection.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.io.Serializable;
+import java.util.function.Function;
+
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Eventos JFR del pipeline de comandos: uno por etapa y uno por comando con la duración de cada etapa.
+// Los umbrales por defecto mantienen bajo el costo en grabaciones continuas y se ajustan al grabar, por ejemplo:
+// -XX:StartFlightRecording:com.nequi.franchises.CommandExecuted#threshold=50ms
+public class CommandTrace {
+
+    @Name("com.nequi.franchises.CommandStage")
+    @Label("Command Stage")
+    @Category({"Franchises", "Commands"})
+    @Description("Una etapa del pipeline de comandos (validate, resolve, idempotency, ledger, fetch, project, decide, save, depletion)")
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static class StageEvent extends Event {
+        @Label("Stage") String stage;
+        @Label("Command Type") String commandType;
+        @Label("Aggregate Id") String aggregateId;
+        @Label("Failed") boolean failed;
+    }
+
+    @Name("com.nequi.franchises.CommandExecuted")
+    @Label("Command Executed")
+    @Category({"Franchises", "Commands"})
+    @Description("Un comando completo con el contexto y la duración de cada etapa")
+    @StackTrace(false)
+    @Threshold("100 ms")
+    static class CommandEvent extends Event {
+        @Label("Command Type") String commandType;
+        @Label("Aggregate Id") String aggregateId;
+        @Label("Outcome") String outcome;
+        @Label("Events Replayed") int eventsReplayed;
+        @Label("Payload Size") @jdk.jfr.DataAmount long payloadBytes;
+        @Label("Validate") @Timespan long validate;
+        @Label("Resolve") @Timespan long resolve;
+        @Label("Idempotency") @Timespan long idempotency;
+        @Label("Ledger") @Timespan long ledger;
+        @Label("Fetch") @Timespan long fetch;
+        @Label("Project") @Timespan long project;
+        @Label("Decide") @Timespan long decide;
+        @Label("Save") @Timespan long save;
+        @Label("Allocated") @Description("Bytes asignados por el comando en todos sus hilos (ver CommandResources)") @jdk.jfr.DataAmount long allocatedBytes;
+        @Label("CPU Time") @Timespan long cpuTime;
+        @Label("Overlapped") @Description("Tiempo de etapas que corrieron en paralelo (ver StageGraph)") @Timespan long overlapped;
+    }
+
+    private final CommandEvent command = new CommandEvent();
+    private final CommandResources.Account resources;
+
+    private CommandTrace(String commandType) {
+        command.commandType = commandType;
+        command.aggregateId = "";
+        resources = CommandResources.start(commandType);
+    }
+
+    public static CommandTrace start(Map<String, Serializable> input) {
+        CommandTrace trace = new CommandTrace(getValue(input, "type", ""));
+        trace.command.begin();
+        return trace;
+    }
+
+    // Envuelve una etapa: mide desde la suscripción hasta la señal terminal; asignaciones y CPU se cargan a la etapa
+    public <T> Function<T, Mono<Map<String, Serializable>>> stage(String name, Function<T, Mono<Map<String, Serializable>>> step) {
+        return input -> Mono.defer(() -> {
+            StageEvent event = new StageEvent();
+            event.begin();
+            long started = System.nanoTime();
+            return resources.within(name, Mono.defer(() -> step.apply(input)))
+                .doOnNext(this::aggregateIdFrom)
+                .doFinally(signal -> {
+                    record(name, System.nanoTime() - started);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.stage = name;
+                        event.commandType = command.commandType;
+                        event.aggregateId = command.aggregateId;
+                        event.failed = signal == SignalType.ON_ERROR;
+                        event.commit();
+                    }
+                });
+        });
+    }
+
+    // Lo que el comando hace fuera de las etapas (uniones, reintentos, armado de la respuesta)
+    public <T> Mono<T> pipeline(Mono<T> source) {
+        return resources.within("pipeline", source);
+    }
+
+    public void eventsReplayed(int count) {
+        command.eventsReplayed = count;
+    }
+
+    public void payloadBytes(long bytes) {
+        command.payloadBytes = bytes;
+    }
+
+    public void overlapped(long nanos) {
+        command.overlapped = nanos;
+    }
+
+    public void finish(SignalType signal) {
+        resources.finish();
+        command.end();
+        if (command.shouldCommit()) {
+            command.outcome = signal == SignalType.ON_ERROR ? "error" : signal == SignalType.CANCEL ? "cancelled" : "ok";
+            command.allocatedBytes = resources.allocatedBytes();
+            command.cpuTime = resources.cpuNanos();
+            command.commit();
+        }
+    }
+
+    private void aggregateIdFrom(Map<String, Serializable> output) {
+        Object aggregateId = getValue(output, "aggregateId", (Object) null);
+        if (aggregateId != null) command.aggregateId = String.valueOf(aggregateId);
+    }
+
+    // Etapas de un mismo nivel del grafo pueden correr en paralelo, pero cada una escribe su propio campo y el evento
+    // del comando se confirma después de que todas terminan
+    private void record(String stage, long nanos) {
+        switch (stage) {
+            case "validate" -> command.validate = nanos;
+            case "resolve" -> command.resolve = nanos;
+            case "idempotency" -> command.idempotency = nanos;
+            case "ledger" -> command.ledger = nanos;
+            case "fetch" -> command.fetch = nanos;
+            case "project" -> command.project = nanos;
+            case "decide" -> command.decide = nanos;
+            case "save" -> command.save = nanos;
+            default -> { }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.nequi.franchises;
+
+import io.vavr.collection.HashMap;
+import io.vavr.collection.HashSet;
+import io.vavr.collection.Map;
+import io.vavr.collection.Set;
+import io.vavr.control.Option;
+import io.vavr.control.Try;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Deadline de extremo a extremo por comando: viene del header X-Request-Timeout-Ms o del valor por tipo de comando
+// (COMMAND_DEADLINE_MS_<tipo>, por defecto COMMAND_DEADLINE_MS) y viaja en el contexto de Reactor.
+// Las etapas de lectura se cancelan al vencer (la cancelación interrumpe la llamada a DynamoDB en curso); las de escritura
+// solo empiezan si queda al menos COMMAND_DEADLINE_MIN_WRITE_MS y una vez empezadas no se cortan.
+public record Deadline(long expiresAtNanos, long budgetMillis) {
+
+    public static final String HEADER = "X-Request-Timeout-Ms";
+    private static final String CONTEXT_KEY = Deadline.class.getName();
+
+    static final long defaultMillis = env("COMMAND_DEADLINE_MS", 5_000);
+    static final long minWriteMillis = env("COMMAND_DEADLINE_MIN_WRITE_MS", 50);
+    // Etapas que escriben: cortarlas a mitad deja el resultado de la escritura indeterminado
+    private static final Set<String> WRITE_STAGES = HashSet.of("ledger", "save");
+
+    private static final ConcurrentHashMap<String, AtomicLong> skipped = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> cancelled = new ConcurrentHashMap<>();
+    private static final AtomicLong clientCancelled = new AtomicLong();
+
+    public static class DeadlineExceededException extends RuntimeException {
+        DeadlineExceededException(String stage, long budgetMillis) {
+            super("Se agotó el tiempo del comando (%s ms) antes de la etapa %s".formatted(budgetMillis, stage));
+        }
+    }
+
+    // El header del cliente tiene prioridad sobre el valor por tipo de comando
+    public static Deadline of(String commandType, String header) {
+        long budget = Option.of(header)
+            .flatMap(value -> Try.of(() -> Long.parseLong(value.trim())).toOption())
+            .filter(millis -> millis > 0)
+            .getOrElse(() -> (long) env("COMMAND_DEADLINE_MS_" + commandType, (int) defaultMillis));
+        return new Deadline(System.nanoTime() + Duration.ofMillis(budget).toNanos(), budget);
+    }
+
+    public Context context() {
+        return Context.of(CONTEXT_KEY, this);
+    }
+
+    public long remainingNanos() {
+        return expiresAtNanos - System.nanoTime();
+    }
+
+    public static Option<Deadline> from(ContextView context) {
+        return Option.ofOptional(context.getOrEmpty(CONTEXT_KEY));
+    }
+
+    // Presupuesto restante para propagarlo, por ejemplo al reenviar el comando a otra instancia
+    public static Option<Long> remainingMillis(ContextView context) {
+        return from(context).map(deadline -> Math.max(1, Duration.ofNanos(deadline.remainingNanos()).toMillis()));
+    }
+
+    // Antes de cada etapa se revisa el presupuesto; una lectura en curso se cancela al vencer
+    public static <T> Function<T, Mono<Map<String, Serializable>>> guard(String stage, Function<T, Mono<Map<String, Serializable>>> step) {
+        boolean write = WRITE_STAGES.contains(stage);
+        return input -> Mono.deferContextual(context -> from(context)
+            .map(deadline -> {
+                long remaining = deadline.remainingNanos();
+                if (remaining <= (write ? Duration.ofMillis(minWriteMillis).toNanos() : 0)) {
+                    count(skipped, stage);
+                    return Mono.<Map<String, Serializable>>error(new DeadlineExceededException(stage, deadline.budgetMillis()));
+                }
+                return write ? step.apply(input) : step.apply(input)
+                    .timeout(Duration.ofNanos(remaining))
+                    .onErrorMap(TimeoutException.class, e -> {
+                        count(cancelled, stage);
+                        return new DeadlineExceededException(stage, deadline.budgetMillis());
+                    });
+            })
+            .getOrElse(() -> step.apply(input)));
+    }
+
+    // El cliente cerró la conexión: WebFlux cancela la suscripción y el trabajo pendiente se abandona
+    public static void recordClientCancelled() {
+        clientCancelled.incrementAndGet();
+    }
+
+    public static boolean isExceeded(Throwable error) {
+        for (Throwable current = error; current != null; current = current.getCause()) {
+            if (current instanceof DeadlineExceededException) return true;
+        }
+        return false;
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.of(
+            "defaultMs", defaultMillis,
+            "minWriteMs", minWriteMillis,
+            "skippedBeforeStage", HashMap.ofAll(skipped).mapValues(AtomicLong::get),
+            "cancelledInStage", HashMap.ofAll(cancelled).mapValues(AtomicLong::get),
+            "clientCancelled", clientCancelled.get());
+    }
+
+    private static void count(ConcurrentHashMap<String, AtomicLong> counters, String stage) {
+        counters.computeIfAbsent(stage, key -> new AtomicLong()).incrementAndGet();
+    }
+}
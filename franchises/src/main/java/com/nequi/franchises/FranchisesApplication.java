@@ -4,15 +4,14 @@ import io.github.cdimascio.dotenv.Dotenv;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
-import java.util.stream.Collectors;
-
 @SpringBootApplication
 public class FranchisesApplication {
 
 	public static void main(String[] args) {
-		Dotenv dotenv = Dotenv.load();  // Cargar las variables del archivo .env
-		var result = dotenv.entries().stream().peek(entry -> System.setProperty(entry.getKey(), entry.getValue())).collect(Collectors.toList());
-		System.out.println(result);
+		// Cargar las variables del archivo .env como propiedades del sistema (sin imprimirlas: pueden contener credenciales)
+		Dotenv.configure().ignoreIfMissing().load()
+			.entries(Dotenv.Filter.DECLARED_IN_ENV_FILE)
+			.forEach(entry -> System.setProperty(entry.getKey(), entry.getValue()));
 
 		SpringApplication.run(FranchisesApplication.class, args);
 	}
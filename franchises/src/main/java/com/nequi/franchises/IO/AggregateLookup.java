@@ -0,0 +1,107 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.nequi.franchises.util.Utils.env;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Índice clave de negocio (franchiseId, franchiseId + branchId) -> aggregateId, escrito en la misma transacción que los eventos
+public class AggregateLookup {
+
+    static final String TABLE = "AggregateLookup";
+    // Cota de cuánto puede otra instancia seguir resolviendo una clave ya borrada
+    static final long cacheTtlMillis = env("LOOKUP_CACHE_TTL_MS", 10_000);
+    static final int cacheMaxEntries = env("LOOKUP_CACHE_MAX_ENTRIES", 100_000);
+
+    // Near cache local (aggregateId, expira en); solo se cachean claves encontradas
+    private static final ConcurrentHashMap<String, Tuple2<String, Long>> nearCache = new ConcurrentHashMap<>();
+
+    public static String franchiseKey(String franchiseId) {
+        return "franchise#" + franchiseId;
+    }
+
+    // Los branchId solo son únicos dentro de su franquicia
+    public static String branchKey(String franchiseId, String branchId) {
+        return "branch#%s#%s".formatted(franchiseId, branchId);
+    }
+
+    // Los eventos de sucursal traen la franquicia en metadata.franchiseId; sin ella no se indexa la sucursal
+    public static List<TransactWriteItem> writesFor(String aggregateId, Map<String, Serializable> event) {
+        Map<String, Serializable> payload = getValue(event, "payload", HashMap.empty());
+        return switch (getValue(event, "type", "")) {
+            case "FranchiseCreated" -> List.of(put(franchiseKey(getValue(payload, "franchiseId", "")), aggregateId));
+            // El payload de BranchAdded es {branchId: branchName}
+            case "BranchAdded" -> franchiseOf(event).toList().flatMap(franchiseId -> payload.keySet().toList().map(branchId -> put(branchKey(franchiseId, branchId), aggregateId)));
+            default -> removedKeys(event).map(AggregateLookup::delete);
+        };
+    }
+
+    // Se llama solo después de confirmar la transacción: si falla, la entrada cacheada sigue siendo válida. Las demás
+    // instancias dejan de servir la clave borrada cuando vence su entrada (LOOKUP_CACHE_TTL_MS)
+    public static void committed(List<Map<String, Serializable>> events) {
+        events.flatMap(AggregateLookup::removedKeys).forEach(nearCache::remove);
+    }
+
+    private static List<String> removedKeys(Map<String, Serializable> event) {
+        Map<String, Serializable> payload = getValue(event, "payload", HashMap.empty());
+        return switch (getValue(event, "type", "")) {
+            case "BranchRemoved" -> franchiseOf(event).toList().map(franchiseId -> branchKey(franchiseId, getValue(payload, "branchId", "")));
+            case "FranchiseRemoved" -> List.of(franchiseKey(getValue(payload, "franchiseId", "")));
+            default -> List.empty();
+        };
+    }
+
+    // La mayoría de los eventos no traen metadata
+    private static Option<String> franchiseOf(Map<String, Serializable> event) {
+        Map<String, Serializable> metadata = getValue(event, "metadata", HashMap.empty());
+        return Option.of(getValue(metadata, "franchiseId", (String) null)).filter(id -> !id.isBlank());
+    }
+
+    public static Option<String> lookup(DynamoDbClient client, String businessKey) {
+        long now = System.currentTimeMillis();
+        Tuple2<String, Long> cached = nearCache.get(businessKey);
+        if (cached != null && cached._2() > now) return Option.some(cached._1());
+
+        GetItemResponse response = client.getItem(GetItemRequest.builder()
+            .tableName(TABLE)
+            .key(HashMap.of("businessKey", AttributeValue.builder().s(businessKey).build()).toJavaMap())
+            .projectionExpression("aggregateId")
+            .build());
+        Option<String> aggregateId = response.hasItem() && response.item().containsKey("aggregateId")
+            ? Option.some(response.item().get("aggregateId").s())
+            : Option.none();
+
+        if (nearCache.size() >= cacheMaxEntries) nearCache.clear();
+        aggregateId.forEach(id -> nearCache.put(businessKey, Tuple.of(id, now + cacheTtlMillis)));
+        return aggregateId;
+    }
+
+    // Una franquicia no puede reclamar una clave de otro agregado; reescribir la propia es idempotente
+    private static TransactWriteItem put(String businessKey, String aggregateId) {
+        return TransactWriteItem.builder().put(Put.builder()
+            .tableName(TABLE)
+            .item(HashMap.of(
+                "businessKey", AttributeValue.builder().s(businessKey).build(),
+                "aggregateId", AttributeValue.builder().s(aggregateId).build()).toJavaMap())
+            .conditionExpression("attribute_not_exists(businessKey) OR aggregateId = :aggregateId")
+            .expressionAttributeValues(HashMap.of(":aggregateId", AttributeValue.builder().s(aggregateId).build()).toJavaMap())
+            .build()).build();
+    }
+
+    private static TransactWriteItem delete(String businessKey) {
+        return TransactWriteItem.builder().delete(Delete.builder()
+            .tableName(TABLE)
+            .key(HashMap.of("businessKey", AttributeValue.builder().s(businessKey).build()).toJavaMap())
+            .build()).build();
+    }
+}
@@ -0,0 +1,139 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.control.Option;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Particionamiento de escrituras para agregados "calientes": las versiones nuevas se reparten entre N claves de partición
+public class AggregateSharding {
+
+    public record ShardLayout(int shardCount, int shardedFromVersion) {
+        public static final ShardLayout SINGLE = new ShardLayout(1, Integer.MAX_VALUE);
+
+        public boolean isSharded() {
+            return shardCount > 1;
+        }
+
+        // Sufijo determinístico por versión: las versiones previas a la promoción permanecen en la clave base
+        public String partitionKey(String aggregateId, int version) {
+            return !isSharded() || version < shardedFromVersion ? aggregateId : shardKey(aggregateId, version % shardCount);
+        }
+
+        // Todas las claves que pueden contener eventos del agregado (clave base + shards)
+        public List<String> partitionKeys(String aggregateId) {
+            return isSharded()
+                ? List.of(aggregateId).appendAll(List.range(0, shardCount).map(shard -> shardKey(aggregateId, shard)))
+                : List.of(aggregateId);
+        }
+    }
+
+    static final String TABLE = "AggregateShards";
+    static final boolean enabled = env("EVENTS_SHARDING_ENABLED", false);
+    static final int shardCount = env("EVENTS_SHARD_COUNT", 8);
+    static final int hotWritesThreshold = env("EVENTS_SHARD_HOT_WRITES", 200);
+    static final long hotWindowMillis = env("EVENTS_SHARD_HOT_WINDOW_MS", 10_000);
+    static final long layoutTtlMillis = env("EVENTS_SHARD_LAYOUT_TTL_MS", 5_000);
+    static final int cacheMaxEntries = env("EVENTS_SHARD_CACHE_MAX_ENTRIES", 100_000);
+
+    // Caché local del layout por agregado (layout, instante de carga). Un layout particionado es definitivo (la promoción
+    // es condicional y nunca se revierte), así que solo los no particionados se vuelven a leer al vencer
+    private static final ConcurrentHashMap<String, Tuple2<ShardLayout, Long>> layouts = new ConcurrentHashMap<>();
+    // Ventana fija de escrituras por agregado (inicio de ventana, escrituras)
+    private static final ConcurrentHashMap<String, Tuple2<Long, Integer>> writeWindows = new ConcurrentHashMap<>();
+
+    static String shardKey(String aggregateId, int shard) {
+        return "%s#%d".formatted(aggregateId, shard);
+    }
+
+    // La lectura va fuera del mapa: dos lecturas concurrentes del mismo agregado son posibles, pero ninguna bloquea a otros
+    // agregados. Gana la lectura que empezó más tarde, así una promoción registrada mientras tanto no se pisa
+    public static ShardLayout layoutOf(DynamoDbClient client, String aggregateId) {
+        if (!enabled) return ShardLayout.SINGLE;
+        long now = System.currentTimeMillis();
+        Tuple2<ShardLayout, Long> cached = layouts.get(aggregateId);
+        if (cached != null && (cached._1().isSharded() || now - cached._2() <= layoutTtlMillis)) return cached._1();
+        evictIfFull(layouts, entry -> !entry._1().isSharded() && now - entry._2() > layoutTtlMillis);
+        return layouts.merge(aggregateId, Tuple.of(readLayout(client, aggregateId), now),
+            (current, loaded) -> current._1().isSharded() || current._2() > loaded._2() ? current : loaded)._1();
+    }
+
+    private static ShardLayout readLayout(DynamoDbClient client, String aggregateId) {
+        GetItemResponse response = client.getItem(GetItemRequest.builder()
+            .tableName(TABLE)
+            .key(HashMap.of("aggregateId", AttributeValue.builder().s(aggregateId).build()).toJavaMap())
+            .consistentRead(true)
+            .build());
+        return response.hasItem() && !response.item().isEmpty()
+            ? new ShardLayout(Integer.parseInt(response.item().get("shardCount").n()), Integer.parseInt(response.item().get("shardedFromVersion").n()))
+            : ShardLayout.SINGLE;
+    }
+
+    // Condición que viaja en la misma transacción que los eventos: falla si otra instancia promovió el agregado mientras
+    // este escritor lo veía sin particionar. Solo hace falta antes de la promoción: el layout particionado ya no cambia,
+    // así las escrituras de un agregado caliente no pasan todas por su ítem de AggregateShards
+    public static Option<TransactWriteItem> layoutCondition(String aggregateId, ShardLayout layout) {
+        if (!enabled || layout.isSharded()) return Option.none();
+        return Option.of(TransactWriteItem.builder().conditionCheck(ConditionCheck.builder()
+            .tableName(TABLE)
+            .key(HashMap.of("aggregateId", AttributeValue.builder().s(aggregateId).build()).toJavaMap())
+            .conditionExpression("attribute_not_exists(aggregateId)")
+            .build()).build());
+    }
+
+    // Regla automática de promoción: más de N escrituras en la ventana convierten al agregado en "caliente"
+    public static void onWriteSuccess(DynamoDbClient client, String aggregateId, int writes, int nextVersion) {
+        if (!enabled || layoutOf(client, aggregateId).isSharded()) return;
+        long now = System.currentTimeMillis();
+        evictIfFull(writeWindows, window -> now - window._1() > hotWindowMillis);
+        var window = writeWindows.compute(aggregateId, (key, current) -> current == null || now - current._1() > hotWindowMillis
+            ? Tuple.of(now, writes)
+            : Tuple.of(current._1(), current._2() + writes));
+        if (window._2() >= hotWritesThreshold) promote(client, aggregateId, nextVersion);
+    }
+
+    public static void onWriteFailure(DynamoDbClient client, String aggregateId, int nextVersion, Throwable error) {
+        if (!enabled) return;
+        if (isThrottling(error) && !layoutOf(client, aggregateId).isSharded()) promote(client, aggregateId, nextVersion);
+        if (error instanceof TransactionCanceledException) layouts.remove(aggregateId);
+    }
+
+    public static boolean isThrottling(Throwable error) {
+        return error instanceof ProvisionedThroughputExceededException
+            || error instanceof TransactionCanceledException canceled && canceled.cancellationReasons().stream()
+                .anyMatch(reason -> "ThrottlingError".equals(reason.code()) || "ProvisionedThroughputExceeded".equals(reason.code()));
+    }
+
+    // Cachés acotadas: al llenarse se descartan primero las entradas vencidas y, si no alcanza, todas
+    private static <V> void evictIfFull(ConcurrentHashMap<String, V> cache, Predicate<V> expired) {
+        if (cache.size() < cacheMaxEntries) return;
+        cache.values().removeIf(expired);
+        if (cache.size() >= cacheMaxEntries) cache.clear();
+    }
+
+    // La promoción es condicional: solo la primera instancia en promover define el layout
+    static void promote(DynamoDbClient client, String aggregateId, int fromVersion) {
+        try {
+            client.putItem(PutItemRequest.builder()
+                .tableName(TABLE)
+                .item(HashMap.of(
+                    "aggregateId", AttributeValue.builder().s(aggregateId).build(),
+                    "shardCount", AttributeValue.builder().n(String.valueOf(shardCount)).build(),
+                    "shardedFromVersion", AttributeValue.builder().n(String.valueOf(fromVersion)).build()).toJavaMap())
+                .conditionExpression("attribute_not_exists(aggregateId)")
+                .build());
+            layouts.put(aggregateId, Tuple.of(new ShardLayout(shardCount, fromVersion), System.currentTimeMillis()));
+        } catch (ConditionalCheckFailedException e) {
+            layouts.remove(aggregateId);
+        }
+        writeWindows.remove(aggregateId);
+    }
+}
@@ -0,0 +1,256 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static com.nequi.franchises.IO.EventStoreFactory.convertToAttributeValue;
+import static com.nequi.franchises.util.Utils.env;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Feed global de eventos para que proyectores e integraciones lean "todo lo que pasó desde la posición X" sin un Scan.
+// Cada evento confirmado se copia, en la misma transacción, a EventFeed con clave (bucket#shard, position):
+// - bucket: inicio del intervalo de EVENT_FEED_BUCKET_SECONDS en que se confirmó; la clave caliente rota con el tiempo
+// - shard: hash del agregado entre EVENT_FEED_SHARDS particiones, para repartir las escrituras de un mismo bucket
+// - position: "milisegundos#aggregateId#versión", creciente y única; es el checkpoint de los lectores
+// Los lectores mezclan los shards de cada bucket por posición y nunca leen más allá de ahora - EVENT_FEED_SETTLE_MS,
+// así una transacción confirmada con un reloj algo atrasado todavía cae delante del lector. EventFeedBuckets lista los
+// buckets con eventos para que la puesta al día salte los intervalos vacíos.
+// La posición es el reloj del escritor antes de la transacción (DynamoDB no asigna una al confirmar): una transacción que
+// confirma más de EVENT_FEED_SETTLE_MS después (reintentos, pausas largas, relojes desfasados) queda detrás de lectores
+// que ya pasaron esa posición. Por eso tail y subscribe releen en cada poll los últimos EVENT_FEED_OVERLAP_MS detrás de
+// su posición y descartan los (aggregateId, versión) ya entregados. Solo una confirmación más atrasada que ese margen se
+// pierde; se cuenta en lateCommits (/admin/writes).
+// El feed duplica el payload de cada evento en otra tabla: está apagado por defecto (EVENT_FEED_ENABLED) y requiere las
+// tablas EventFeed, EventFeedBuckets y EventFeedCheckpoints de event-store.yml.
+public class EventFeed {
+
+    static final boolean enabled = env("EVENT_FEED_ENABLED", false);
+    static final String TABLE = "EventFeed";
+    static final String BUCKETS_TABLE = "EventFeedBuckets";
+    static final String CHECKPOINTS_TABLE = "EventFeedCheckpoints";
+    // Cambiar el tamaño del bucket o los shards con datos ya escritos deja de encontrar los buckets anteriores
+    static final long bucketMillis = Duration.ofSeconds(env("EVENT_FEED_BUCKET_SECONDS", 3600)).toMillis();
+    static final int shards = env("EVENT_FEED_SHARDS", 4);
+    static final long settleMillis = env("EVENT_FEED_SETTLE_MS", 10_000);
+    // Al menos settleMillis; los (aggregateId, versión) entregados dentro del margen se recuerdan por lector
+    static final long overlapMillis = Math.max(env("EVENT_FEED_OVERLAP_MS", 120_000), settleMillis);
+    static final int pageSize = env("EVENT_FEED_PAGE_SIZE", 500);
+    static final long pollMillis = env("EVENT_FEED_POLL_MS", 1_000);
+    static final int checkpointEvery = env("EVENT_FEED_CHECKPOINT_EVERY", 500);
+
+    // Posición anterior a cualquier evento
+    public static final String START = "0";
+    private static final String DIRECTORY_KEY = "buckets";
+
+    // Buckets que esta instancia ya registró en el directorio
+    private static final java.util.Set<Long> markedBuckets = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong lateCommits = new AtomicLong();
+
+    public static String position(Instant committedAt, String aggregateId, int version) {
+        return "%013d#%s#%010d".formatted(committedAt.toEpochMilli(), aggregateId, version);
+    }
+
+    // Copias de los eventos para el feed; viajan en la transacción de los eventos
+    public static List<TransactWriteItem> writesFor(String aggregateId, List<Tuple2<Map<String, Serializable>, Integer>> versionedEvents, Instant committedAt) {
+        if (!enabled) return List.empty();
+        String partition = partitionKey(bucketOf(committedAt.toEpochMilli()), shardOf(aggregateId));
+        return versionedEvents.map(versioned -> TransactWriteItem.builder().put(Put.builder()
+            .tableName(TABLE)
+            .item(HashMap.of(
+                "bucket", AttributeValue.builder().s(partition).build(),
+                "position", AttributeValue.builder().s(position(committedAt, aggregateId, versioned._2())).build(),
+                "aggregateId", AttributeValue.builder().s(aggregateId).build(),
+                "version", AttributeValue.builder().n(String.valueOf(versioned._2())).build(),
+                "type", AttributeValue.builder().s(getValue(versioned._1(), "type", "")).build(),
+                "payload", convertToAttributeValue(getValue(versioned._1(), "payload", HashMap.empty()))).toJavaMap())
+            .build()).build());
+    }
+
+    // Se registra el bucket antes de la transacción: un bucket registrado sin eventos no molesta, uno con eventos sin registrar sí.
+    // Es un put idempotente y cada instancia lo hace una vez por bucket, así el directorio no es una clave caliente.
+    public static void markBucket(DynamoDbClient client, Instant committedAt) {
+        if (!enabled) return;
+        long bucket = bucketOf(committedAt.toEpochMilli());
+        if (markedBuckets.contains(bucket)) return;
+        client.putItem(PutItemRequest.builder()
+            .tableName(BUCKETS_TABLE)
+            .item(HashMap.of(
+                "feed", AttributeValue.builder().s(DIRECTORY_KEY).build(),
+                "bucket", AttributeValue.builder().n(String.valueOf(bucket)).build()).toJavaMap())
+            .build());
+        markedBuckets.add(bucket);
+    }
+
+    // Llamado al confirmar la transacción: una confirmación posterior al margen de relectura pudo perderse para los lectores
+    public static void committed(Instant committedAt) {
+        if (enabled && System.currentTimeMillis() - committedAt.toEpochMilli() > overlapMillis) lateCommits.incrementAndGet();
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.of("enabled", enabled, "settleMillis", settleMillis, "overlapMillis", overlapMillis, "lateCommits", lateCommits.get());
+    }
+
+    // Clientes nuevos pueden apuntar a otro almacenamiento: el directorio se vuelve a registrar
+    static void forgetMarkedBuckets() {
+        markedBuckets.clear();
+    }
+
+    // Eventos posteriores a after hasta el horizonte asentado; termina al alcanzarlo
+    public static Flux<Map<String, Object>> read(DynamoDbAsyncClient client, String after) {
+        if (!enabled) return Flux.error(new IllegalStateException("El feed de eventos está deshabilitado (EVENT_FEED_ENABLED)"));
+        long horizon = System.currentTimeMillis() - settleMillis;
+        if (millisOf(after) >= horizon) return Flux.empty();
+        String horizonPosition = "%013d".formatted(horizon);
+        return buckets(client, bucketOf(millisOf(after)), bucketOf(horizon))
+            .concatMap(bucket -> readBucket(client, bucket, after, horizonPosition))
+            .map(EventFeed::toEvent);
+    }
+
+    // Puesta al día y luego seguimiento: al alcanzar el horizonte vuelve a leer cada EVENT_FEED_POLL_MS desde la posición más
+    // alta entregada menos EVENT_FEED_OVERLAP_MS, y descarta lo ya entregado. Un evento confirmado tarde puede llegar
+    // después de otros con posición mayor
+    public static Flux<Map<String, Object>> tail(DynamoDbAsyncClient client, String after) {
+        AtomicReference<String> last = new AtomicReference<>(after);
+        // (aggregateId#versión) -> milisegundos de su posición, solo dentro del margen de relectura
+        java.util.Map<String, Long> delivered = new ConcurrentHashMap<>();
+        return Flux.defer(() -> {
+                String from = last.get();
+                long rewound = Math.max(0, millisOf(from) - overlapMillis);
+                delivered.values().removeIf(millis -> millis < rewound);
+                return read(client, from.equals(START) ? START : "%013d".formatted(rewound));
+            })
+            .filter(event -> delivered.putIfAbsent(deliveryKey(event), millisOf(getValue(event, "position", START))) == null)
+            .doOnNext(event -> last.accumulateAndGet(getValue(event, "position", START), EventFeed::maxPosition))
+            .repeatWhen(completed -> completed.delayElements(Duration.ofMillis(pollMillis)));
+    }
+
+    // Suscripción con checkpoint: retoma desde la última posición confirmada del suscriptor (menos el margen de relectura)
+    // y la guarda cada EVENT_FEED_CHECKPOINT_EVERY eventos procesados (o tras un poll sin más). Entrega al menos una vez:
+    // tras un reinicio se repiten los eventos del margen, así que el handler debe ser idempotente.
+    public static Flux<Map<String, Object>> subscribe(DynamoDbClient client, DynamoDbAsyncClient asyncClient, String subscriberId,
+                                                      Function<Map<String, Object>, Mono<Void>> handler) {
+        AtomicReference<String> checkpoint = new AtomicReference<>(START);
+        return Mono.fromCallable(() -> loadCheckpoint(client, subscriberId))
+            .subscribeOn(Schedulers.boundedElastic())
+            .doOnNext(checkpoint::set)
+            .flatMapMany(after -> tail(asyncClient, after))
+            .concatMap(event -> handler.apply(event).thenReturn(event))
+            .bufferTimeout(checkpointEvery, Duration.ofMillis(pollMillis))
+            // Un evento tardío no hace retroceder el checkpoint
+            .concatMap(processed -> Mono.fromRunnable(() -> saveCheckpoint(client, subscriberId, checkpoint.accumulateAndGet(
+                    List.ofAll(processed).map(event -> getValue(event, "position", START)).reduce(EventFeed::maxPosition), EventFeed::maxPosition)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .thenMany(Flux.fromIterable(processed)));
+    }
+
+    public static String loadCheckpoint(DynamoDbClient client, String subscriberId) {
+        GetItemResponse response = client.getItem(GetItemRequest.builder()
+            .tableName(CHECKPOINTS_TABLE)
+            .key(HashMap.of("subscriberId", AttributeValue.builder().s(subscriberId).build()).toJavaMap())
+            .consistentRead(true)
+            .build());
+        return response.hasItem() && response.item().containsKey("position") ? response.item().get("position").s() : START;
+    }
+
+    public static void saveCheckpoint(DynamoDbClient client, String subscriberId, String position) {
+        client.putItem(PutItemRequest.builder()
+            .tableName(CHECKPOINTS_TABLE)
+            .item(HashMap.of(
+                "subscriberId", AttributeValue.builder().s(subscriberId).build(),
+                "position", AttributeValue.builder().s(position).build()).toJavaMap())
+            .build());
+    }
+
+    private static Flux<Long> buckets(DynamoDbAsyncClient client, long from, long to) {
+        return Flux.from(client.queryPaginator(QueryRequest.builder()
+                .tableName(BUCKETS_TABLE)
+                .keyConditionExpression("feed = :feed AND #bucket BETWEEN :from AND :to")
+                .expressionAttributeNames(java.util.Map.of("#bucket", "bucket"))
+                .expressionAttributeValues(HashMap.of(
+                    ":feed", AttributeValue.builder().s(DIRECTORY_KEY).build(),
+                    ":from", AttributeValue.builder().n(String.valueOf(from)).build(),
+                    ":to", AttributeValue.builder().n(String.valueOf(to)).build()).toJavaMap())
+                .build()))
+            .concatMapIterable(QueryResponse::items)
+            .map(item -> Long.parseLong(item.get("bucket").n()));
+    }
+
+    // Cada shard llega ordenado por posición: la mezcla conserva el orden global del bucket
+    @SuppressWarnings("unchecked")
+    private static Flux<java.util.Map<String, AttributeValue>> readBucket(DynamoDbAsyncClient client, long bucket, String after, String horizonPosition) {
+        Publisher<java.util.Map<String, AttributeValue>>[] sources = List.range(0, shards)
+            .map(shard -> readShard(client, partitionKey(bucket, shard), after, horizonPosition))
+            .toJavaList()
+            .toArray(new Publisher[0]);
+        return Flux.mergeComparing(Comparator.comparing((java.util.Map<String, AttributeValue> item) -> item.get("position").s()), sources);
+    }
+
+    // BETWEEN incluye after: el evento ya entregado se descarta aquí
+    private static Flux<java.util.Map<String, AttributeValue>> readShard(DynamoDbAsyncClient client, String partition, String after, String horizonPosition) {
+        return Flux.from(client.queryPaginator(QueryRequest.builder()
+                .tableName(TABLE)
+                .keyConditionExpression("#bucket = :bucket AND #position BETWEEN :after AND :horizon")
+                .expressionAttributeNames(java.util.Map.of("#bucket", "bucket", "#position", "position"))
+                .expressionAttributeValues(HashMap.of(
+                    ":bucket", AttributeValue.builder().s(partition).build(),
+                    ":after", AttributeValue.builder().s(after).build(),
+                    ":horizon", AttributeValue.builder().s(horizonPosition).build()).toJavaMap())
+                .limit(pageSize)
+                .build()))
+            .concatMapIterable(QueryResponse::items)
+            .filter(item -> !after.equals(item.get("position").s()));
+    }
+
+    private static Map<String, Object> toEvent(java.util.Map<String, AttributeValue> item) {
+        return HashMap.of(
+            "position", item.get("position").s(),
+            "aggregateId", item.get("aggregateId").s(),
+            "version", item.get("version").n(),
+            "type", item.get("type").s(),
+            "payload", Option.of(item.get("payload")).map(EventStoreFactory::convertAttributeValue).getOrElse(HashMap.empty()));
+    }
+
+    private static String deliveryKey(Map<String, Object> event) {
+        return getValue(event, "aggregateId", "") + "#" + getValue(event, "version", "");
+    }
+
+    private static String maxPosition(String a, String b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static long bucketOf(long millis) {
+        return millis - Math.floorMod(millis, bucketMillis);
+    }
+
+    private static int shardOf(String aggregateId) {
+        return Math.floorMod(aggregateId.hashCode(), shards);
+    }
+
+    private static String partitionKey(long bucket, int shard) {
+        return "%d#%d".formatted(bucket, shard);
+    }
+
+    private static long millisOf(String position) {
+        int separator = position.indexOf('#');
+        return Long.parseLong(separator < 0 ? position : position.substring(0, separator));
+    }
+}
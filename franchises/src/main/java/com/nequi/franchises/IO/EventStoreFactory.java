@@ -1,27 +1,85 @@
 package com.nequi.franchises.IO;
 
+import com.nequi.franchises.IO.AggregateSharding.ShardLayout;
 import com.nequi.franchises.util.Utils;
 import io.vavr.Function1;
 import io.vavr.Function2;
+import io.vavr.Function3;
+import io.vavr.Lazy;
 import io.vavr.Tuple;
 import io.vavr.Tuple2;
 import io.vavr.collection.HashMap;
+import io.vavr.collection.HashSet;
 import io.vavr.collection.List;
 import io.vavr.collection.Map;
+import io.vavr.collection.Set;
+import io.vavr.control.Option;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 import java.io.Serializable;
+import java.math.BigDecimal;
 import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 import static com.nequi.franchises.util.Utils.getValue;
 
 public class EventStoreFactory {
 
     // DynamoDB client creation (can be injected or passed by HOF)
-    private static final DynamoDbClient dynamoDbClient = DynamoDbClient.builder().build(); // Ideally passed as dependency
+    // Los clientes se construyen en el primer uso y no durante el arranque; el cliente HTTP y la región explícitos
+    // evitan el descubrimiento por ServiceLoader y la cadena de proveedores de región
+    private static volatile Lazy<DynamoDbClient> dynamoDbClient = Lazy.of(() -> withRegion(DynamoDbClient.builder()
+        .httpClientBuilder(ApacheHttpClient.builder())).build()); // Ideally passed as dependency
+    private static volatile Lazy<DynamoDbAsyncClient> dynamoDbAsyncClient = Lazy.of(() -> withRegion(DynamoDbAsyncClient.builder()
+        .httpClientBuilder(NettyNioAsyncHttpClient.builder())).build());
+    // Las escrituras de agregados distintos que coinciden en la ventana viajan en una sola transacción
+    private static final Lazy<WriteCoalescer> writeCoalescer = Lazy.of(() -> new WriteCoalescer(request -> dynamoDbAsyncClient.get().transactWriteItems(request)));
+    private static final int ledgerMaxAttempts = Utils.env("STOCK_LEDGER_MAX_ATTEMPTS", 3);
+
+    // Sustituye los clientes, por ejemplo por un DynamoDB en memoria en pruebas y benchmarks
+    public static void useClients(DynamoDbClient client, DynamoDbAsyncClient asyncClient) {
+        dynamoDbClient = Lazy.of(() -> client);
+        dynamoDbAsyncClient = Lazy.of(() -> asyncClient);
+        EventFeed.forgetMarkedBuckets();
+    }
+
+    private static <B extends AwsClientBuilder<B, ?>> B withRegion(B builder) {
+        Option.of(Utils.env("AWS_REGION", (String) null)).forEach(region -> builder.region(Region.of(region)));
+        return builder;
+    }
+
+    public static Map<String, Serializable> writeStats() {
+        Map<String, Serializable> coalescer = writeCoalescer.isEvaluated() ? writeCoalescer.get().stats() : HashMap.of("enabled", WriteCoalescer.enabled, "writes", 0L);
+        return coalescer.put("eventFeed", EventFeed.stats());
+    }
+
+    static final String TIMESTAMP_INDEX = "AggregateTimestampIndex";
+    // El índice compara timestamp como texto: con 9 decimales fijos al escribir y al consultar, el orden lexicográfico es
+    // el cronológico ("…:00Z" de ISO_INSTANT quedaría por encima de "…:00.123Z"). Los eventos escritos antes con
+    // ISO_INSTANT solo pueden quedar mal ordenados frente a una consulta dentro del mismo segundo
+    static final DateTimeFormatter TIMESTAMP_FORMAT = new DateTimeFormatterBuilder().appendInstant(9).toFormatter();
+
+    // Atributos que lee el replay ("type" es palabra reservada de DynamoDB)
+    static final String REPLAY_PROJECTION = "version, #type, payload";
+    static final java.util.Map<String, String> REPLAY_ATTRIBUTE_NAMES = java.util.Map.of("#type", "type");
+    // Eventos que projectState no aplica: basta con su versión y tipo
+    private static final Set<String> IGNORED_BY_PROJECTION = HashSet.of("NotifyStockDepleted", "StockDepletedNotificationSent");
 
     // Consulta a DynamoDB para obtener todos los aggregateId
     public static Function1<String, Boolean> checkIfHashExistsInDynamo() {
@@ -32,7 +90,7 @@ public class EventStoreFactory {
                     .expressionAttributeValues(HashMap.of(":hash", AttributeValue.builder().s(hash).build()).toJavaMap())
                     .build();
 
-            QueryResponse response = dynamoDbClient.query(queryRequest);
+            QueryResponse response = dynamoDbClient.get().query(queryRequest);
 
             // Si hay algún item, el hash ya existe
             return !response.items().isEmpty();
@@ -41,32 +99,192 @@ public class EventStoreFactory {
 
     // Función sin argumentos que retorna una Function1
     public static Function1<String, List<Map<String, Object>>> fetchEventsFromDynamo() {
+        return fetchEventsFromDynamo(true);
+    }
+
+    // consistent = false lee con consistencia eventual (mitad de capacidad); ver ReadConsistency
+    public static Function1<String, List<Map<String, Object>>> fetchEventsFromDynamo(boolean consistent) {
         return aggregateId -> {
-            // Configurar la solicitud de consulta a DynamoDB (ajusta los nombres de tablas y atributos según tu diseño)
-            QueryRequest queryRequest = QueryRequest.builder()
-                .tableName("Events") // Nombre de la tabla en DynamoDB
-                .keyConditionExpression("aggregateId = :aggregateId")
-                .expressionAttributeValues(HashMap.of(":aggregateId", AttributeValue.builder().s(aggregateId).build()).toJavaMap())
-                .consistentRead(true)
-                .build();
+            ShardLayout layout = AggregateSharding.layoutOf(dynamoDbClient.get(), aggregateId);
+
+            // Agregado sin particionar: una sola consulta sobre la clave base
+            if (!layout.isSharded()) {
+                QueryResponse response = dynamoDbClient.get().query(eventsQuery(aggregateId, consistent));
+                ReadConsistency.recordCapacity(consistent, response.consumedCapacity());
+                return List.ofAll(response.items().stream()).map(item -> toEvent(aggregateId, item));
+            }
 
-            // Ejecutar la consulta en DynamoDB
-            QueryResponse response = dynamoDbClient.query(queryRequest);
-
-            return List.ofAll(response.items().stream())
-                .map(item -> HashMap.of(
-                    "aggregateId", item.get("aggregateId").s(),
-                    "version", item.get("version").n(),
-                    "type", item.get("type").s(),
-                    "timestamp", item.get("timestamp").s(),
-                    // Mapea el payload como un JSON o HashMap dependiendo de la estructura
-                    "payload", HashMap.ofAll(item.get("payload").m()).mapValues(EventStoreFactory::convertAttributeValue),
-                    // Metadata también puede ser otro HashMap dependiendo de la estructura
-                    "metadata", HashMap.ofAll(item.get("metadata").m()).mapValues(EventStoreFactory::convertAttributeValue)
-                ));
+            // Agregado particionado: lecturas en paralelo sobre cada shard y mezcla por versión antes de proyectar
+            var shardReads = layout.partitionKeys(aggregateId).map(key -> queryAllPages(eventsQuery(key, consistent)));
+            awaitAll(shardReads);
+            return shardReads.flatMap(CompletableFuture::join)
+                .sortBy(item -> Integer.parseInt(item.get("version").n()))
+                .map(item -> toEvent(aggregateId, item));
         };
     }
 
+    private static QueryRequest eventsQuery(String partitionKey, boolean consistent) {
+        // Configurar la solicitud de consulta a DynamoDB (ajusta los nombres de tablas y atributos según tu diseño)
+        return QueryRequest.builder()
+            .tableName("Events") // Nombre de la tabla en DynamoDB
+            .keyConditionExpression("aggregateId = :aggregateId")
+            .expressionAttributeValues(HashMap.of(":aggregateId", AttributeValue.builder().s(partitionKey).build()).toJavaMap())
+            // El replay solo necesita versión, tipo y payload: metadata y timestamp no viajan por la red
+            .projectionExpression(REPLAY_PROJECTION)
+            .expressionAttributeNames(REPLAY_ATTRIBUTE_NAMES)
+            .consistentRead(consistent)
+            .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+            .build();
+    }
+
+    // Eventos con versión en [from, to] (BETWEEN sobre el sort key), en todas las claves de partición del agregado
+    public static Function3<String, Integer, Integer, List<Map<String, Object>>> fetchEventsBetween() {
+        return (aggregateId, from, to) -> eventsBetween(aggregateId, from, to, false);
+    }
+
+    // Relectura fuerte de la cola: solo los eventos posteriores a la última versión ya leída
+    public static Function2<String, Integer, List<Map<String, Object>>> fetchEventsAfter() {
+        return (aggregateId, lastVersion) -> eventsBetween(aggregateId, lastVersion + 1, Integer.MAX_VALUE, true);
+    }
+
+    private static List<Map<String, Object>> eventsBetween(String aggregateId, int from, int to, boolean consistent) {
+        if (from > to) return List.empty();
+        var reads = AggregateSharding.layoutOf(dynamoDbClient.get(), aggregateId).partitionKeys(aggregateId)
+            .map(key -> queryAllPages(QueryRequest.builder()
+                .tableName("Events")
+                .keyConditionExpression("aggregateId = :aggregateId AND version BETWEEN :from AND :to")
+                .expressionAttributeValues(HashMap.of(
+                    ":aggregateId", AttributeValue.builder().s(key).build(),
+                    ":from", AttributeValue.builder().n(String.valueOf(from)).build(),
+                    ":to", AttributeValue.builder().n(String.valueOf(to)).build()).toJavaMap())
+                .projectionExpression(REPLAY_PROJECTION)
+                .expressionAttributeNames(REPLAY_ATTRIBUTE_NAMES)
+                .consistentRead(consistent)
+                .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+                .build()));
+        awaitAll(reads);
+        return reads.flatMap(CompletableFuture::join)
+            .sortBy(item -> Integer.parseInt(item.get("version").n()))
+            .map(item -> toEvent(aggregateId, item));
+    }
+
+    // Última versión escrita hasta un instante, vía el índice AggregateTimestampIndex (aggregateId + timestamp)
+    public static Function2<String, Instant, Option<Integer>> versionAtTime() {
+        return (aggregateId, at) -> AggregateSharding.layoutOf(dynamoDbClient.get(), aggregateId).partitionKeys(aggregateId)
+            .flatMap(key -> List.ofAll(dynamoDbClient.get().query(QueryRequest.builder()
+                .tableName("Events")
+                .indexName(TIMESTAMP_INDEX)
+                .keyConditionExpression("aggregateId = :aggregateId AND #timestamp <= :at")
+                .expressionAttributeNames(java.util.Map.of("#timestamp", "timestamp"))
+                .expressionAttributeValues(HashMap.of(
+                    ":aggregateId", AttributeValue.builder().s(key).build(),
+                    ":at", AttributeValue.builder().s(TIMESTAMP_FORMAT.format(at)).build()).toJavaMap())
+                .scanIndexForward(false)
+                // Varios eventos de una misma transacción pueden compartir instante: se toma la mayor versión entre los últimos
+                .limit(25)
+                .build()).items()))
+            .map(item -> Integer.parseInt(item.get("version").n()))
+            .max();
+    }
+
+    public static Function2<String, Integer, Option<Tuple2<Integer, Map<String, Serializable>>>> loadSnapshot() {
+        return (aggregateId, maxVersion) -> ProjectionStore.loadSnapshot(dynamoDbClient.get(), aggregateId, maxVersion);
+    }
+
+    // Espera interrumpible de lecturas asíncronas: si el comando se abandona (deadline o cliente desconectado), Reactor
+    // interrumpe el hilo y las consultas en curso se cancelan, lo que aborta la solicitud HTTP del cliente asíncrono
+    private static <T> void awaitAll(List<CompletableFuture<T>> futures) {
+        try {
+            CompletableFuture.allOf(futures.toJavaArray(CompletableFuture[]::new)).get();
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Lectura abandonada");
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    // Lee todas las páginas de una partición sin bloquear el hilo que la solicita
+    private static CompletableFuture<List<java.util.Map<String, AttributeValue>>> queryAllPages(QueryRequest queryRequest) {
+        java.util.List<java.util.Map<String, AttributeValue>> items = new ArrayList<>();
+        return dynamoDbAsyncClient.get().queryPaginator(queryRequest)
+            .subscribe(page -> {
+                items.addAll(page.items());
+                ReadConsistency.recordCapacity(Boolean.TRUE.equals(queryRequest.consistentRead()), page.consumedCapacity());
+            })
+            .thenApply(done -> List.ofAll(items));
+    }
+
+    // El aggregateId del evento es siempre el lógico, aunque el ítem viva en una clave particionada.
+    // El payload se decodifica al primer acceso (ver Utils.getValue) y los tipos que projectState ignora no se decodifican nunca.
+    private static Map<String, Object> toEvent(String aggregateId, java.util.Map<String, AttributeValue> item) {
+        String type = item.get("type").s();
+        Map<String, Object> event = HashMap.of(
+            "aggregateId", aggregateId,
+            "version", item.get("version").n(),
+            "type", type
+        );
+        AttributeValue payload = item.get("payload");
+        return payload == null || IGNORED_BY_PROJECTION.contains(type)
+            ? event
+            : event.put("payload", Lazy.of(() -> HashMap.ofAll(payload.m()).mapValues(EventStoreFactory::convertAttributeValue)));
+    }
+
+    // Resuelve una clave de negocio (franchise#id, branch#id) al aggregateId a través del near cache
+    public static Function1<String, Option<String>> findAggregateIdByBusinessKey() {
+        return businessKey -> AggregateLookup.lookup(dynamoDbClient.get(), businessKey);
+    }
+
+    // Segmento del Scan paralelo sobre Events como (clave de partición, evento decodificado)
+    public static Flux<Tuple2<String, Map<String, Object>>> scanEventsSegment(int segment, int totalSegments, Option<String> startAfter, int pageSize, Duration pageDelay) {
+        return ProjectionStore.scanSegment(dynamoDbAsyncClient.get(), segment, totalSegments, startAfter, pageSize, pageDelay)
+            .map(item -> Tuple.of(item.get("aggregateId").s(), toEvent(item.get("aggregateId").s(), item)));
+    }
+
+    // Feed global: eventos confirmados después de la posición, hasta el horizonte asentado
+    public static Flux<Map<String, Object>> readFeed(String after) {
+        return EventFeed.read(dynamoDbAsyncClient.get(), after);
+    }
+
+    // Suscripción al feed con checkpoint por suscriptor; ver EventFeed.subscribe
+    public static Flux<Map<String, Object>> subscribeFeed(String subscriberId, Function1<Map<String, Object>, Mono<Void>> handler) {
+        return EventFeed.subscribe(dynamoDbClient.get(), dynamoDbAsyncClient.get(), subscriberId, handler);
+    }
+
+    // Productos con stock en [min, max] de todas las franquicias; ver StockLevels
+    public static Flux<Map<String, Serializable>> stockBetween(BigDecimal min, BigDecimal max) {
+        return StockLevels.between(dynamoDbAsyncClient.get(), min, max);
+    }
+
+    // Agotamientos que dejaron los eventos ya confirmados, reclamados para notificarse una sola vez
+    public static Function2<String, List<Map<String, Serializable>>, List<StockLevels.Depletion>> claimDepleted() {
+        return (aggregateId, events) -> StockLevels.claimDepleted(dynamoDbClient.get(), aggregateId, events);
+    }
+
+    // Libera el reclamo de un agotamiento cuya notificación falló
+    public static void releaseDepleted(StockLevels.Depletion depletion) {
+        StockLevels.release(dynamoDbClient.get(), depletion);
+    }
+
+    public static boolean isShardedAggregate(String aggregateId) {
+        return AggregateSharding.layoutOf(dynamoDbClient.get(), aggregateId).isSharded();
+    }
+
+    // Snapshot + proyección MaxProductPerFranchise para un estado reconstruido
+    public static void saveDerivedState(String aggregateId, int version, Map<String, Serializable> state) {
+        ProjectionStore.saveSnapshot(dynamoDbClient.get(), aggregateId, version, state);
+        ProjectionStore.saveMaxProductPerBranch(dynamoDbClient.get(), aggregateId, state);
+    }
+
+    public static void saveRebuildCheckpoint(String rebuildId, int segment, Option<String> lastPartitionKey, boolean done) {
+        ProjectionStore.saveCheckpoint(dynamoDbClient.get(), rebuildId, segment, lastPartitionKey, done);
+    }
+
+    public static Map<Integer, Tuple2<Option<String>, Boolean>> loadRebuildCheckpoints(String rebuildId) {
+        return ProjectionStore.loadCheckpoints(dynamoDbClient.get(), rebuildId);
+    }
+
     // Función que convierte un AttributeValue en un tipo de Vavr correspondiente
     public static Object convertAttributeValue(AttributeValue value) {
         return switch (value.type()) {
@@ -87,35 +305,187 @@ public class EventStoreFactory {
     }
 
     public static int getMaxVersionForAggregate(String aggregateId) {
-        QueryRequest queryRequest = QueryRequest.builder()
+        return getMaxVersionForAggregate(aggregateId, AggregateSharding.layoutOf(dynamoDbClient.get(), aggregateId));
+    }
+
+    private static int getMaxVersionForAggregate(String aggregateId, ShardLayout layout) {
+        if (!layout.isSharded()) {
+            QueryResponse result = dynamoDbClient.get().query(lastVersionQuery(aggregateId));
+            return result.items().isEmpty() ? 0 : Integer.parseInt(result.items().getFirst().get("version").n());
+        }
+
+        // La versión es global: la última es el máximo entre la clave base y todos los shards
+        var lastVersions = layout.partitionKeys(aggregateId)
+            .map(key -> dynamoDbAsyncClient.get().query(lastVersionQuery(key))
+                .thenApply(result -> result.items().isEmpty() ? 0 : Integer.parseInt(result.items().getFirst().get("version").n())));
+        awaitAll(lastVersions);
+        return lastVersions.map(CompletableFuture::join).max().getOrElse(0);
+    }
+
+    private static QueryRequest lastVersionQuery(String partitionKey) {
+        return QueryRequest.builder()
             .tableName("Events")
             .keyConditionExpression("aggregateId = :aggId")
-            .expressionAttributeValues(java.util.Map.of(":aggId", AttributeValue.builder().s(aggregateId).build()))
+            .expressionAttributeValues(java.util.Map.of(":aggId", AttributeValue.builder().s(partitionKey).build()))
             .scanIndexForward(false)
             .limit(1)
             .build();
-
-        QueryResponse result = dynamoDbClient.query(queryRequest);
-        return result.items().isEmpty() ? 0 : Integer.parseInt(result.items().getFirst().get("version").n());
     }
 
     public static Function2<List<Map<String, Serializable>>, String, List<Map<String, Serializable>>> saveEventsStrongly() {
-        return (events, aggregateId) -> {
-            int maxEvent = getMaxVersionForAggregate(aggregateId);
-            var versionedEvents = events.zipWithIndex((m, index) -> Tuple.of(m, maxEvent + ++index));
-            List<TransactWriteItem> transactWriteItems = versionedEvents
-                    .map(event -> createTransactWriteItem(aggregateId, event));
+        return (events, aggregateId) -> appendEvents(aggregateId, events, getMaxVersionForAggregate(aggregateId) + 1, List.empty());
+    }
 
-            TransactWriteItemsRequest transactRequest = TransactWriteItemsRequest.builder()
-                    .transactItems(transactWriteItems.asJava())
+    // Escribe a continuación de la versión observada en el replay: si otra escritura la ocupó, la transacción se cancela
+    public static Function3<List<Map<String, Serializable>>, String, Integer, List<Map<String, Serializable>>> saveEventsAtVersion() {
+        return (events, aggregateId, expectedVersion) -> appendEvents(aggregateId, events, expectedVersion + 1, List.empty());
+    }
+
+    // Escribe los eventos a partir de firstVersion junto con el ledger de stock y las escrituras adicionales, en una sola transacción
+    public static List<Map<String, Serializable>> appendEvents(String aggregateId, List<Map<String, Serializable>> events, int firstVersion, List<TransactWriteItem> extraItems) {
+        ShardLayout layout = AggregateSharding.layoutOf(dynamoDbClient.get(), aggregateId);
+        Instant committedAt = Instant.now();
+        List<TransactWriteItem> transactWriteItems = transactionFor(aggregateId, layout, events, firstVersion, extraItems, committedAt);
+        EventFeed.markBucket(dynamoDbClient.get(), committedAt);
+
+        int nextVersion = firstVersion + events.size();
+        try {
+            // Una escritura que ya ocupa el lote completo no gana nada esperando la ventana
+            if (WriteCoalescer.enabled && transactWriteItems.size() < WriteCoalescer.maxItems) {
+                writeCoalescer.get().write(aggregateId, transactWriteItems);
+            } else {
+                dynamoDbClient.get().transactWriteItems(TransactWriteItemsRequest.builder()
+                        .transactItems(transactWriteItems.asJava())
+                        .build());  // Esto asegura que las operaciones son ACID
+            }
+        } catch (DynamoDbException e) {
+            AggregateSharding.onWriteFailure(dynamoDbClient.get(), aggregateId, nextVersion, e);
+            throw e;
+        }
+        AggregateSharding.onWriteSuccess(dynamoDbClient.get(), aggregateId, events.size(), nextVersion);
+        AggregateLookup.committed(events);
+        EventFeed.committed(committedAt);
+
+        return events;
+    }
+
+    // Ítems que appendEvents enviaría en la transacción de estos eventos más extraItems escrituras propias del llamador
+    // (CatalogImport dimensiona sus chunks con esto para no pasar el límite de TransactWriteItems)
+    public static int transactionItems(String aggregateId, List<Map<String, Serializable>> events, int extraItems) {
+        ShardLayout layout = AggregateSharding.layoutOf(dynamoDbClient.get(), aggregateId);
+        return transactionFor(aggregateId, layout, events, 1, List.empty(), Instant.now()).size() + extraItems;
+    }
+
+    private static List<TransactWriteItem> transactionFor(String aggregateId, ShardLayout layout, List<Map<String, Serializable>> events,
+                                                          int firstVersion, List<TransactWriteItem> extraItems, Instant committedAt) {
+        var versionedEvents = events.zipWithIndex((m, index) -> Tuple.of(m, firstVersion + index));
+        return versionedEvents
+                .map(event -> createTransactWriteItem(aggregateId, layout, event))
+                .appendAll(events.flatMap(event -> StockLedger.writesFor(aggregateId, event)))
+                .appendAll(events.flatMap(event -> AggregateLookup.writesFor(aggregateId, event)))
+                .appendAll(extraItems)
+                .appendAll(AggregateSharding.layoutCondition(aggregateId, layout))
+                .appendAll(EventFeed.writesFor(aggregateId, versionedEvents, committedAt));
+    }
+
+    // Confirma un chunk de importación masiva: el evento y su marca de progreso viajan en la misma transacción,
+    // así un reintento con el mismo importId nunca duplica un chunk ya confirmado
+    public static Function1<Map<String, Serializable>, Map<String, Serializable>> saveImportChunk() {
+        return chunk -> {
+            String importId = getValue(chunk, "importId", "");
+            int index = getValue(chunk, "chunk", 0);
+            int version = getValue(chunk, "version", 0);
+            Map<String, Serializable> event = getValue(chunk, "event", HashMap.empty());
+            Map<String, Serializable> payload = getValue(event, "payload", HashMap.empty());
+            Map<String, Serializable> productsInChunk = getValue(payload, "products", HashMap.empty());
+            int products = productsInChunk.size();
+
+            Put progress = Put.builder()
+                    .tableName("ImportProgress")
+                    .item(HashMap.of(
+                        "importId", AttributeValue.builder().s(importId).build(),
+                        "chunk", AttributeValue.builder().n(String.valueOf(index)).build(),
+                        "version", AttributeValue.builder().n(String.valueOf(version)).build(),
+                        "products", AttributeValue.builder().n(String.valueOf(products)).build()).toJavaMap())
+                    .conditionExpression("attribute_not_exists(chunk)")
                     .build();
 
-            dynamoDbClient.transactWriteItems(transactRequest);  // Esto asegura que las operaciones son ACID
+            appendEvents(getValue(chunk, "aggregateId", ""), List.of(event), version, List.of(TransactWriteItem.builder().put(progress).build()));
+            return HashMap.of("chunk", index, "version", version, "products", products);
+        };
+    }
+
+    // Chunks ya confirmados de una importación, para reanudarla sin repetir trabajo
+    public static Function1<String, Set<Integer>> importProgress() {
+        return importId -> HashSet.ofAll(dynamoDbClient.get().queryPaginator(QueryRequest.builder()
+                .tableName("ImportProgress")
+                .keyConditionExpression("importId = :importId")
+                .expressionAttributeValues(HashMap.of(":importId", AttributeValue.builder().s(importId).build()).toJavaMap())
+                .projectionExpression("chunk")
+                .consistentRead(true)
+                .build()).items().stream()
+            .map(item -> Integer.parseInt(item.get("chunk").n()))
+            .toList());
+    }
+
+    // Ruta rápida para UpdateProductStock: evento + ADD sobre el contador del ledger en una sola transacción, sin replay.
+    // Retorna vacío cuando el contador aún no existe (agregados previos al ledger) para que el llamador haga el replay completo.
+    public static Function1<Map<String, Serializable>, Option<List<Map<String, Serializable>>>> updateStockWithLedger() {
+        return command -> {
+            String aggregateId = getValue(command, "aggregateId", "");
+            String branchId = getValue(command, "branchId", "");
+            String productId = getValue(command, "productId", "");
+            int quantityChange = getValue(command, "quantityChange", 0);
+            List<Map<String, Serializable>> events = List.of(HashMap.of(
+                "type", "ProductStockUpdated",
+                "aggregateId", aggregateId,
+                "payload", HashMap.of("branchId", branchId, "productId", productId, "quantityChange", quantityChange)));
+
+            for (int attempt = 1; ; attempt++) {
+                ShardLayout layout = AggregateSharding.layoutOf(dynamoDbClient.get(), aggregateId);
+                int version = getMaxVersionForAggregate(aggregateId, layout) + 1;
+                Instant committedAt = Instant.now();
+                TransactWriteItem event = createTransactWriteItem(aggregateId, layout, Tuple.of(events.head(), version));
+                TransactWriteItem ledger = StockLedger.increment(aggregateId, branchId, productId, quantityChange);
+                // Sin replay no hay estado proyectado: la baja de la sucursal o la franquicia se comprueba en la transacción
+                List<TransactWriteItem> alive = StockLedger.aliveChecks(aggregateId, branchId);
+                List<TransactWriteItem> layoutCondition = AggregateSharding.layoutCondition(aggregateId, layout).toList();
+                List<TransactWriteItem> transactWriteItems = List.of(event, ledger)
+                    .appendAll(alive)
+                    .appendAll(layoutCondition)
+                    .appendAll(EventFeed.writesFor(aggregateId, List.of(Tuple.of(events.head(), version)), committedAt));
+                EventFeed.markBucket(dynamoDbClient.get(), committedAt);
 
-            return events;
+                try {
+                    dynamoDbClient.get().transactWriteItems(TransactWriteItemsRequest.builder().transactItems(transactWriteItems.asJava()).build());
+                    AggregateSharding.onWriteSuccess(dynamoDbClient.get(), aggregateId, 1, version + 1);
+                    EventFeed.committed(committedAt);
+                    return Option.some(events);
+                } catch (DynamoDbException e) {
+                    // Throttling incluido: onWriteFailure decide si el agregado se reparte
+                    AggregateSharding.onWriteFailure(dynamoDbClient.get(), aggregateId, version + 1, e);
+                    if (!(e instanceof TransactionCanceledException canceled) || !canceled.hasCancellationReasons()) throw e;
+                    var reasons = List.ofAll(canceled.cancellationReasons());
+                    if (alive.exists(check -> failed(reasons, transactWriteItems.indexOf(check)))) {
+                        throw new IllegalStateException("La sucursal no existe.");
+                    }
+                    CancellationReason ledgerReason = reasons.get(transactWriteItems.indexOf(ledger));
+                    if ("ConditionalCheckFailed".equals(ledgerReason.code())) {
+                        if (!ledgerReason.hasItem() || ledgerReason.item().isEmpty()) return Option.none();
+                        double currentStock = Double.parseDouble(ledgerReason.item().get("currentStock").n());
+                        throw new IllegalStateException("El stock disponible no es suficiente para cubrir la demanda. Disponible: %s | Faltante: %s".formatted(currentStock, Math.abs(currentStock + quantityChange)));
+                    }
+                    // Otra escritura tomó la misma versión o cambió el layout: se reintenta con la siguiente
+                    if (attempt >= ledgerMaxAttempts || !layoutCondition.prepend(event).exists(item -> failed(reasons, transactWriteItems.indexOf(item)))) throw e;
+                }
+            }
         };
     }
 
+    private static boolean failed(List<CancellationReason> reasons, int index) {
+        return index >= 0 && index < reasons.size() && "ConditionalCheckFailed".equals(reasons.get(index).code());
+    }
+
     // Función sin argumentos que retorna una Function2
     public static Function2<String, String, Map<String, Serializable>> createAggregate() {
         return (hash, aggregateId) -> {
@@ -125,7 +495,7 @@ public class EventStoreFactory {
                     .transactItems(transactWriteItems)
                     .build();
 
-            dynamoDbClient.transactWriteItems(transactRequest);  // Esto asegura que las operaciones son ACID
+            dynamoDbClient.get().transactWriteItems(transactRequest);  // Esto asegura que las operaciones son ACID
 
             return HashMap.of("aggregateId", aggregateId, "hash", hash);
         };
@@ -139,19 +509,20 @@ public class EventStoreFactory {
         return TransactWriteItem.builder().put(put).build();
     }
 
-    private static TransactWriteItem createTransactWriteItem(String aggregateId, Tuple2<Map<String, Serializable>, Integer> versionedEvent) {
+    private static TransactWriteItem createTransactWriteItem(String aggregateId, ShardLayout layout, Tuple2<Map<String, Serializable>, Integer> versionedEvent) {
         Put put = Put.builder()
                 .tableName("Events")
-                .item(putEventRequest(aggregateId, versionedEvent._2(), versionedEvent._1()).toJavaMap())
+                .item(putEventRequest(layout.partitionKey(aggregateId, versionedEvent._2()), versionedEvent._2(), versionedEvent._1()).toJavaMap())
+                .conditionExpression("attribute_not_exists(version)")  // Nunca sobrescribir una versión existente
                 .build();
         return TransactWriteItem.builder().put(put).build();
     }
 
     // Función auxiliar para crear una solicitud de PutItem para cada evento
-    private static Map<String, AttributeValue> putEventRequest(String aggregateId, int version, Map<String, Serializable> event) {
+    private static Map<String, AttributeValue> putEventRequest(String partitionKey, int version, Map<String, Serializable> event) {
         return HashMap.of(
-                "aggregateId", AttributeValue.builder().s(aggregateId).build(),
-                "timestamp", AttributeValue.builder().s(DateTimeFormatter.ISO_INSTANT.format(Instant.now())).build(),
+                "aggregateId", AttributeValue.builder().s(partitionKey).build(),
+                "timestamp", AttributeValue.builder().s(TIMESTAMP_FORMAT.format(Instant.now())).build(),
                 "type", AttributeValue.builder().s(getValue(event, "type", "")).build(),
                 "version", AttributeValue.builder().n(String.valueOf(version)).build(),
                 "payload", AttributeValue.builder().m(convertToAttributeValueMap(getValue(event, "payload", HashMap.empty()))).build(),
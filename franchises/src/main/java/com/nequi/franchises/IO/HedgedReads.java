@@ -0,0 +1,201 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.Map;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Lecturas idempotentes contra DynamoDB con hedging (segunda solicitud tras el p95 observado) y reintentos con
+// backoff "decorrelated jitter". Hedges y reintentos consumen un presupuesto común para no amplificar una caída.
+// Las lecturas usan el cliente síncrono: cancelar al perdedor no detiene la consulta ya enviada, que termina y consume
+// capacidad de lectura igual. Por eso los hedges en curso (hasta que su consulta termina) se limitan a READ_HEDGE_MAX_IN_FLIGHT.
+public class HedgedReads {
+
+    static final boolean hedgingEnabled = env("READ_HEDGE_ENABLED", true);
+    static final int hedgePercentile = env("READ_HEDGE_PERCENTILE", 95);
+    static final long minHedgeDelayMillis = env("READ_HEDGE_MIN_DELAY_MS", 10);
+    static final int hedgeWarmupSamples = env("READ_HEDGE_WARMUP_SAMPLES", 20);
+    static final int maxAttempts = env("READ_RETRY_MAX_ATTEMPTS", 3);
+    static final long retryBaseMillis = env("READ_RETRY_BASE_MS", 20);
+    static final long retryCapMillis = env("READ_RETRY_CAP_MS", 1000);
+    // Cada lectura deposita este porcentaje de token; cada hedge o reintento retira uno
+    static final double budgetRatio = env("READ_RETRY_BUDGET_PERCENT", 10) / 100.0;
+    static final double budgetMaxTokens = env("READ_RETRY_BUDGET_MAX", 20);
+    static final int maxHedgesInFlight = env("READ_HEDGE_MAX_IN_FLIGHT", 8);
+    private static final int WINDOW = 256;
+
+    // Ventana circular de latencias y contadores por operación
+    static final class Operation {
+        private final long[] samples = new long[WINDOW];
+        private int next;
+        private int size;
+        private volatile long percentileNanos;
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong hedges = new AtomicLong();
+        final AtomicLong hedgeWins = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong denied = new AtomicLong();
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % WINDOW;
+            size = Math.min(size + 1, WINDOW);
+            // Recalcular en cada muestra es barato con 256 elementos
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            percentileNanos = sorted[Math.min(size - 1, size * hedgePercentile / 100)];
+        }
+
+        synchronized boolean warm() {
+            return size >= hedgeWarmupSamples;
+        }
+
+        Duration hedgeDelay() {
+            return Duration.ofNanos(Math.max(percentileNanos, Duration.ofMillis(minHedgeDelayMillis).toNanos()));
+        }
+
+        Map<String, Serializable> toMap() {
+            return HashMap.of(
+                "calls", calls.get(),
+                "hedgeDelayMs", hedgeDelay().toMillis(),
+                "hedges", hedges.get(),
+                "hedgeWins", hedgeWins.get(),
+                "hedgeWinRate", hedges.get() == 0 ? 0.0 : (double) hedgeWins.get() / hedges.get(),
+                "retries", retries.get(),
+                "budgetDenied", denied.get());
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<>();
+    private static double budgetTokens = budgetMaxTokens;
+    private static final AtomicInteger hedgesInFlight = new AtomicInteger();
+
+    public static <T> Mono<T> read(String name, Callable<T> call) {
+        Operation operation = operations.computeIfAbsent(name, key -> new Operation());
+        return Mono.defer(() -> {
+                operation.calls.incrementAndGet();
+                deposit();
+                return attempt(operation, call);
+            })
+            .retryWhen(decorrelatedJitter(operation));
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.ofAll(operations).mapValues(operation -> (Serializable) operation.toMap())
+            .put("budgetTokens", budgetTokens())
+            .put("hedgesInFlight", hedgesInFlight.get());
+    }
+
+    // El primero en emitir (éxito o error) gana; el perdedor se cancela
+    private static <T> Mono<T> attempt(Operation operation, Callable<T> call) {
+        Mono<Tuple2<T, Boolean>> primary = timed(operation, call).map(value -> Tuple.of(value, false));
+        if (!hedgingEnabled || !operation.warm()) return primary.map(Tuple2::_1);
+
+        Mono<Tuple2<T, Boolean>> hedge = Mono.delay(operation.hedgeDelay())
+            .then(Mono.defer(() -> {
+                if (hedgesInFlight.incrementAndGet() > maxHedgesInFlight || !withdraw()) {
+                    hedgesInFlight.decrementAndGet();
+                    operation.denied.incrementAndGet();
+                    return Mono.never();
+                }
+                operation.hedges.incrementAndGet();
+                return hedged(operation, call).map(value -> Tuple.of(value, true));
+            }));
+        return Mono.firstWithSignal(primary, hedge)
+            .doOnNext(result -> {
+                if (result._2()) operation.hedgeWins.incrementAndGet();
+            })
+            .map(Tuple2::_1);
+    }
+
+    // Solo las lecturas que terminan aportan su latencia: un intento cancelado antes de terminar daría una duración
+    // artificialmente corta y bajaría el p95. Un perdedor cuya consulta ya salió termina y se mide igual
+    private static <T> Mono<T> timed(Operation operation, Callable<T> call) {
+        return Mono.fromCallable(() -> {
+                long started = System.nanoTime();
+                T value = call.call();
+                operation.record(System.nanoTime() - started);
+                return value;
+            })
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // El hedge ocupa su cupo hasta que la consulta termina; si se cancela antes de empezar lo libera de inmediato
+    private static <T> Mono<T> hedged(Operation operation, Callable<T> call) {
+        AtomicBoolean started = new AtomicBoolean();
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) hedgesInFlight.decrementAndGet();
+        };
+        return timed(operation, () -> {
+                started.set(true);
+                try {
+                    return call.call();
+                } finally {
+                    release.run();
+                }
+            })
+            .doOnCancel(() -> {
+                if (!started.get()) release.run();
+            });
+    }
+
+    // sleep = min(cap, random(base, sleep * 3))
+    private static Retry decorrelatedJitter(Operation operation) {
+        return Retry.from(signals -> Flux.defer(() -> {
+            long[] sleep = {retryBaseMillis};
+            return signals.concatMap(signal -> {
+                Throwable failure = signal.failure();
+                if (signal.totalRetries() + 1 >= maxAttempts || !isRetryable(failure)) return Mono.error(failure);
+                if (!withdraw()) {
+                    operation.denied.incrementAndGet();
+                    return Mono.error(failure);
+                }
+                sleep[0] = Math.min(retryCapMillis, ThreadLocalRandom.current().nextLong(retryBaseMillis, Math.max(retryBaseMillis, sleep[0] * 3) + 1));
+                operation.retries.incrementAndGet();
+                return Mono.delay(Duration.ofMillis(sleep[0]));
+            });
+        }));
+    }
+
+    // Solo errores transitorios: throttling, 5xx y fallas del cliente (timeouts, conexión)
+    static boolean isRetryable(Throwable error) {
+        for (Throwable current = error; current != null; current = current.getCause()) {
+            if (current instanceof AwsServiceException aws && (aws.isThrottlingException() || aws.statusCode() >= 500)) return true;
+            if (current instanceof SdkClientException || AggregateSharding.isThrottling(current)) return true;
+        }
+        return false;
+    }
+
+    private static synchronized void deposit() {
+        budgetTokens = Math.min(budgetMaxTokens, budgetTokens + budgetRatio);
+    }
+
+    private static synchronized boolean withdraw() {
+        if (budgetTokens < 1) return false;
+        budgetTokens -= 1;
+        return true;
+    }
+
+    private static synchronized double budgetTokens() {
+        return budgetTokens;
+    }
+}
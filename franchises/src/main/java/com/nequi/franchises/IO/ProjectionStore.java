@@ -0,0 +1,133 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import reactor.core.publisher.Flux;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
+import static com.nequi.franchises.IO.EventStoreFactory.convertToAttributeValue;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Datos derivados del event store: snapshots, proyección MaxProductPerFranchise y checkpoints de reconstrucción
+public class ProjectionStore {
+
+    static final String SNAPSHOTS_TABLE = "Snapshots";
+    static final String MAX_PRODUCT_TABLE = "MaxProductPerFranchise";
+    static final String CHECKPOINTS_TABLE = "RebuildCheckpoints";
+    private static final int BATCH_WRITE_LIMIT = 25;
+
+    // Un segmento del Scan paralelo sobre Events. Todos los ítems de una clave de partición caen en el mismo segmento
+    // y llegan contiguos y ordenados por versión; startAfter reanuda después de la última clave procesada.
+    public static Flux<java.util.Map<String, AttributeValue>> scanSegment(DynamoDbAsyncClient client, int segment, int totalSegments,
+                                                                        Option<String> startAfter, int pageSize, Duration pageDelay) {
+        ScanRequest.Builder request = ScanRequest.builder()
+            .tableName("Events")
+            .segment(segment)
+            .totalSegments(totalSegments)
+            .projectionExpression("aggregateId, " + EventStoreFactory.REPLAY_PROJECTION)
+            .expressionAttributeNames(EventStoreFactory.REPLAY_ATTRIBUTE_NAMES)
+            .limit(pageSize);
+        startAfter.forEach(partitionKey -> request.exclusiveStartKey(HashMap.of(
+            "aggregateId", AttributeValue.builder().s(partitionKey).build(),
+            "version", AttributeValue.builder().n(String.valueOf(Integer.MAX_VALUE)).build()).toJavaMap()));
+
+        // El retardo entre páginas limita los ítems leídos por segundo
+        return Flux.from(client.scanPaginator(request.build()))
+            .delayElements(pageDelay)
+            .concatMapIterable(ScanResponse::items);
+    }
+
+    public static void saveSnapshot(DynamoDbClient client, String aggregateId, int version, Map<String, Serializable> state) {
+        client.putItem(PutItemRequest.builder()
+            .tableName(SNAPSHOTS_TABLE)
+            .item(HashMap.of(
+                "aggregateId", AttributeValue.builder().s(aggregateId).build(),
+                "version", AttributeValue.builder().n(String.valueOf(version)).build(),
+                "createdAt", AttributeValue.builder().s(DateTimeFormatter.ISO_INSTANT.format(Instant.now())).build(),
+                "state", convertToAttributeValue(state.remove("command"))).toJavaMap())
+            .build());
+    }
+
+    // Snapshot más reciente con versión <= maxVersion, como (versión, estado)
+    @SuppressWarnings("unchecked")
+    public static Option<Tuple2<Integer, Map<String, Serializable>>> loadSnapshot(DynamoDbClient client, String aggregateId, int maxVersion) {
+        return Option.ofOptional(client.query(QueryRequest.builder()
+                .tableName(SNAPSHOTS_TABLE)
+                .keyConditionExpression("aggregateId = :aggregateId AND version <= :version")
+                .expressionAttributeValues(HashMap.of(
+                    ":aggregateId", AttributeValue.builder().s(aggregateId).build(),
+                    ":version", AttributeValue.builder().n(String.valueOf(maxVersion)).build()).toJavaMap())
+                .scanIndexForward(false)
+                .limit(1)
+                .build()).items().stream().findFirst())
+            .map(item -> Tuple.of(Integer.parseInt(item.get("version").n()), (Map<String, Serializable>) EventStoreFactory.convertAttributeValue(item.get("state"))));
+    }
+
+    // Producto de mayor stock por sucursal, a partir de las claves "productId|branchId" del estado proyectado
+    public static void saveMaxProductPerBranch(DynamoDbClient client, String aggregateId, Map<String, Serializable> state) {
+        Map<String, Map<String, Serializable>> products = getValue(state, "products", HashMap.empty());
+        String franchiseId = getValue(state, "franchiseId", "");
+
+        List<WriteRequest> writes = products.toList()
+            .groupBy(product -> product._1().substring(product._1().indexOf('|') + 1))
+            .map((branchId, branchProducts) -> Tuple.of(branchId, branchProducts.maxBy(product -> stockOf(product._2())).get()))
+            .toList()
+            .map(max -> WriteRequest.builder().putRequest(PutRequest.builder().item(HashMap.of(
+                "franchiseId", AttributeValue.builder().s(franchiseId).build(),
+                "branchId", AttributeValue.builder().s(max._1()).build(),
+                "aggregateId", AttributeValue.builder().s(aggregateId).build(),
+                "productId", AttributeValue.builder().s(max._2()._1().substring(0, max._2()._1().indexOf('|'))).build(),
+                "productName", AttributeValue.builder().s(String.valueOf(getValue(max._2()._2(), "productName", ""))).build(),
+                "currentStock", AttributeValue.builder().n(String.valueOf(stockOf(max._2()._2()))).build()).toJavaMap()).build()).build());
+
+        writes.grouped(BATCH_WRITE_LIMIT).forEach(batch -> batchWrite(client, batch.asJava()));
+    }
+
+    private static void batchWrite(DynamoDbClient client, java.util.List<WriteRequest> batch) {
+        java.util.Map<String, java.util.List<WriteRequest>> pending = java.util.Map.of(MAX_PRODUCT_TABLE, batch);
+        for (int attempt = 0; !pending.isEmpty() && attempt < 5; attempt++) {
+            pending = client.batchWriteItem(BatchWriteItemRequest.builder().requestItems(pending).build()).unprocessedItems();
+        }
+        if (!pending.isEmpty()) throw new IllegalStateException("Unprocessed projection writes for %s".formatted(pending.keySet()));
+    }
+
+    private static double stockOf(Map<String, Serializable> product) {
+        return getValue(product, "currentStock", (Number) 0).doubleValue();
+    }
+
+    public static void saveCheckpoint(DynamoDbClient client, String rebuildId, int segment, Option<String> lastPartitionKey, boolean done) {
+        client.putItem(PutItemRequest.builder()
+            .tableName(CHECKPOINTS_TABLE)
+            .item(HashMap.of(
+                "rebuildId", AttributeValue.builder().s(rebuildId).build(),
+                "segment", AttributeValue.builder().n(String.valueOf(segment)).build(),
+                "lastPartitionKey", lastPartitionKey.map(key -> AttributeValue.builder().s(key).build()).getOrElse(AttributeValue.builder().nul(true).build()),
+                "done", AttributeValue.builder().bool(done).build()).toJavaMap())
+            .build());
+    }
+
+    // segmento -> (última clave procesada, terminado)
+    public static Map<Integer, Tuple2<Option<String>, Boolean>> loadCheckpoints(DynamoDbClient client, String rebuildId) {
+        return HashMap.ofEntries(client.queryPaginator(QueryRequest.builder()
+                .tableName(CHECKPOINTS_TABLE)
+                .keyConditionExpression("rebuildId = :rebuildId")
+                .expressionAttributeValues(HashMap.of(":rebuildId", AttributeValue.builder().s(rebuildId).build()).toJavaMap())
+                .consistentRead(true)
+                .build()).items().stream()
+            .map(item -> Tuple.of(
+                Integer.parseInt(item.get("segment").n()),
+                Tuple.of(Option.of(item.get("lastPartitionKey")).flatMap(value -> Option.of(value.s())), item.get("done").bool())))
+            .toList());
+    }
+}
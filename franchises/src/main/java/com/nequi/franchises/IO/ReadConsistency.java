@@ -0,0 +1,77 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.Tuple;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.HashSet;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.collection.Set;
+import software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Modo de carga por tipo de comando: lecturas eventualmente consistentes (mitad de capacidad) por defecto.
+// La escritura condicionada a la versión observada detecta una lectura atrasada y solo entonces se relee la cola con lectura fuerte.
+public class ReadConsistency {
+
+    static final boolean eventualByDefault = "eventual".equalsIgnoreCase(env("READ_CONSISTENCY_DEFAULT", "eventual"));
+    // NotifyStockDepleted se despacha justo después de la escritura que agotó el stock (ver StockLevels): una lectura
+    // atrasada no vería el agotamiento y la decisión lo rechazaría
+    static final Set<String> strongCommands = commandList(env("READ_CONSISTENCY_STRONG_COMMANDS", "NotifyStockDepleted"));
+    static final Set<String> eventualCommands = commandList(env("READ_CONSISTENCY_EVENTUAL_COMMANDS", ""));
+
+    private static final DoubleAdder eventualUnits = new DoubleAdder();
+    private static final DoubleAdder strongUnits = new DoubleAdder();
+    private static final ConcurrentHashMap<String, AtomicLong> eventualCommandCount = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> fallbacks = new ConcurrentHashMap<>();
+
+    public static boolean eventual(String commandType) {
+        boolean eventual = eventualByDefault ? !strongCommands.contains(commandType) : eventualCommands.contains(commandType);
+        if (eventual) eventualCommandCount.computeIfAbsent(commandType, type -> new AtomicLong()).incrementAndGet();
+        return eventual;
+    }
+
+    public static void recordFallback(String commandType) {
+        fallbacks.computeIfAbsent(commandType, type -> new AtomicLong()).incrementAndGet();
+    }
+
+    static void recordCapacity(boolean consistent, ConsumedCapacity capacity) {
+        if (capacity == null || capacity.capacityUnits() == null) return;
+        (consistent ? strongUnits : eventualUnits).add(capacity.capacityUnits());
+    }
+
+    // Otra escritura ocupó la versión esperada: la lectura estaba atrasada. Solo cuentan los Put de los eventos, que van
+    // primero en la transacción (ver EventStoreFactory.transactionFor); una condición fallida en el índice de claves, el
+    // ledger o el progreso de importación es un error real y no se resuelve releyendo
+    public static boolean isStaleWrite(Throwable error, int events) {
+        for (Throwable current = error; current != null; current = current.getCause()) {
+            if (current instanceof TransactionCanceledException canceled && canceled.hasCancellationReasons()
+                && canceled.cancellationReasons().stream().limit(events).anyMatch(reason -> "ConditionalCheckFailed".equals(reason.code()))) return true;
+        }
+        return false;
+    }
+
+    // Una lectura fuerte cuesta el doble: lo ahorrado equivale a las unidades consumidas con lectura eventual
+    public static Map<String, Serializable> stats() {
+        Map<String, Serializable> fallbackRates = HashMap.ofAll(eventualCommandCount)
+            .map((type, count) -> Tuple.of(type, (Serializable) (count.get() == 0 ? 0.0
+                : (double) fallbacks.getOrDefault(type, new AtomicLong()).get() / count.get())));
+        return HashMap.<String, Serializable>of(
+            "eventualByDefault", eventualByDefault,
+            "eventualReadUnits", eventualUnits.sum(),
+            "strongReadUnits", strongUnits.sum(),
+            "readUnitsSaved", eventualUnits.sum(),
+            "fallbacks", HashMap.ofAll(fallbacks).mapValues(AtomicLong::get),
+            "fallbackRate", fallbackRates);
+    }
+
+    private static Set<String> commandList(String value) {
+        return HashSet.ofAll(List.of(value.split(",")).map(String::trim).filter(type -> !type.isEmpty()));
+    }
+}
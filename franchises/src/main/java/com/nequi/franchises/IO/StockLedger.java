@@ -0,0 +1,154 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.io.Serializable;
+
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Contador de stock por (sucursal, producto) que se escribe en la misma transacción que los eventos de stock.
+// Cada escritura fija stockShard para el índice de niveles de stock y, si el stock sube, borra la marca de agotamiento
+// (ver StockLevels)
+public class StockLedger {
+
+    static final String TABLE = "ProductStock";
+    // Marcas de baja en la misma tabla: la ruta rápida no proyecta el estado y las comprueba con un ConditionCheck.
+    // No llevan stockShard, así que no aparecen en el índice de niveles de stock
+    private static final String REMOVED_FRANCHISE = "#removed";
+
+    public static String productKey(String productId, String branchId) {
+        return "%s|%s".formatted(productId, branchId);
+    }
+
+    // Escrituras del ledger que acompañan a un evento; los eventos que no tocan stock no generan escrituras
+    public static List<TransactWriteItem> writesFor(String aggregateId, Map<String, Serializable> event) {
+        Map<String, Serializable> payload = getValue(event, "payload", HashMap.empty());
+        return switch (getValue(event, "type", "")) {
+            case "ProductAddedToBranch" -> getValue(payload, "products", HashMap.<String, Map<String, Serializable>>empty()).toList()
+                .map(product -> set(aggregateId, getValue(payload, "branchId", ""), product._1(), getValue(product._2(), "currentStock", (Number) 0)));
+
+            // Evento calculado con replay (el contador aún no existe): se siembra con el stock previo y se aplica el cambio
+            case "ProductStockUpdated" -> List.of(seedAndIncrement(aggregateId, getValue(payload, "branchId", ""), getValue(payload, "productId", ""),
+                getValue(payload, "previousStock", (Number) 0.0), getValue(payload, "quantityChange", 0)));
+
+            case "ProductStockAdjusted" -> List.of(set(aggregateId, getValue(payload, "branchId", ""), getValue(payload, "productId", ""), getValue(payload, "newStock", (Number) 0)));
+
+            case "ProductTransferredBetweenBranches" -> {
+                int quantity = getValue(payload, "quantity", 0);
+                yield List.of(
+                    increment(aggregateId, getValue(payload, "fromBranchId", ""), getValue(payload, "productId", ""), -quantity),
+                    increment(aggregateId, getValue(payload, "toBranchId", ""), getValue(payload, "productId", ""), quantity));
+            }
+
+            case "ProductRemovedFromBranch" -> List.of(TransactWriteItem.builder().delete(Delete.builder()
+                .tableName(TABLE)
+                .key(key(aggregateId, getValue(payload, "branchId", ""), getValue(payload, "productId", "")))
+                .build()).build());
+
+            // Una sucursal que se vuelve a agregar deja de estar dada de baja
+            case "BranchAdded" -> payload.keySet().toList().map(branchId -> TransactWriteItem.builder().delete(Delete.builder()
+                .tableName(TABLE)
+                .key(markerKey(aggregateId, removedBranch(branchId)))
+                .build()).build());
+
+            case "BranchRemoved" -> List.of(removed(aggregateId, removedBranch(getValue(payload, "branchId", ""))));
+
+            case "FranchiseRemoved" -> List.of(removed(aggregateId, REMOVED_FRANCHISE));
+
+            default -> List.empty();
+        };
+    }
+
+    // Incremento/decremento conmutativo: ADD atómico con la invariante de stock no negativo como condición
+    public static TransactWriteItem increment(String aggregateId, String branchId, String productId, int quantityChange) {
+        return TransactWriteItem.builder().update(Update.builder()
+            .tableName(TABLE)
+            .key(key(aggregateId, branchId, productId))
+            .updateExpression("ADD currentStock :delta SET stockShard = :shard" + clearDepletion(quantityChange > 0))
+            .conditionExpression("attribute_exists(productKey) AND currentStock >= :needed")
+            .expressionAttributeValues(HashMap.of(
+                ":delta", number(quantityChange),
+                ":needed", number(Math.max(0, -quantityChange)),
+                ":shard", shard(aggregateId, branchId, productId)).toJavaMap())
+            .returnValuesOnConditionCheckFailure(ReturnValuesOnConditionCheckFailure.ALL_OLD)
+            .build()).build();
+    }
+
+    // La franquicia y la sucursal no están dadas de baja; acompaña al incremento de la ruta rápida
+    public static List<TransactWriteItem> aliveChecks(String aggregateId, String branchId) {
+        return List.of(REMOVED_FRANCHISE, removedBranch(branchId)).map(marker -> TransactWriteItem.builder().conditionCheck(ConditionCheck.builder()
+            .tableName(TABLE)
+            .key(markerKey(aggregateId, marker))
+            .conditionExpression("attribute_not_exists(productKey)")
+            .build()).build());
+    }
+
+    private static TransactWriteItem removed(String aggregateId, String marker) {
+        return TransactWriteItem.builder().put(Put.builder()
+            .tableName(TABLE)
+            .item(markerKey(aggregateId, marker))
+            .build()).build();
+    }
+
+    private static String removedBranch(String branchId) {
+        return REMOVED_FRANCHISE + "|" + branchId;
+    }
+
+    private static java.util.Map<String, AttributeValue> markerKey(String aggregateId, String marker) {
+        return HashMap.of(
+            "aggregateId", AttributeValue.builder().s(aggregateId).build(),
+            "productKey", AttributeValue.builder().s(marker).build()).toJavaMap();
+    }
+
+    private static TransactWriteItem seedAndIncrement(String aggregateId, String branchId, String productId, Number previousStock, int quantityChange) {
+        return TransactWriteItem.builder().update(Update.builder()
+            .tableName(TABLE)
+            .key(key(aggregateId, branchId, productId))
+            .updateExpression("SET currentStock = if_not_exists(currentStock, :previous) + :delta, branchId = :branchId, productId = :productId, stockShard = :shard"
+                + clearDepletion(quantityChange > 0))
+            .conditionExpression("attribute_not_exists(currentStock) OR currentStock >= :needed")
+            .expressionAttributeValues(HashMap.of(
+                ":previous", number(previousStock),
+                ":delta", number(quantityChange),
+                ":needed", number(Math.max(0, -quantityChange)),
+                ":branchId", AttributeValue.builder().s(branchId).build(),
+                ":productId", AttributeValue.builder().s(productId).build(),
+                ":shard", shard(aggregateId, branchId, productId)).toJavaMap())
+            .build()).build();
+    }
+
+    private static TransactWriteItem set(String aggregateId, String branchId, String productId, Number stock) {
+        return TransactWriteItem.builder().update(Update.builder()
+            .tableName(TABLE)
+            .key(key(aggregateId, branchId, productId))
+            .updateExpression("SET currentStock = :stock, branchId = :branchId, productId = :productId, stockShard = :shard" + clearDepletion(stock.doubleValue() > 0))
+            .expressionAttributeValues(HashMap.of(
+                ":stock", number(stock),
+                ":branchId", AttributeValue.builder().s(branchId).build(),
+                ":productId", AttributeValue.builder().s(productId).build(),
+                ":shard", shard(aggregateId, branchId, productId)).toJavaMap())
+            .build()).build();
+    }
+
+    static java.util.Map<String, AttributeValue> key(String aggregateId, String branchId, String productId) {
+        return HashMap.of(
+            "aggregateId", AttributeValue.builder().s(aggregateId).build(),
+            "productKey", AttributeValue.builder().s(productKey(productId, branchId)).build()).toJavaMap();
+    }
+
+    // Con stock de nuevo disponible, el próximo agotamiento vuelve a notificarse
+    private static String clearDepletion(boolean restocked) {
+        return restocked ? " REMOVE " + StockLevels.DEPLETED_ATTRIBUTE : "";
+    }
+
+    private static AttributeValue shard(String aggregateId, String branchId, String productId) {
+        return AttributeValue.builder().s(StockLevels.shardOf(aggregateId, branchId, productId)).build();
+    }
+
+    private static AttributeValue number(Number value) {
+        return AttributeValue.builder().n(value.toString()).build();
+    }
+}
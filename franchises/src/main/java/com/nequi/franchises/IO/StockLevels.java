@@ -0,0 +1,168 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nequi.franchises.util.Utils.env;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Índice de niveles de stock sobre el ledger (ProductStock). El GSI StockLevelIndex tiene clave (stockShard, currentStock):
+// una consulta por umbral lee, en cada una de las STOCK_INDEX_SHARDS particiones, solo los productos dentro del rango,
+// de todas las franquicias y sin replay. El índice no tiene escritor propio: cada escritura del ledger viaja en la
+// transacción de su evento de stock y fija stockShard, y DynamoDB propaga currentStock al GSI.
+// Agotamiento: después de confirmar un evento que baja el stock, un UpdateItem condicionado a currentStock <= 0 y sin
+// depletedAt reclama la notificación. Solo quien la reclama emite NotifyStockDepleted, así dos escrituras concurrentes que
+// dejan el producto en cero notifican una vez. La marca se borra cuando el stock vuelve a subir (ver StockLedger) o cuando
+// el NotifyStockDepleted despachado falla, para que la siguiente escritura que deje el producto en cero lo reintente.
+public class StockLevels {
+
+    static final String INDEX = "StockLevelIndex";
+    static final String SHARD_ATTRIBUTE = "stockShard";
+    static final String DEPLETED_ATTRIBUTE = "depletedAt";
+    // Cambiar los shards con datos ya escritos deja productos fuera de las consultas hasta su próxima escritura
+    static final int shards = env("STOCK_INDEX_SHARDS", 8);
+    static final int pageSize = env("STOCK_INDEX_PAGE_SIZE", 500);
+
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong notified = new AtomicLong();
+    private static final AtomicLong notifyFailures = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+    private static final AtomicLong releaseFailures = new AtomicLong();
+
+    // Producto que quedó en cero y cuya notificación quedó reclamada por esta instancia
+    public record Depletion(String aggregateId, String branchId, String productId) {}
+
+    static String shardOf(String aggregateId, String branchId, String productId) {
+        return String.valueOf(Math.floorMod((aggregateId + "|" + StockLedger.productKey(productId, branchId)).hashCode(), shards));
+    }
+
+    // Productos con stock en [min, max] de todas las franquicias, de menor a mayor stock
+    @SuppressWarnings("unchecked")
+    public static Flux<Map<String, Serializable>> between(DynamoDbAsyncClient client, BigDecimal min, BigDecimal max) {
+        Publisher<java.util.Map<String, AttributeValue>>[] sources = List.range(0, shards)
+            .map(shard -> readShard(client, String.valueOf(shard), min, max))
+            .toJavaList()
+            .toArray(new Publisher[0]);
+        return Flux.mergeComparing(Comparator.comparing((java.util.Map<String, AttributeValue> item) -> new BigDecimal(item.get("currentStock").n())), sources)
+            .map(StockLevels::toProduct);
+    }
+
+    // Reclama las notificaciones de los productos que los eventos confirmados dejaron en cero
+    public static List<Depletion> claimDepleted(DynamoDbClient client, String aggregateId, List<Map<String, Serializable>> events) {
+        List<Depletion> depleted = events.flatMap(StockLevels::candidates)
+            .distinct()
+            .filter(product -> claim(client, aggregateId, product._1(), product._2()))
+            .map(product -> new Depletion(aggregateId, product._1(), product._2()));
+        claimed.addAndGet(depleted.size());
+        return depleted;
+    }
+
+    public static boolean mayDeplete(Map<String, Serializable> event) {
+        return !candidates(event).isEmpty();
+    }
+
+    public static void recordNotification(boolean succeeded) {
+        (succeeded ? notified : notifyFailures).incrementAndGet();
+    }
+
+    // Devuelve el reclamo de una notificación que no se pudo despachar. Si la marca ya no está (el stock subió) no hay nada
+    // que liberar; si la escritura falla la marca queda puesta hasta que el stock vuelva a subir
+    public static void release(DynamoDbClient client, Depletion depletion) {
+        try {
+            client.updateItem(UpdateItemRequest.builder()
+                .tableName(StockLedger.TABLE)
+                .key(StockLedger.key(depletion.aggregateId(), depletion.branchId(), depletion.productId()))
+                .updateExpression("REMOVE #depleted")
+                .conditionExpression("attribute_exists(#depleted)")
+                .expressionAttributeNames(java.util.Map.of("#depleted", DEPLETED_ATTRIBUTE))
+                .build());
+            released.incrementAndGet();
+        } catch (ConditionalCheckFailedException e) {
+            // Ya liberado
+        } catch (DynamoDbException e) {
+            releaseFailures.incrementAndGet();
+        }
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.of(
+            "shards", shards,
+            "claimed", claimed.get(),
+            "notified", notified.get(),
+            "notifyFailures", notifyFailures.get(),
+            "released", released.get(),
+            "releaseFailures", releaseFailures.get());
+    }
+
+    // (sucursal, producto) que un evento pudo dejar en cero; los eventos que suben o no tocan stock no se revisan
+    static List<Tuple2<String, String>> candidates(Map<String, Serializable> event) {
+        Map<String, Serializable> payload = getValue(event, "payload", HashMap.empty());
+        String productId = getValue(payload, "productId", "");
+        return switch (getValue(event, "type", "")) {
+            case "ProductStockUpdated" -> getValue(payload, "quantityChange", 0) < 0
+                ? List.of(Tuple.of(getValue(payload, "branchId", ""), productId)) : List.empty();
+            case "ProductStockAdjusted" -> getValue(payload, "newStock", (Number) 0).doubleValue() <= 0
+                ? List.of(Tuple.of(getValue(payload, "branchId", ""), productId)) : List.empty();
+            case "ProductTransferredBetweenBranches" -> List.of(Tuple.of(getValue(payload, "fromBranchId", ""), productId));
+            default -> List.empty();
+        };
+    }
+
+    // Un contador inexistente no cumple currentStock <= 0: un producto eliminado no se notifica
+    private static boolean claim(DynamoDbClient client, String aggregateId, String branchId, String productId) {
+        try {
+            client.updateItem(UpdateItemRequest.builder()
+                .tableName(StockLedger.TABLE)
+                .key(StockLedger.key(aggregateId, branchId, productId))
+                .updateExpression("SET #depleted = :now")
+                .conditionExpression("currentStock <= :zero AND attribute_not_exists(#depleted)")
+                .expressionAttributeNames(java.util.Map.of("#depleted", DEPLETED_ATTRIBUTE))
+                .expressionAttributeValues(HashMap.of(
+                    ":now", AttributeValue.builder().s(DateTimeFormatter.ISO_INSTANT.format(Instant.now())).build(),
+                    ":zero", AttributeValue.builder().n("0").build()).toJavaMap())
+                .build());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    private static Flux<java.util.Map<String, AttributeValue>> readShard(DynamoDbAsyncClient client, String shard, BigDecimal min, BigDecimal max) {
+        return Flux.from(client.queryPaginator(QueryRequest.builder()
+                .tableName(StockLedger.TABLE)
+                .indexName(INDEX)
+                .keyConditionExpression("#shard = :shard AND currentStock BETWEEN :min AND :max")
+                .expressionAttributeNames(java.util.Map.of("#shard", SHARD_ATTRIBUTE))
+                .expressionAttributeValues(HashMap.of(
+                    ":shard", AttributeValue.builder().s(shard).build(),
+                    ":min", AttributeValue.builder().n(min.toPlainString()).build(),
+                    ":max", AttributeValue.builder().n(max.toPlainString()).build()).toJavaMap())
+                .limit(pageSize)
+                .build()))
+            .concatMapIterable(QueryResponse::items);
+    }
+
+    private static Map<String, Serializable> toProduct(java.util.Map<String, AttributeValue> item) {
+        return HashMap.of(
+            "aggregateId", item.get("aggregateId").s(),
+            "branchId", item.containsKey("branchId") ? item.get("branchId").s() : "",
+            "productId", item.containsKey("productId") ? item.get("productId").s() : "",
+            "currentStock", new BigDecimal(item.get("currentStock").n()),
+            "depleted", item.containsKey(DEPLETED_ATTRIBUTE));
+    }
+}
@@ -0,0 +1,259 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.collection.Set;
+import io.vavr.control.Option;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Agrupa escrituras de agregados distintos que llegan dentro de una ventana corta en un solo TransactWriteItems,
+// hasta los límites del servicio (100 acciones, 4 MB). Cada escritura conserva sus condiciones. Si la transacción se
+// cancela, las razones por ítem indican qué escritura falló: esa recibe el error con sus propias razones y las demás
+// (razón "None") se reencolan en el siguiente lote. Ante otros errores cada escritura se reintenta sola.
+public class WriteCoalescer {
+
+    static final boolean enabled = env("WRITE_COALESCE_ENABLED", true);
+    static final long windowMicros = env("WRITE_COALESCE_WINDOW_US", 500);
+    static final int maxItems = Math.min(100, env("WRITE_COALESCE_MAX_ITEMS", 100));
+    static final long maxBytes = env("WRITE_COALESCE_MAX_BYTES", 4 * 1024 * 1024 - 64 * 1024);
+    static final int maxRequeues = env("WRITE_COALESCE_MAX_REQUEUES", 3);
+
+    // Escritura de un agregado esperando lote
+    private static final class Pending {
+        final String aggregateId;
+        final java.util.List<TransactWriteItem> items;
+        final Set<String> keys;
+        final long bytes;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        int requeues;
+        boolean solo;
+
+        Pending(String aggregateId, List<TransactWriteItem> items) {
+            this.aggregateId = aggregateId;
+            this.items = items.asJava();
+            this.keys = items.flatMap(WriteCoalescer::itemKey).toSet().add("aggregate#" + aggregateId);
+            this.bytes = items.map(WriteCoalescer::estimateSize).sum().longValue();
+        }
+    }
+
+    private final Function<TransactWriteItemsRequest, CompletableFuture<TransactWriteItemsResponse>> send;
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedItems = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "write-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong requeued = new AtomicLong();
+    private final AtomicLong soloRetries = new AtomicLong();
+
+    WriteCoalescer(Function<TransactWriteItemsRequest, CompletableFuture<TransactWriteItemsResponse>> send) {
+        this.send = send;
+    }
+
+    // Bloquea hasta que el lote que contiene la escritura se confirma; el error es el de esta escritura, no el del lote
+    void write(String aggregateId, List<TransactWriteItem> items) {
+        Pending pending = new Pending(aggregateId, items);
+        writes.incrementAndGet();
+        enqueue(pending);
+        try {
+            pending.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    Map<String, Serializable> stats() {
+        long batchCount = batches.get();
+        return HashMap.of(
+            "enabled", enabled,
+            "windowMicros", windowMicros,
+            "writes", writes.get(),
+            "batches", batchCount,
+            "writesPerBatch", batchCount == 0 ? 0.0 : (double) writes.get() / batchCount,
+            "requeued", requeued.get(),
+            "soloRetries", soloRetries.get(),
+            "queued", queue.size());
+    }
+
+    private void enqueue(Pending pending) {
+        queue.add(pending);
+        // Lote lleno: no se espera el resto de la ventana
+        if (queuedItems.addAndGet(pending.items.size()) >= maxItems) flusher.execute(this::flush);
+        else if (flushScheduled.compareAndSet(false, true)) flusher.schedule(this::flush, windowMicros, TimeUnit.MICROSECONDS);
+    }
+
+    // Solo corre en el hilo del flusher: arma lotes sin claves repetidas (DynamoDB rechaza dos operaciones sobre un ítem)
+    private void flush() {
+        flushScheduled.set(false);
+        java.util.List<Pending> drained = new ArrayList<>();
+        for (Pending pending; (pending = queue.poll()) != null; ) {
+            queuedItems.addAndGet(-pending.items.size());
+            drained.add(pending);
+        }
+        while (!drained.isEmpty()) {
+            java.util.List<Pending> batch = new ArrayList<>();
+            java.util.List<Pending> deferred = new ArrayList<>();
+            java.util.Set<String> keys = new java.util.HashSet<>();
+            int items = 0;
+            long bytes = 0;
+            for (Pending pending : drained) {
+                boolean fits = batch.isEmpty() || !pending.solo && !batch.get(0).solo
+                    && items + pending.items.size() <= maxItems && bytes + pending.bytes <= maxBytes
+                    && pending.keys.toJavaStream().noneMatch(keys::contains);
+                if (!fits) {
+                    deferred.add(pending);
+                    continue;
+                }
+                batch.add(pending);
+                pending.keys.forEach(keys::add);
+                items += pending.items.size();
+                bytes += pending.bytes;
+            }
+            send(batch);
+            drained = deferred;
+        }
+    }
+
+    private void send(java.util.List<Pending> batch) {
+        batches.incrementAndGet();
+        java.util.List<TransactWriteItem> items = new ArrayList<>();
+        batch.forEach(pending -> items.addAll(pending.items));
+        CompletableFuture<TransactWriteItemsResponse> response;
+        try {
+            response = send.apply(TransactWriteItemsRequest.builder().transactItems(items).build());
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((result, error) -> {
+            if (error == null) {
+                batch.forEach(pending -> pending.done.complete(null));
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (batch.size() == 1) {
+                batch.get(0).done.completeExceptionally(cause);
+            } else if (cause instanceof TransactionCanceledException canceled && canceled.hasCancellationReasons()) {
+                distribute(batch, canceled);
+            } else {
+                // Error del lote completo (validación, throttling, red): cada escritura se reintenta sola
+                batch.forEach(pending -> {
+                    pending.solo = true;
+                    soloRetries.incrementAndGet();
+                    enqueue(pending);
+                });
+            }
+        });
+    }
+
+    // Las razones vienen en el orden de los ítems: cada escritura toma su tramo
+    private void distribute(java.util.List<Pending> batch, TransactionCanceledException canceled) {
+        java.util.List<CancellationReason> reasons = canceled.cancellationReasons();
+        int offset = 0;
+        for (Pending pending : batch) {
+            java.util.List<CancellationReason> own = reasons.subList(Math.min(offset, reasons.size()), Math.min(offset + pending.items.size(), reasons.size()));
+            offset += pending.items.size();
+            boolean innocent = own.stream().allMatch(reason -> reason.code() == null || "None".equals(reason.code()));
+            if (innocent && pending.requeues < maxRequeues) {
+                pending.requeues++;
+                requeued.incrementAndGet();
+                enqueue(pending);
+            } else if (innocent) {
+                pending.solo = true;
+                soloRetries.incrementAndGet();
+                enqueue(pending);
+            } else {
+                pending.done.completeExceptionally(TransactionCanceledException.builder()
+                    .message(canceled.getMessage())
+                    .statusCode(canceled.statusCode())
+                    .awsErrorDetails(canceled.awsErrorDetails())
+                    .requestId(canceled.requestId())
+                    .cancellationReasons(own)
+                    .build());
+            }
+        }
+    }
+
+    // Atributos de clave de las tablas que reciben Put en las transacciones de eventos
+    private static final Map<String, List<String>> putKeys = HashMap.of(
+        "Events", List.of("aggregateId", "version"),
+        AggregateLookup.TABLE, List.of("businessKey"),
+        EventFeed.TABLE, List.of("bucket", "position"),
+        "ImportProgress", List.of("importId", "chunk"),
+        "Idempotency", List.of("hashCommand", "aggregateId"));
+
+    // Clave de cada ítem: dos escrituras que tocan el mismo ítem no van en el mismo lote (DynamoDB rechaza la transacción
+    // entera). Un Put a una tabla sin clave conocida se trata como si tocara toda la tabla
+    private static Option<String> itemKey(TransactWriteItem item) {
+        if (item.put() != null) return Option.of(putKeys.get(item.put().tableName())
+            .map(names -> keyOf(item.put().tableName(), HashMap.ofAll(item.put().item()).filterKeys(names::contains).toJavaMap()))
+            .getOrElse(() -> item.put().tableName()));
+        if (item.update() != null) return Option.of(keyOf(item.update().tableName(), item.update().key()));
+        if (item.delete() != null) return Option.of(keyOf(item.delete().tableName(), item.delete().key()));
+        if (item.conditionCheck() != null) return Option.of(keyOf(item.conditionCheck().tableName(), item.conditionCheck().key()));
+        return Option.none();
+    }
+
+    // Mismo texto para la misma clave sin importar el tipo de escritura ni el orden del mapa
+    private static String keyOf(String table, java.util.Map<String, AttributeValue> key) {
+        return table + "#" + List.ofAll(key.entrySet()).sortBy(java.util.Map.Entry::getKey)
+            .map(attribute -> attribute.getKey() + "=" + attribute.getValue())
+            .mkString(",");
+    }
+
+    // Aproximación del tamaño que DynamoDB cuenta para el límite de 4 MB por transacción
+    private static long estimateSize(TransactWriteItem item) {
+        if (item.put() != null) return estimateSize(item.put().item());
+        if (item.update() != null) return estimateSize(item.update().key()) + estimateSize(item.update().expressionAttributeValues())
+            + Option.of(item.update().updateExpression()).map(String::length).getOrElse(0);
+        if (item.delete() != null) return estimateSize(item.delete().key());
+        if (item.conditionCheck() != null) return estimateSize(item.conditionCheck().key());
+        return 0;
+    }
+
+    static long estimateSize(java.util.Map<String, AttributeValue> attributes) {
+        if (attributes == null) return 0;
+        long size = 0;
+        for (var attribute : attributes.entrySet()) size += attribute.getKey().length() + estimateSize(attribute.getValue());
+        return size;
+    }
+
+    private static long estimateSize(AttributeValue value) {
+        if (value.s() != null) return value.s().length();
+        if (value.n() != null) return value.n().length();
+        if (value.b() != null) return value.b().asByteArray().length;
+        if (value.hasM()) return 3 + estimateSize(value.m());
+        if (value.hasL()) return 3 + value.l().stream().mapToLong(WriteCoalescer::estimateSize).sum();
+        if (value.hasSs()) return value.ss().stream().mapToLong(String::length).sum();
+        if (value.hasNs()) return value.ns().stream().mapToLong(String::length).sum();
+        if (value.hasBs()) return value.bs().stream().map(SdkBytes::asByteArray).mapToLong(bytes -> bytes.length).sum();
+        return 1;
+    }
+}
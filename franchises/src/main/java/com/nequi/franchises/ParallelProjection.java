@@ -0,0 +1,146 @@
+package com.nequi.franchises;
+
+import io.vavr.collection.HashMap;
+import io.vavr.collection.HashSet;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.collection.Set;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static com.nequi.franchises.CommandController.projectEvent;
+import static com.nequi.franchises.util.Utils.env;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Proyección en paralelo de historias grandes. Casi todos los eventos tocan una sola sucursal: su entrada en "branches"
+// y los productos "productId|branchId". La historia se corta en tramos separados por barreras (eventos que cruzan
+// sucursales o reemplazan el mapa completo); dentro de un tramo los eventos se agrupan por sucursal, cada grupo se pliega
+// en un ForkJoinPool sobre la porción del estado de su sucursal y los resultados se combinan. Las barreras se aplican en
+// orden sobre el estado completo, así el resultado es el mismo que el del foldLeft secuencial.
+public class ParallelProjection {
+
+    static final int minEvents = env("PROJECTION_PARALLEL_MIN_EVENTS", 50_000);
+    // Un tramo más corto que esto no compensa el reparto: se pliega en secuencia
+    static final int minSegmentEvents = env("PROJECTION_PARALLEL_MIN_SEGMENT_EVENTS", 2_000);
+    static final int parallelism = env("PROJECTION_PARALLELISM", Runtime.getRuntime().availableProcessors());
+
+    private static final ForkJoinPool pool = new ForkJoinPool(parallelism);
+    private static final Scheduler scheduler = Schedulers.fromExecutorService(pool, "projection");
+
+    private static final Set<String> BRANCH_SCOPED = HashSet.of("BranchAdded", "ProductAddedToBranch", "ProductStockUpdated",
+        "ProductStockAdjusted", "ProductRemovedFromBranch", "BranchRemoved");
+    // Solo cambian claves de nivel franquicia (o nada): conmutan con los eventos de sucursal
+    private static final Set<String> FRANCHISE_SCOPED = HashSet.of("FranchiseNameUpdated", "NotifyStockDepleted", "StockDepletedNotificationSent",
+        "ImportChunkFailed");
+
+    // Tramo entre barreras: eventos de nivel franquicia y eventos por sucursal en su orden original
+    private static final class Segment {
+        final java.util.List<Map<String, Serializable>> franchise = new ArrayList<>();
+        final LinkedHashMap<String, java.util.List<Map<String, Serializable>>> branches = new LinkedHashMap<>();
+        int size;
+
+        void add(String branchId, Map<String, Serializable> event) {
+            (branchId == null ? franchise : branches.computeIfAbsent(branchId, key -> new ArrayList<>())).add(event);
+            size++;
+        }
+    }
+
+    public static Mono<Map<String, Serializable>> project(Map<String, Serializable> initialState, List<Map<String, Serializable>> events) {
+        return Mono.fromCallable(() -> fold(initialState, events)).subscribeOn(scheduler);
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.of(
+            "minEvents", minEvents,
+            "minSegmentEvents", minSegmentEvents,
+            "parallelism", pool.getParallelism(),
+            "activeThreads", pool.getActiveThreadCount(),
+            "steals", pool.getStealCount());
+    }
+
+    // Se ejecuta en un hilo del pool: invokeAll reparte los grupos entre sus workers
+    private static Map<String, Serializable> fold(Map<String, Serializable> initialState, List<Map<String, Serializable>> events) {
+        Map<String, Serializable> state = initialState;
+        Segment segment = new Segment();
+        for (Map<String, Serializable> event : events) {
+            String type = getValue(event, "type", "");
+            if (FRANCHISE_SCOPED.contains(type)) {
+                segment.add(null, event);
+                continue;
+            }
+            String branchId = BRANCH_SCOPED.contains(type) ? branchOf(type, event) : null;
+            if (branchId != null) {
+                segment.add(branchId, event);
+                continue;
+            }
+            // Barrera (o tipo desconocido): se cierra el tramo y el evento se aplica sobre el estado completo
+            state = projectEvent.apply(foldSegment(state, segment), event);
+            segment = new Segment();
+        }
+        return foldSegment(state, segment);
+    }
+
+    private static String branchOf(String type, Map<String, Serializable> event) {
+        Map<String, Serializable> payload = getValue(event, "payload", HashMap.empty());
+        if (!"BranchAdded".equals(type)) return getValue(payload, "branchId", "");
+        // BranchAdded trae {branchId: nombre}; con más de una sucursal se trata como barrera
+        return payload.size() == 1 ? payload.head()._1() : null;
+    }
+
+    private static Map<String, Serializable> foldSegment(Map<String, Serializable> state, Segment segment) {
+        if (segment.size == 0) return state;
+        Map<String, Serializable> franchiseState = List.ofAll(segment.franchise).foldLeft(state, projectEvent);
+        if (segment.size < minSegmentEvents || segment.branches.size() < 2) {
+            return List.ofAll(segment.branches.values()).flatMap(branchEvents -> branchEvents).foldLeft(franchiseState, projectEvent);
+        }
+
+        Map<String, Map<String, Serializable>> branches = getValue(franchiseState, "branches", HashMap.empty());
+        Map<String, Map<String, Serializable>> products = getValue(franchiseState, "products", HashMap.empty());
+        Map<String, Map<String, Map<String, Serializable>>> productsByBranch = products
+            .groupBy(product -> branchOfProduct(product._1()))
+            .mapValues(group -> (Map<String, Map<String, Serializable>>) group);
+        boolean branchesPresent = franchiseState.containsKey("branches");
+        boolean productsPresent = franchiseState.containsKey("products");
+
+        // Cada grupo ve solo su sucursal: su entrada en "branches" y sus productos
+        java.util.List<ForkJoinTask<Map<String, Serializable>>> tasks = new ArrayList<>();
+        segment.branches.forEach((branchId, branchEvents) -> {
+            Map<String, Serializable> slice = HashMap.empty();
+            if (branchesPresent) slice = slice.put("branches", branches.filterKeys(branchId::equals));
+            if (productsPresent) slice = slice.put("products", productsByBranch.get(branchId).getOrElse(HashMap.empty()));
+            Map<String, Serializable> branchState = slice;
+            tasks.add(ForkJoinTask.adapt(() -> List.ofAll(branchEvents).foldLeft(branchState, projectEvent)));
+        });
+        ForkJoinTask.invokeAll(tasks);
+
+        // Los grupos son disjuntos: se quita lo que cada sucursal tenía y se agrega lo que produjo
+        Set<String> touched = HashSet.ofAll(segment.branches.keySet());
+        Map<String, Map<String, Serializable>> mergedBranches = branches.removeAll(touched);
+        Map<String, Map<String, Serializable>> mergedProducts = products.removeAll(touched.flatMap(branchId -> productsByBranch.get(branchId).map(Map::keySet).getOrElse(HashSet.empty())));
+        boolean hasBranches = branchesPresent;
+        boolean hasProducts = productsPresent;
+        for (ForkJoinTask<Map<String, Serializable>> task : tasks) {
+            Map<String, Serializable> result = task.join();
+            hasBranches |= result.containsKey("branches");
+            hasProducts |= result.containsKey("products");
+            mergedBranches = mergedBranches.merge(getValue(result, "branches", HashMap.empty()));
+            mergedProducts = mergedProducts.merge(getValue(result, "products", HashMap.empty()));
+        }
+        Map<String, Serializable> merged = franchiseState;
+        if (hasBranches) merged = merged.put("branches", mergedBranches);
+        if (hasProducts) merged = merged.put("products", mergedProducts);
+        return merged;
+    }
+
+    // Las claves de productos son "productId|branchId"
+    private static String branchOfProduct(String productKey) {
+        return productKey.substring(productKey.indexOf('|') + 1);
+    }
+}
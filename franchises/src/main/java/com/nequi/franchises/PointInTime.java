@@ -0,0 +1,54 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.IO.EventStoreFactory;
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import static com.nequi.franchises.CommandController.projectState;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Consultas históricas: estado de un agregado en la versión N o en el instante T.
+// Se parte del snapshot más cercano (o del inicio del stream) y solo se leen los eventos entre ese punto y el objetivo.
+public class PointInTime {
+
+    public static Mono<Map<String, Serializable>> stateAt(String aggregateId, Option<Integer> version, Option<Instant> at) {
+        return Mono.fromCallable(() -> targetVersion(aggregateId, version, at))
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMap(target -> {
+                Tuple2<Integer, Map<String, Serializable>> snapshot = EventStoreFactory.loadSnapshot().apply(aggregateId, target)
+                    .getOrElse(Tuple.of(0, HashMap.empty()));
+                @SuppressWarnings("unchecked")
+                List<Map<String, Serializable>> events = (List<Map<String, Serializable>>) (List<?>) EventStoreFactory.fetchEventsBetween()
+                    .apply(aggregateId, snapshot._1() + 1, target);
+                int reached = events.map(event -> Integer.parseInt(String.valueOf(getValue(event, "version", "0")))).max().getOrElse(snapshot._1());
+                return projectState.apply(snapshot._2(), events)
+                    .map(state -> HashMap.<String, Serializable>of(
+                        "aggregateId", aggregateId,
+                        "requestedVersion", target,
+                        "version", reached,
+                        "snapshotVersion", snapshot._1(),
+                        "eventsReplayed", events.size(),
+                        "state", state));
+            })
+            .map(result -> at.map(instant -> result.put("at", instant.toString())).getOrElse(result));
+    }
+
+    private static int targetVersion(String aggregateId, Option<Integer> version, Option<Instant> at) {
+        if (version.isDefined()) {
+            if (version.get() < 1) throw new IllegalArgumentException("version debe ser mayor o igual a 1.");
+            return version.get();
+        }
+        return at.map(instant -> EventStoreFactory.versionAtTime().apply(aggregateId, instant)
+                .getOrElseThrow(() -> new IllegalStateException("El agregado no tenía eventos en %s.".formatted(instant))))
+            .getOrElseThrow(() -> new IllegalArgumentException("Se requiere version o at."));
+    }
+}
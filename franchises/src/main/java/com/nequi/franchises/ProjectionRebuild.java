@@ -0,0 +1,127 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.IO.EventStoreFactory;
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nequi.franchises.CommandController.projectState;
+import static com.nequi.franchises.util.Utils.env;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Reconstrucción de snapshots y proyecciones para todas las franquicias: Scan paralelo por segmentos,
+// proyección en un pool fork-join, escrituras acotadas, límite de lectura y checkpoints por segmento
+public class ProjectionRebuild {
+
+    static final int defaultSegments = env("REBUILD_SEGMENTS", 8);
+    static final int defaultWriteConcurrency = env("REBUILD_WRITE_CONCURRENCY", 4);
+    static final int defaultItemsPerSecond = env("REBUILD_MAX_ITEMS_PER_SECOND", 500);
+    static final int pageSize = env("REBUILD_PAGE_SIZE", 100);
+    static final int checkpointEvery = env("REBUILD_CHECKPOINT_EVERY", 50);
+
+    private static final Scheduler projectionScheduler = Schedulers.fromExecutorService(new ForkJoinPool(Runtime.getRuntime().availableProcessors()), "projection-rebuild");
+    private static final ConcurrentHashMap<String, Progress> rebuilds = new ConcurrentHashMap<>();
+
+    record Progress(int segments, long startedAt, AtomicLong aggregates, AtomicLong events, AtomicLong written,
+                    AtomicInteger segmentsDone, AtomicLong failures) {
+
+        static Progress start(int segments) {
+            return new Progress(segments, System.currentTimeMillis(), new AtomicLong(), new AtomicLong(), new AtomicLong(),
+                new AtomicInteger(), new AtomicLong());
+        }
+
+        Map<String, Serializable> toMap(String rebuildId) {
+            double seconds = Math.max(System.currentTimeMillis() - startedAt, 1) / 1000.0;
+            return HashMap.of(
+                "rebuildId", rebuildId,
+                "segments", segments,
+                "segmentsDone", segmentsDone.get(),
+                "finished", segmentsDone.get() >= segments,
+                "aggregates", aggregates.get(),
+                "events", events.get(),
+                "written", written.get(),
+                "failures", failures.get(),
+                "aggregatesPerSecond", aggregates.get() / seconds);
+        }
+    }
+
+    // Arranca (o reanuda, con el mismo rebuildId) la reconstrucción en segundo plano y retorna el progreso inicial
+    public static Map<String, Serializable> start(String rebuildId, int segments, int writeConcurrency, int itemsPerSecond) {
+        Map<Integer, Tuple2<Option<String>, Boolean>> checkpoints = EventStoreFactory.loadRebuildCheckpoints(rebuildId);
+        Duration pageDelay = Duration.ofMillis(Math.max(1, 1000L * pageSize * segments / Math.max(1, itemsPerSecond)));
+        Progress progress = Progress.start(segments);
+        progress.segmentsDone().addAndGet(checkpoints.count(checkpoint -> checkpoint._2()._2()));
+        rebuilds.put(rebuildId, progress);
+
+        Flux.range(0, segments)
+            .filter(segment -> !checkpoints.get(segment).map(Tuple2::_2).getOrElse(false))
+            .flatMap(segment -> rebuildSegment(rebuildId, segment, segments, checkpoints.get(segment).flatMap(Tuple2::_1), writeConcurrency, pageDelay, progress), segments)
+            .subscribe();
+        return progress.toMap(rebuildId);
+    }
+
+    public static Option<Map<String, Serializable>> progress(String rebuildId) {
+        return Option.of(rebuilds.get(rebuildId)).map(progress -> progress.toMap(rebuildId));
+    }
+
+    private static Mono<Void> rebuildSegment(String rebuildId, int segment, int segments, Option<String> startAfter,
+                                             int writeConcurrency, Duration pageDelay, Progress progress) {
+        AtomicLong processed = new AtomicLong();
+        return EventStoreFactory.scanEventsSegment(segment, segments, startAfter, pageSize, pageDelay)
+            // Las claves "aggregateId#n" pertenecen a agregados particionados; se reconstruyen desde su clave base
+            .filter(item -> !item._1().contains("#"))
+            .bufferUntilChanged(Tuple2::_1)
+            .map(List::ofAll)
+            // flatMapSequential conserva el orden del Scan: el checkpoint siempre apunta a un prefijo ya escrito
+            .flatMapSequential(group -> rebuildAggregate(group.head()._1(), group.map(Tuple2::_2), progress)
+                .onErrorResume(e -> {
+                    progress.failures().incrementAndGet();
+                    return Mono.just(group.head()._1());
+                }), writeConcurrency)
+            .concatMap(partitionKey -> processed.incrementAndGet() % checkpointEvery == 0
+                ? Mono.fromRunnable(() -> EventStoreFactory.saveRebuildCheckpoint(rebuildId, segment, Option.some(partitionKey), false)).subscribeOn(Schedulers.boundedElastic()).thenReturn(partitionKey)
+                : Mono.just(partitionKey))
+            .last(startAfter.getOrElse(""))
+            .flatMap(lastKey -> Mono.fromRunnable(() -> EventStoreFactory.saveRebuildCheckpoint(rebuildId, segment, Option.of(lastKey).filter(key -> !key.isEmpty()), true))
+                .subscribeOn(Schedulers.boundedElastic()))
+            .doOnSuccess(done -> progress.segmentsDone().incrementAndGet())
+            .then();
+    }
+
+    private static Mono<String> rebuildAggregate(String aggregateId, List<Map<String, Object>> scannedEvents, Progress progress) {
+        return Mono.fromCallable(() -> EventStoreFactory.isShardedAggregate(aggregateId)
+                ? EventStoreFactory.fetchEventsFromDynamo().apply(aggregateId)
+                : scannedEvents)
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMap(events -> {
+                @SuppressWarnings("unchecked")
+                List<Map<String, Serializable>> replay = (List<Map<String, Serializable>>) (List<?>) events;
+                int version = replay.map(event -> Integer.parseInt(String.valueOf(getValue(event, "version", "0")))).max().getOrElse(0);
+                progress.events().addAndGet(replay.size());
+                return projectState.apply(HashMap.empty(), replay)
+                    .subscribeOn(projectionScheduler)
+                    .doOnNext(state -> progress.aggregates().incrementAndGet())
+                    .map(state -> Tuple.of(version, state));
+            })
+            .flatMap(projected -> Mono.fromRunnable(() -> EventStoreFactory.saveDerivedState(aggregateId, projected._1(), projected._2()))
+                .subscribeOn(Schedulers.boundedElastic()))
+            .then(Mono.fromCallable(() -> {
+                progress.written().incrementAndGet();
+                return aggregateId;
+            }));
+    }
+}
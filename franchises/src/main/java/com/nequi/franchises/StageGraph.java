@@ -0,0 +1,139 @@
+package com.nequi.franchises;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import reactor.core.publisher.Mono;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Grafo de etapas del pipeline de comandos: cada etapa declara de qué etapas depende y recibe sus resultados por nombre
+// (la entrada del grafo está en INPUT). Las etapas se agrupan en niveles según su profundidad; las de un mismo nivel corren
+// en paralelo con Mono.zip, así un error en una cancela a las demás y la cancelación del comando llega a todas.
+// Cada ejecución registra la suma de las duraciones de las etapas y la duración total: la diferencia es lo que el
+// paralelismo ahorró en el camino crítico.
+public class StageGraph {
+
+    public static final String INPUT = "input";
+
+    static final boolean concurrentByDefault = env("PIPELINE_CONCURRENT", true);
+
+    // Una etapa recibe los resultados de las etapas anteriores y emite exactamente un valor
+    public interface Stage extends Function<Map<String, Map<String, Serializable>>, Mono<Map<String, Serializable>>> {
+    }
+
+    private record Node(String name, List<String> dependsOn, Stage stage) {}
+
+    private record Totals(AtomicLong runs, AtomicLong stageNanos, AtomicLong wallNanos) {
+        Totals() {
+            this(new AtomicLong(), new AtomicLong(), new AtomicLong());
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Totals> totals = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final List<Node> nodes;
+
+    private StageGraph(String name, List<Node> nodes) {
+        this.name = name;
+        this.nodes = nodes;
+    }
+
+    public static StageGraph named(String name) {
+        return new StageGraph(name, List.empty());
+    }
+
+    // PIPELINE_CONCURRENT_<tipo> permite volver a la cadena secuencial para un tipo de comando (por ejemplo para comparar)
+    public static boolean concurrent(String commandType) {
+        return env("PIPELINE_CONCURRENT_" + commandType, concurrentByDefault);
+    }
+
+    // Adapta un paso que consume el resultado de una sola etapa
+    public static Stage using(String input, Function<Map<String, Serializable>, Mono<Map<String, Serializable>>> step) {
+        return results -> step.apply(results.get(input).getOrElseThrow(() -> new IllegalStateException("Etapa sin resultado: " + input)));
+    }
+
+    // Las dependencias deben estar declaradas antes: el orden de declaración ya es un orden topológico
+    public StageGraph stage(String stage, List<String> dependsOn, Stage step) {
+        dependsOn.filter(dependency -> !INPUT.equals(dependency) && nodes.forAll(node -> !node.name().equals(dependency)))
+            .headOption()
+            .forEach(missing -> { throw new IllegalArgumentException("La etapa %s depende de %s, que no está declarada antes".formatted(stage, missing)); });
+        return new StageGraph(name, nodes.append(new Node(stage, dependsOn, step)));
+    }
+
+    public Mono<Map<String, Map<String, Serializable>>> run(Map<String, Serializable> input) {
+        return run(input, saved -> { });
+    }
+
+    // overlapped recibe los nanosegundos de etapas que corrieron solapadas (suma de etapas - duración total)
+    public Mono<Map<String, Map<String, Serializable>>> run(Map<String, Serializable> input, LongConsumer overlapped) {
+        return Mono.defer(() -> {
+            long started = System.nanoTime();
+            AtomicLong stageNanos = new AtomicLong();
+            Mono<Map<String, Map<String, Serializable>>> results = Mono.just(HashMap.of(INPUT, input));
+            for (List<Node> level : levels()) {
+                results = results.flatMap(done -> Mono.zip(level.map(node -> timed(node, done, stageNanos)), outputs -> {
+                    Map<String, Map<String, Serializable>> merged = done;
+                    for (Object output : outputs) {
+                        @SuppressWarnings("unchecked")
+                        Tuple2<String, Map<String, Serializable>> named = (Tuple2<String, Map<String, Serializable>>) output;
+                        merged = merged.put(named);
+                    }
+                    return merged;
+                }));
+            }
+            return results.doOnNext(done -> {
+                long wall = System.nanoTime() - started;
+                Totals graph = totals.computeIfAbsent(name, key -> new Totals());
+                graph.runs().incrementAndGet();
+                graph.stageNanos().addAndGet(stageNanos.get());
+                graph.wallNanos().addAndGet(wall);
+                overlapped.accept(Math.max(0, stageNanos.get() - wall));
+            });
+        });
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.ofAll(totals).mapValues(graph -> {
+            long runs = Math.max(1, graph.runs().get());
+            return (Serializable) HashMap.<String, Serializable>of(
+                "runs", graph.runs().get(),
+                "avgStagesMs", graph.stageNanos().get() / runs / 1e6,
+                "avgCriticalPathMs", graph.wallNanos().get() / runs / 1e6,
+                "avgSavedMs", Math.max(0, graph.stageNanos().get() - graph.wallNanos().get()) / runs / 1e6);
+        });
+    }
+
+    private static Mono<Tuple2<String, Map<String, Serializable>>> timed(Node node, Map<String, Map<String, Serializable>> done, AtomicLong stageNanos) {
+        return Mono.defer(() -> {
+            long started = System.nanoTime();
+            return node.stage().apply(done)
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("La etapa %s no produjo resultado".formatted(node.name()))))
+                .map(output -> Tuple.of(node.name(), output))
+                .doFinally(signal -> stageNanos.addAndGet(System.nanoTime() - started));
+        });
+    }
+
+    // Nivel = 1 + el nivel más profundo entre sus dependencias
+    private List<List<Node>> levels() {
+        Map<String, Integer> depth = HashMap.of(INPUT, 0);
+        for (Node node : nodes) {
+            Map<String, Integer> known = depth;
+            depth = depth.put(node.name(), node.dependsOn().map(dependency -> known.get(dependency).getOrElse(0)).max().getOrElse(0) + 1);
+        }
+        Map<String, Integer> levelOf = depth;
+        return nodes.groupBy(node -> levelOf.get(node.name()).get())
+            .toList()
+            .sortBy(Tuple2::_1)
+            .map(Tuple2::_2);
+    }
+}
@@ -0,0 +1,104 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.IO.EventStoreFactory;
+import com.nequi.franchises.config.SerializerConfig;
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import io.vavr.control.Try;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nequi.franchises.util.Utils.env;
+import static com.nequi.franchises.util.Utils.getValue;
+
+// Lectura del estado actual de un agregado con ETag fuerte = última versión. Cada petición hace una sola consulta de
+// versión (limit 1); si coincide con If-None-Match se responde 304 sin replay, y si no, la respuesta serializada de esa
+// versión sale del cache. Solo una versión nueva paga el replay (desde el snapshot más cercano, ver PointInTime).
+public class StateView {
+
+    static final int cacheMaxEntries = env("STATE_CACHE_MAX_ENTRIES", 10_000);
+
+    // aggregateId -> (versión, respuesta serializada)
+    private static final ConcurrentHashMap<String, Tuple2<Integer, byte[]>> cache = new ConcurrentHashMap<>();
+    private static final AtomicLong notModified = new AtomicLong();
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong replays = new AtomicLong();
+
+    public static Mono<ResponseEntity<Object>> current(String aggregateId, String ifNoneMatch) {
+        return Mono.fromCallable(() -> EventStoreFactory.getMaxVersionForAggregate(aggregateId))
+            .subscribeOn(Schedulers.boundedElastic())
+            .<ResponseEntity<Object>>flatMap(version -> {
+                if (version == 0) return Mono.just(ResponseEntity.notFound().build());
+                if (matches(ifNoneMatch, version)) {
+                    notModified.incrementAndGet();
+                    return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag(version)).cacheControl(CacheControl.noCache()).build());
+                }
+                Tuple2<Integer, byte[]> cached = cache.get(aggregateId);
+                if (cached != null && cached._1().equals(version)) {
+                    cacheHits.incrementAndGet();
+                    return Mono.just(ok(cached));
+                }
+                return render(aggregateId, version).map(StateView::ok);
+            });
+    }
+
+    public static Map<String, Serializable> stats() {
+        return HashMap.of(
+            "cachedAggregates", cache.size(),
+            "notModified", notModified.get(),
+            "cacheHits", cacheHits.get(),
+            "replays", replays.get());
+    }
+
+    // La lectura de eventos es eventual: si el replay no alcanzó la versión consultada, el ETag es el de lo que se
+    // proyectó y no se cachea, así la próxima petición vuelve a intentarlo
+    private static Mono<Tuple2<Integer, byte[]>> render(String aggregateId, int version) {
+        replays.incrementAndGet();
+        return PointInTime.stateAt(aggregateId, Option.some(version), Option.none())
+            .map(result -> {
+                int reached = getValue(result, "version", version);
+                Map<String, Serializable> body = HashMap.of("aggregateId", aggregateId, "version", reached, "state", getValue(result, "state", HashMap.empty()));
+                Tuple2<Integer, byte[]> rendered = Tuple.of(reached, Try.of(() -> SerializerConfig.mapper.writeValueAsBytes(body)).get());
+                if (reached == version) {
+                    if (cache.size() >= cacheMaxEntries) cache.clear();
+                    // Una petición más lenta con una versión anterior no reemplaza a una más nueva
+                    cache.merge(aggregateId, rendered, (current, candidate) -> candidate._1() >= current._1() ? candidate : current);
+                }
+                return rendered;
+            });
+    }
+
+    private static ResponseEntity<Object> ok(Tuple2<Integer, byte[]> rendered) {
+        return ResponseEntity.ok()
+            .eTag(etag(rendered._1()))
+            .cacheControl(CacheControl.noCache())
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(rendered._2());
+    }
+
+    private static String etag(int version) {
+        return "\"%d\"".formatted(version);
+    }
+
+    // If-None-Match usa comparación débil: se ignora el prefijo W/ y "*" coincide con cualquier versión existente
+    private static boolean matches(String ifNoneMatch, int version) {
+        if (ifNoneMatch == null || ifNoneMatch.isBlank()) return false;
+        String current = etag(version);
+        return List.of(ifNoneMatch.split(","))
+            .map(String::trim)
+            .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+            .exists(tag -> tag.equals("*") || tag.equals(current));
+    }
+}
@@ -0,0 +1,306 @@
+package com.nequi.franchises.comands;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+
+import java.io.Serializable;
+import java.util.regex.Pattern;
+
+import static com.nequi.franchises.util.Utils.env;
+
+// Comandos tipados: Jackson elige el record a partir del discriminador "type" en la misma pasada que lee el cuerpo.
+// La validación y la decisión trabajan sobre los campos del record; toMap alimenta las etapas del pipeline que
+// persisten o reenvían el comando (idempotencia, ledger, cluster, event store).
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.EXISTING_PROPERTY, property = "type", visible = true, defaultImpl = TypedCommand.Unknown.class)
+@JsonSubTypes({
+    @JsonSubTypes.Type(value = TypedCommand.CreateFranchise.class, name = "CreateFranchise"),
+    @JsonSubTypes.Type(value = TypedCommand.UpdateFranchiseName.class, name = "UpdateFranchiseName"),
+    @JsonSubTypes.Type(value = TypedCommand.AddBranch.class, name = "AddBranch"),
+    @JsonSubTypes.Type(value = TypedCommand.UpdateBranchName.class, name = "UpdateBranchName"),
+    @JsonSubTypes.Type(value = TypedCommand.AddProductToBranch.class, name = "AddProductToBranch"),
+    @JsonSubTypes.Type(value = TypedCommand.UpdateProductStock.class, name = "UpdateProductStock"),
+    @JsonSubTypes.Type(value = TypedCommand.TransferProductBetweenBranches.class, name = "TransferProductBetweenBranches"),
+    @JsonSubTypes.Type(value = TypedCommand.RemoveProductFromBranch.class, name = "RemoveProductFromBranch"),
+    @JsonSubTypes.Type(value = TypedCommand.RemoveBranch.class, name = "RemoveBranch"),
+    @JsonSubTypes.Type(value = TypedCommand.RemoveFranchise.class, name = "RemoveFranchise"),
+    @JsonSubTypes.Type(value = TypedCommand.AdjustProductStock.class, name = "AdjustProductStock"),
+    @JsonSubTypes.Type(value = TypedCommand.NotifyStockDepleted.class, name = "NotifyStockDepleted")
+})
+@JsonIgnoreProperties(ignoreUnknown = true)
+public sealed interface TypedCommand {
+
+    String ID_PATTERN = "[A-Z]*\\d+";
+    int MAX_PRODUCT_ERRORS = env("IMPORT_MAX_REPORTED_ERRORS", 100);
+
+    String type();
+
+    String aggregateId();
+
+    ValidationResult validate();
+
+    Map<String, Serializable> toMap();
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record CreateFranchise(String aggregateId, String franchiseId, String franchiseName) implements TypedCommand {
+        public String type() { return "CreateFranchise"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("franchiseName", franchiseName).nonEmpty("franchiseName", franchiseName)
+                .required("franchiseId", franchiseId).nonEmpty("franchiseId", franchiseId)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "franchiseName", franchiseName);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record UpdateFranchiseName(String aggregateId, String franchiseId, String newName) implements TypedCommand {
+        public String type() { return "UpdateFranchiseName"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("franchiseId", franchiseId).nonEmpty("franchiseId", franchiseId)
+                .required("newName", newName).nonEmpty("newName", newName)
+                .pattern("franchiseId", franchiseId)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "newName", newName);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record AddBranch(String aggregateId, String franchiseId, String branchId, String branchName) implements TypedCommand {
+        public String type() { return "AddBranch"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("franchiseId", franchiseId).nonEmpty("franchiseId", franchiseId).pattern("franchiseId", franchiseId)
+                .required("branchId", branchId).nonEmpty("branchId", branchId).pattern("branchId", branchId)
+                .required("branchName", branchName).nonEmpty("branchName", branchName)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "branchId", branchId, "branchName", branchName);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record UpdateBranchName(String aggregateId, String franchiseId, String branchId, String newName) implements TypedCommand {
+        public String type() { return "UpdateBranchName"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("branchId", branchId).nonEmpty("branchId", branchId).pattern("branchId", branchId)
+                .required("newName", newName).nonEmpty("newName", newName)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "branchId", branchId, "newName", newName);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record AddProductToBranch(String aggregateId, String franchiseId, String branchId, Map<String, Map<String, Serializable>> products) implements TypedCommand {
+        public String type() { return "AddProductToBranch"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("franchiseId", franchiseId).nonEmpty("franchiseId", franchiseId).pattern("franchiseId", franchiseId)
+                .required("branchId", branchId).nonEmpty("branchId", branchId).pattern("branchId", branchId)
+                .products(products)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "branchId", branchId, "products", products);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record UpdateProductStock(String aggregateId, String franchiseId, String branchId, String productId, Integer quantityChange) implements TypedCommand {
+        public String type() { return "UpdateProductStock"; }
+
+        public ValidationResult validate() {
+            return new Checks().businessKey(aggregateId, franchiseId)
+                .required("branchId", branchId).nonEmpty("branchId", branchId).pattern("branchId", branchId)
+                .required("productId", productId).nonEmpty("productId", productId).pattern("productId", productId)
+                .required("quantityChange", quantityChange)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "branchId", branchId, "productId", productId, "quantityChange", quantityChange);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record TransferProductBetweenBranches(String aggregateId, String franchiseId, String fromBranchId, String toBranchId, String productId, Integer quantity) implements TypedCommand {
+        public String type() { return "TransferProductBetweenBranches"; }
+
+        public ValidationResult validate() {
+            return new Checks().businessKey(aggregateId, franchiseId)
+                .required("fromBranchId", fromBranchId).nonEmpty("fromBranchId", fromBranchId)
+                .required("toBranchId", toBranchId).nonEmpty("toBranchId", toBranchId)
+                .required("productId", productId).nonEmpty("productId", productId)
+                .required("quantity", quantity).positive("quantity", quantity)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "fromBranchId", fromBranchId, "toBranchId", toBranchId, "productId", productId, "quantity", quantity);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record RemoveProductFromBranch(String aggregateId, String franchiseId, String branchId, String productId) implements TypedCommand {
+        public String type() { return "RemoveProductFromBranch"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("franchiseId", franchiseId).nonEmpty("franchiseId", franchiseId).pattern("franchiseId", franchiseId)
+                .required("branchId", branchId).nonEmpty("branchId", branchId).pattern("branchId", branchId)
+                .required("productId", productId).nonEmpty("productId", productId)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "branchId", branchId, "productId", productId);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record RemoveBranch(String aggregateId, String franchiseId, String branchId) implements TypedCommand {
+        public String type() { return "RemoveBranch"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("franchiseId", franchiseId).nonEmpty("franchiseId", franchiseId).pattern("franchiseId", franchiseId)
+                .required("branchId", branchId).nonEmpty("branchId", branchId).pattern("branchId", branchId)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "branchId", branchId);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record RemoveFranchise(String aggregateId, String franchiseId) implements TypedCommand {
+        public String type() { return "RemoveFranchise"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("franchiseId", franchiseId).nonEmpty("franchiseId", franchiseId).pattern("franchiseId", franchiseId)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record AdjustProductStock(String aggregateId, String franchiseId, String branchId, String productId, Integer newStock) implements TypedCommand {
+        public String type() { return "AdjustProductStock"; }
+
+        public ValidationResult validate() {
+            return new Checks().required("productId", productId).nonEmpty("productId", productId)
+                .required("newStock", newStock).positive("newStock", newStock)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "branchId", branchId, "productId", productId, "newStock", newStock);
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record NotifyStockDepleted(String aggregateId, String franchiseId, String branchId, String productId) implements TypedCommand {
+        public String type() { return "NotifyStockDepleted"; }
+
+        public ValidationResult validate() {
+            // Se despacha tras la escritura que agotó el stock, con el aggregateId ya resuelto: franchiseId es opcional y el
+            // evento toma el del estado del agregado
+            Checks checks = franchiseId == null ? new Checks() : new Checks().pattern("franchiseId", franchiseId);
+            return checks.required("branchId", branchId).nonEmpty("branchId", branchId).pattern("branchId", branchId)
+                .required("productId", productId).nonEmpty("productId", productId).pattern("productId", productId)
+                .result();
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type(), aggregateId, "franchiseId", franchiseId, "branchId", branchId, "productId", productId);
+        }
+    }
+
+    // Tipo ausente o desconocido: se rechaza en la validación, igual que antes
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record Unknown(String type, String aggregateId) implements TypedCommand {
+        public ValidationResult validate() {
+            return new ValidationResult(false, List.of("Type doesn't exist in the system!"));
+        }
+
+        public Map<String, Serializable> toMap() {
+            return fields(type, aggregateId);
+        }
+    }
+
+    // Solo los campos presentes, como el cuerpo recibido
+    private static Map<String, Serializable> fields(String type, String aggregateId, Object... keyValues) {
+        Map<String, Serializable> fields = HashMap.empty();
+        if (type != null) fields = fields.put("type", type);
+        if (aggregateId != null) fields = fields.put("aggregateId", aggregateId);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            if (keyValues[i + 1] != null) fields = fields.put((String) keyValues[i], (Serializable) keyValues[i + 1]);
+        }
+        return fields;
+    }
+
+    // Acumula errores sobre campos tipados con los mismos mensajes de Validators
+    final class Checks {
+        private static final Pattern ID = Pattern.compile(ID_PATTERN);
+        private List<String> errors = List.empty();
+
+        Checks required(String field, Object value) {
+            return check(value != null && !value.toString().isBlank(), "%s is required".formatted(field));
+        }
+
+        Checks nonEmpty(String field, String value) {
+            return check(value != null && !value.trim().isEmpty(), "%s must be a non-empty string".formatted(field));
+        }
+
+        Checks pattern(String field, String value) {
+            return check(value != null && ID.matcher(value).matches(), "%s does not match the required pattern %s".formatted(field, ID_PATTERN));
+        }
+
+        // Los comandos de stock se enrutan por (franchiseId, branchId) cuando traen la franquicia; sin ella se necesita el aggregateId
+        Checks businessKey(String aggregateId, String franchiseId) {
+            if (franchiseId != null) return pattern("franchiseId", franchiseId);
+            return check(aggregateId != null && !aggregateId.isBlank(), "franchiseId is required");
+        }
+
+        Checks positive(String field, Integer value) {
+            return value == null ? check(false, "%s must be a numeric value".formatted(field)) : check(value > 0, "%s must be a positive number".formatted(field));
+        }
+
+        Checks products(Map<String, Map<String, Serializable>> products) {
+            if (products == null) return this;
+            errors = errors.appendAll(products.toStream()
+                .flatMap(product -> Validators.productErrors(product._1(), product._2()))
+                .take(MAX_PRODUCT_ERRORS));
+            return this;
+        }
+
+        ValidationResult result() {
+            List<String> distinct = errors.distinct();
+            return new ValidationResult(distinct.isEmpty(), distinct);
+        }
+
+        private Checks check(boolean valid, String error) {
+            if (!valid) errors = errors.append(error);
+            return this;
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package com.nequi.franchises.comands;
 
+import io.vavr.collection.HashMap;
 import io.vavr.collection.List;
+import io.vavr.collection.Map;
 
+import java.io.Serializable;
 import java.util.regex.Pattern;
 
 import static com.nequi.franchises.util.Utils.getValue;
@@ -111,4 +114,28 @@ public class Validators {
             return new ValidationResult(true, List.of());
         };
     }
+
+    // Valida los productos uno a uno y de forma perezosa: no construye validadores proporcionales al tamaño del catálogo
+    public static Validator validProducts(String field, int maxErrors) {
+        return (input) -> {
+            Map<String, Map<String, Serializable>> products = input.getAs(field, HashMap.empty());
+            List<String> errors = products.toStream()
+                .flatMap(product -> productErrors(product._1(), product._2()))
+                .take(maxErrors)
+                .toList();
+            return new ValidationResult(errors.isEmpty(), errors);
+        };
+    }
+
+    public static List<String> productErrors(String productId, Map<String, Serializable> product) {
+        List<String> errors = List.empty();
+        if (isBlank(productId)) errors = errors.append("productId is required");
+        if (isBlank(product.get("productName").getOrNull())) errors = errors.append("products.%s.productName is required".formatted(productId));
+        if (isBlank(product.get("currentStock").getOrNull())) errors = errors.append("products.%s.currentStock is required".formatted(productId));
+        return errors;
+    }
+
+    private static boolean isBlank(Object value) {
+        return value == null || value.toString().isBlank();
+    }
 }
@@ -0,0 +1,28 @@
+package com.nequi.franchises.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.springframework.boot.rsocket.messaging.RSocketStrategiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.codec.cbor.Jackson2CborDecoder;
+import org.springframework.http.codec.cbor.Jackson2CborEncoder;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+
+// Codecs del canal RSocket con el mismo ObjectMapper que HTTP (módulo de Vavr y comandos tipados).
+// El cliente elige la codificación en el SETUP: application/cbor (binaria, más compacta) o application/json.
+// Van antes que los codecs por defecto de Spring Boot, que no conocen las colecciones de Vavr.
+@Configuration
+public class RSocketConfig {
+
+    @Bean
+    @Order(-1)
+    public RSocketStrategiesCustomizer vavrCodecs() {
+        ObjectMapper cbor = SerializerConfig.mapper.copyWith(new CBORFactory());
+        return strategies -> strategies
+            .encoder(new Jackson2CborEncoder(cbor), new Jackson2JsonEncoder(SerializerConfig.mapper))
+            .decoder(new Jackson2CborDecoder(cbor), new Jackson2JsonDecoder(SerializerConfig.mapper));
+    }
+}
@@ -2,6 +2,7 @@ package com.nequi.franchises.config;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
@@ -37,7 +38,9 @@ public class SerializerConfig {
                                     ArrayList<?> arrayList = p.readValueAs(ArrayList.class);
                                     return (List<?>) convertValue(arrayList); // Convertir usando lógica común
                                 }
-                            }))).memoized();
+                            }))
+                    // 2.5 en un campo entero de un comando es un error del decoder (400 "must be a numeric value"), no se trunca
+                    .disable(DeserializationFeature.ACCEPT_FLOAT_AS_INT)).memoized();
 
     public static ObjectMapper mapper = getObjectMapper.apply();
 
@@ -1,16 +1,24 @@
 package com.nequi.franchises.util;
 
+import com.nequi.franchises.IO.AggregateLookup;
 import com.nequi.franchises.IO.EventStoreFactory;
+import com.nequi.franchises.IO.HedgedReads;
+import com.nequi.franchises.IO.StockLevels;
 import io.vavr.Function1;
 import io.vavr.Function2;
+import io.vavr.Function3;
+import io.vavr.Lazy;
 import io.vavr.Tuple;
 import io.vavr.collection.HashMap;
+import io.vavr.collection.HashSet;
 import io.vavr.collection.List;
 import io.vavr.collection.Map;
+import io.vavr.collection.Set;
 import io.vavr.control.Option;
 import io.vavr.control.Try;
 import org.jetbrains.annotations.NotNull;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 
 import java.io.Serializable;
@@ -26,7 +34,12 @@ public class Utils {
     public static <K, V, T> T getValue(Map<K, V> map, K key, T defaultValue) {
         return key instanceof String && ((String) key).contains(".")
             ? (T) getValueByPath((Map<String, V>) map, key.toString()).getOrElse(defaultValue)
-            : map.get(key).map(value -> (T) value).getOrElse(defaultValue);
+            : map.get(key).map(value -> (T) force(value)).getOrElse(defaultValue);
+    }
+
+    // Los valores perezosos (p. ej. payloads de eventos leídos del event store) se evalúan al primer acceso
+    private static Object force(Object value) {
+        return value instanceof Lazy<?> lazy ? lazy.get() : value;
     }
 
     private static <V> Option<Object> getValueByPath(Map<String, V> map, String path) {
@@ -36,13 +49,14 @@ public class Utils {
     @SuppressWarnings("unchecked")
     private static <V> Try<Object> traverse(Object current, String[] keys, int index) {
         return index == keys.length
-                ? Try.success(current)
+                ? Try.success(force(current))
                 : Try.of(() -> {
             String key = keys[index];
-            if (current instanceof Map<?, ?> map) {
+            Object node = force(current);
+            if (node instanceof Map<?, ?> map) {
                 return traverse(((Map<String, V>) map).get(key).getOrNull(), keys, index + 1).get();
             }
-            if (current instanceof Vector<?> vector) {
+            if (node instanceof Vector<?> vector) {
                 int arrayIndex = Integer.parseInt(key);
                 return traverse(vector.get(arrayIndex), keys, index + 1).get();
             }
@@ -54,9 +68,9 @@ public class Utils {
     public static Function1<Function1<String, List<Map<String, Object>>>, Step> downloadEvents = fetchEvents -> command ->
         "CreateFranchise".equals(getValue(command, "type", ""))
             ? Mono.just(buildResult(command, List.empty()))
-            : Mono.fromCallable(() -> fetchEvents.apply(getValue(command, "aggregateId", "")))
+            : HedgedReads.read("fetchEvents", () -> fetchEvents.apply(getValue(command, "aggregateId", "")))
             .map(events -> buildResult(command, events))
-            .onErrorResume(e -> Mono.error(new RuntimeException("Error loading events for command: %s | %s".formatted(command, e))));
+            .onErrorResume(e -> Mono.error(new RuntimeException("Error loading events for command: %s | %s".formatted(command, e), e)));
 
     @NotNull
     private static Map<String, Serializable> buildResult(Map<String, Serializable> command, List<Map<String, Object>> events) {
@@ -79,6 +93,93 @@ public class Utils {
         return Mono.just(result.remove("command"));
     };
 
+    // Persistencia condicionada a la versión observada en el replay (command.expectedVersion)
+    public static Function1<Function3<List<Map<String, Serializable>>, String, Integer, List<Map<String, Serializable>>>, Step> persistEventsAtVersion = saveEvents -> result -> {
+        int expectedVersion = getValue(getValue(result, "command", HashMap.<String, Serializable>empty()), "expectedVersion", (Number) 0).intValue();
+        return persistEvents.apply((events, aggregateId) -> saveEvents.apply(events, aggregateId, expectedVersion)).apply(result);
+    };
+
+    // Relectura fuerte de la cola: conserva el prefijo contiguo de eventos ya leídos (en agregados particionados una lectura
+    // eventual puede omitir una versión intermedia) y agrega los posteriores
+    public static Function1<Function2<String, Integer, List<Map<String, Object>>>, Step> downloadTail = fetchAfter -> result -> {
+        Map<String, Serializable> command = getValue(result, "command", HashMap.empty());
+        List<Map<String, Object>> known = getValue(result, "events", List.<Map<String, Object>>empty())
+            .sortBy(event -> Integer.parseInt(String.valueOf(getValue(event, "version", "0"))));
+        int contiguous = known.map(event -> Integer.parseInt(String.valueOf(getValue(event, "version", "0"))))
+            .foldLeft(0, (last, version) -> version == last + 1 ? version : last);
+        List<Map<String, Object>> prefix = known.filter(event -> Integer.parseInt(String.valueOf(getValue(event, "version", "0"))) <= contiguous);
+        // En un hilo elástico: si el comando se abandona, la cancelación interrumpe la lectura en curso
+        return Mono.fromCallable(() -> buildResult(command, prefix.appendAll(fetchAfter.apply(getValue(command, "aggregateId", ""), contiguous))))
+            .subscribeOn(Schedulers.boundedElastic());
+    };
+
+    // Enrutamiento por clave de negocio: completa el aggregateId desde el índice y rechaza temprano un aggregateId que no corresponde
+    public static Function1<Function1<String, Option<String>>, Step> resolveAggregateId = lookup -> command -> {
+        if ("CreateFranchise".equals(getValue(command, "type", ""))) return Mono.just(command);
+        // La sucursal (con su franquicia) y, si aún no está indexada, la franquicia
+        Option<String> franchiseId = Option.of(getValue(command, "franchiseId", "")).filter(id -> !id.isBlank());
+        Option<String> branchId = List.of("branchId", "fromBranchId").map(field -> getValue(command, field, "")).find(id -> !id.isBlank());
+        List<String> businessKeys = franchiseId.toList().flatMap(franchise -> branchId.map(branch -> AggregateLookup.branchKey(franchise, branch)).toList()
+            .append(AggregateLookup.franchiseKey(franchise)));
+        Option<String> requested = Option.of(getValue(command, "aggregateId", (String) null));
+
+        return Mono.fromCallable(() -> businessKeys.toStream().flatMap(lookup).headOption())
+            .flatMap(resolved -> resolved.isEmpty()
+                ? Mono.just(command) // Claves sin indexar (agregados previos al índice): se conserva el aggregateId recibido
+                : requested.isDefined() && !requested.get().equals(resolved.get())
+                    ? Mono.error(new IllegalStateException("La franquicia no corresponde al orden lógico de los eventos. Tal vez quieras ajustar la franquicia o necesites modelar una interacción nueva."))
+                    : Mono.just(command.put("aggregateId", resolved.get())));
+    };
+
+    // Ruta rápida del ledger de stock: vacío cuando el comando debe resolverse con el replay completo
+    public static Function1<Function1<Map<String, Serializable>, Option<List<Map<String, Serializable>>>>, Step> updateStock = ledger -> command ->
+        Mono.fromCallable(() -> ledger.apply(command))
+            .flatMap(events -> events.map(result -> Mono.just(HashMap.<String, Serializable>of("events", result))).getOrElse(Mono.empty()));
+
+    // Agotamientos que dejaron los eventos ya guardados; sin eventos que bajen stock no hay lectura ni escritura
+    public static Function1<Function2<String, List<Map<String, Serializable>>, List<StockLevels.Depletion>>, Step> claimDepleted = claim -> result -> {
+        List<Map<String, Serializable>> events = getValue(result, "events", List.<Map<String, Serializable>>empty());
+        if (!events.exists(StockLevels::mayDeplete)) return Mono.just(HashMap.of("depleted", List.empty()));
+        return Mono.fromCallable(() -> claim.apply(getValue(events.head(), "aggregateId", ""), events))
+            .subscribeOn(Schedulers.boundedElastic())
+            .map(depleted -> HashMap.<String, Serializable>of("depleted", depleted.map(product -> HashMap.of(
+                "aggregateId", product.aggregateId(), "branchId", product.branchId(), "productId", product.productId()))));
+    };
+
+    // Confirmación de un chunk de importación masiva (evento + progreso en una sola transacción)
+    public static Function1<Function1<Map<String, Serializable>, Map<String, Serializable>>, Step> commitImportChunk = saveChunk -> chunk ->
+        Mono.fromCallable(() -> saveChunk.apply(chunk));
+
+    // Ítems de la transacción de appendEvents para input.events más input.extraItems escrituras propias
+    public static Function1<Function3<String, List<Map<String, Serializable>>, Integer, Integer>, Step> transactionItems = count -> input ->
+        Mono.fromCallable(() -> HashMap.<String, Serializable>of("items", count.apply(getValue(input, "aggregateId", ""),
+                getValue(input, "events", List.<Map<String, Serializable>>empty()), getValue(input, "extraItems", 0))))
+            .subscribeOn(Schedulers.boundedElastic());
+
+    // Última versión confirmada de un agregado
+    public static Function1<Function1<String, Integer>, Step> aggregateVersion = maxVersion -> input ->
+        Mono.fromCallable(() -> HashMap.<String, Serializable>of("version", maxVersion.apply(getValue(input, "aggregateId", ""))))
+            .subscribeOn(Schedulers.boundedElastic());
+
+    // Chunks ya confirmados de una importación, para reanudarla
+    public static Function1<Function1<String, Set<Integer>>, Step> loadImportProgress = importProgress -> input ->
+        Mono.fromCallable(() -> HashMap.<String, Serializable>of("committedChunks", importProgress.apply(getValue(input, "importId", ""))));
+
+    // Lectura de configuración: propiedades cargadas desde .env (ver FranchisesApplication) o variables de entorno
+    public static String env(String key, String defaultValue) {
+        return Option.of(System.getProperty(key))
+            .orElse(Option.of(System.getenv(key)))
+            .getOrElse(defaultValue);
+    }
+
+    public static int env(String key, int defaultValue) {
+        return Try.of(() -> Integer.parseInt(env(key, String.valueOf(defaultValue)).trim())).getOrElse(defaultValue);
+    }
+
+    public static boolean env(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(env(key, String.valueOf(defaultValue)).trim());
+    }
+
     public static String generateContentHash(String content) {
         return Try.of(() -> {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
@@ -96,7 +197,7 @@ public class Utils {
         String hash = generateContentHash(commandContent); // Generar el hash del contenido
         String aggregateId = UUID.randomUUID().toString();
 
-        return Mono.just(checkIfHashExists.apply(hash))
+        return HedgedReads.read("checkIdempotency", () -> checkIfHashExists.apply(hash))
                 .flatMap(exists -> exists && command.contains(Tuple.of("type", "FranchiseCreated")) //Solo verifica idempotencia en la creación
                     ? Mono.error(new IllegalArgumentException("Idempotent request %s, already processed".formatted(commandContent)))
                     : Mono.just(command.computeIfAbsent("aggregateId", key -> aggregateId)._2().put("createAggregateFunc", createAggregate.apply(hash)))); // Continuar si no fue procesado
@@ -104,7 +205,7 @@ public class Utils {
 
     // Esta función retorna la implementación de eventLoader según el entorno
     public static Map<String, Step> createEventLoader() {
-        return HashMap.of(
+        return HashMap.<String, Step>of(
             "fetchEvents", downloadEvents.apply(fetchEventsFromDynamo()),
             "fetchEventsTest", map -> Mono.just(HashMap.of(
             "command",
@@ -116,8 +217,29 @@ public class Utils {
                     List.empty())),
             "saveEvents", persistEvents.apply(saveEventsStrongly()),
             "saveEventsTest", map -> Mono.empty(),
+            "updateStock", updateStock.apply(updateStockWithLedger()),
+            "updateStockTest", map -> Mono.empty(),
             "checkIdempotency", checkIdempotency.apply(checkIfHashExistsInDynamo(), createAggregate()),
             "checkIdempotencyTest", checkIdempotency.apply(aggregateId -> false, (aggregateId, hash) -> HashMap.of("aggregateId", UUID.randomUUID().toString()))
-        );
+        )
+            .put("fetchEventsEventually", downloadEvents.apply(fetchEventsFromDynamo(false)))
+            .put("fetchEventsEventuallyTest", downloadEvents.apply(aggregateId -> List.empty()))
+            .put("fetchEventsTail", downloadTail.apply(fetchEventsAfter()))
+            .put("fetchEventsTailTest", Mono::just)
+            .put("saveEventsAtVersion", persistEventsAtVersion.apply(saveEventsAtVersion()))
+            .put("saveEventsAtVersionTest", map -> Mono.empty())
+            .put("resolveAggregateId", resolveAggregateId.apply(findAggregateIdByBusinessKey()))
+            .put("resolveAggregateIdTest", Mono::just)
+            .put("commitImportChunk", commitImportChunk.apply(saveImportChunk()))
+            .put("commitImportChunkTest", chunk -> Mono.just(HashMap.of("chunk", getValue(chunk, "chunk", 0), "products", 0)))
+            .put("loadImportProgress", loadImportProgress.apply(importProgress()))
+            .put("loadImportProgressTest", input -> Mono.just(HashMap.of("committedChunks", HashSet.empty())))
+            .put("transactionItems", transactionItems.apply(EventStoreFactory::transactionItems))
+            .put("transactionItemsTest", input -> Mono.just(HashMap.of("items", getValue(input, "events", List.<Map<String, Serializable>>empty())
+                .map(event -> 1 + getValue(event, "payload.products", HashMap.<String, Serializable>empty()).size()).sum().intValue() + getValue(input, "extraItems", 0))))
+            .put("aggregateVersion", aggregateVersion.apply(EventStoreFactory::getMaxVersionForAggregate))
+            .put("aggregateVersionTest", input -> Mono.just(HashMap.of("version", 0)))
+            .put("claimDepleted", claimDepleted.apply(EventStoreFactory.claimDepleted()))
+            .put("claimDepletedTest", result -> Mono.just(HashMap.of("depleted", List.empty())));
     }
 }
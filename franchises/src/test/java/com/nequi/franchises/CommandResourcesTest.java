@@ -0,0 +1,38 @@
+package com.nequi.franchises;
+
+import io.vavr.collection.Map;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Serializable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// La asignación hecha en otro hilo (subscribeOn) se carga a la etapa que la programó, y la etapa anidada no se cuenta dos veces
+public class CommandResourcesTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    void allocationsFollowTheStageAcrossThreadHops() {
+        CommandResources.Account account = CommandResources.start("ResourcesTest");
+        Mono<Integer> fetch = account.within("fetch", Mono.fromCallable(() -> new byte[8 * MB].length).subscribeOn(Schedulers.boundedElastic()));
+        Mono<Integer> pipeline = account.within("pipeline", Mono.fromCallable(() -> new byte[2 * MB].length).flatMap(ignored -> fetch));
+
+        assertEquals(8 * MB, pipeline.block());
+        account.finish();
+
+        assertTrue(stageBytes("fetch") >= 8 * MB, "fetch: " + stageBytes("fetch"));
+        assertTrue(stageBytes("pipeline") >= 2 * MB && stageBytes("pipeline") < 8 * MB, "pipeline: " + stageBytes("pipeline"));
+        assertTrue(account.allocatedBytes() >= 10 * MB);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long stageBytes(String stage) {
+        Map<String, Serializable> types = (Map<String, Serializable>) CommandResources.stats().get("commandTypes").get();
+        Map<String, Serializable> stages = (Map<String, Serializable>) ((Map<String, Serializable>) types.get("ResourcesTest").get()).get("stages").get();
+        return (Long) ((Map<String, Serializable>) stages.get(stage).get()).get("avgAllocatedBytes").get();
+    }
+}
@@ -0,0 +1,179 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.comands.TypedCommand;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import org.quicktheories.core.Gen;
+import org.quicktheories.generators.SourceDSL;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Historias sintéticas válidas: FranchiseCreated, BranchAdded, ProductAddedToBranch y una cola larga de ProductStockUpdated.
+// Las historias mixtas agregan ajustes, retiros y barreras (traspasos, cambios de nombre y FranchiseRemoved).
+// Los números son Double, igual que los eventos decodificados desde DynamoDB.
+public class HistoryGenerator {
+
+    public static final String AGGREGATE_ID = "123e4567-e89b-12d3-a456-426614174000";
+    public static final String FRANCHISE_ID = "FR1000";
+    public static final int PRODUCTS_PER_BRANCH = 5;
+    // Una barrera cada ~2.500 eventos: quedan tramos por encima y por debajo de ParallelProjection.minSegmentEvents
+    public static final double BARRIER_RATE = 1.0 / 2_500;
+
+    // Historia con length eventos en total: una sucursal cada 50 eventos y el resto actualizaciones de stock
+    public static List<Map<String, Serializable>> history(int length, long seed) {
+        int branches = Math.max(1, length / 50);
+        return history(branches, length - 1 - 2 * branches, seed);
+    }
+
+    public static List<Map<String, Serializable>> history(int branches, int stockEvents, long seed) {
+        return history(branches, stockEvents, seed, false, 0);
+    }
+
+    // Misma forma que history(length, seed), con eventos mixtos y barreras a BARRIER_RATE
+    public static List<Map<String, Serializable>> mixedHistory(int length, long seed) {
+        int branches = Math.max(1, length / 50);
+        return mixedHistory(branches, length - 1 - 2 * branches, seed, BARRIER_RATE);
+    }
+
+    public static List<Map<String, Serializable>> mixedHistory(int branches, int stockEvents, long seed, double barrierRate) {
+        return history(branches, stockEvents, seed, true, barrierRate);
+    }
+
+    private static List<Map<String, Serializable>> history(int branches, int stockEvents, long seed, boolean mixed, double barrierRate) {
+        Random random = new Random(seed);
+        java.util.List<Map<String, Serializable>> events = new ArrayList<>();
+        java.util.Map<String, Double> stock = new java.util.HashMap<>();
+
+        events.add(event("FranchiseCreated", HashMap.of("franchiseId", FRANCHISE_ID, "franchiseName", "Franquicia sintética")));
+        for (int branch = 0; branch < branches; branch++) {
+            String branchId = branchId(branch);
+            events.add(event("BranchAdded", HashMap.of(branchId, "Sucursal " + branch)));
+
+            Map<String, Serializable> products = HashMap.empty();
+            for (int product = 0; product < PRODUCTS_PER_BRANCH; product++) {
+                double initialStock = 100.0 + random.nextInt(900);
+                products = products.put(productId(product), HashMap.of("productName", "Producto " + product, "currentStock", initialStock));
+                stock.put(productKey(product, branch), initialStock);
+            }
+            events.add(event("ProductAddedToBranch", HashMap.of("franchiseId", FRANCHISE_ID, "branchId", branchId, "products", products)));
+        }
+
+        // Solo cambios que dejan el stock en cero o más: la historia es la que habría producido decide
+        for (int i = 0; i < stockEvents; i++) {
+            int branch = random.nextInt(branches);
+            int product = random.nextInt(PRODUCTS_PER_BRANCH);
+            if (mixed) {
+                double roll = random.nextDouble();
+                if (i == stockEvents - 1 && random.nextBoolean()) {
+                    events.add(franchiseRemoved());
+                    continue;
+                }
+                if (roll < barrierRate) {
+                    events.add(random.nextBoolean()
+                        ? transfer(branch, random.nextInt(branches), product, 1 + random.nextInt(20))
+                        : branchNameUpdated(branch));
+                    continue;
+                }
+                if (roll < 0.06) {
+                    events.add(event("ProductStockAdjusted", HashMap.of(
+                        "branchId", inventoryBranchId(branch), "productId", productId(product), "newStock", (double) random.nextInt(1_000))));
+                    continue;
+                }
+                if (roll < 0.09) {
+                    events.add(event("ProductRemovedFromBranch", HashMap.of("branchId", inventoryBranchId(branch), "productId", productId(product))));
+                    continue;
+                }
+            }
+            double previous = stock.get(productKey(product, branch));
+            int quantityChange = random.nextInt(41) - 20;
+            if (previous + quantityChange < 0) quantityChange = -quantityChange;
+            double current = previous + quantityChange;
+            stock.put(productKey(product, branch), current);
+            events.add(event("ProductStockUpdated", HashMap.of(
+                "branchId", branchId(branch),
+                "productId", productId(product),
+                "quantityChange", (double) quantityChange,
+                "previousStock", previous,
+                "currentStock", current)));
+        }
+
+        return versioned(List.ofAll(events));
+    }
+
+    // Renumera las versiones después de intercalar eventos a mano
+    public static List<Map<String, Serializable>> versioned(List<Map<String, Serializable>> history) {
+        return history.zipWithIndex((event, index) -> event.put("version", String.valueOf(index + 1)));
+    }
+
+    // BranchAdded guarda el nombre como valor de la sucursal y la proyección de ajustes, retiros y traspasos espera un
+    // mapa: esos eventos van a sucursales de inventario ("BA"), que solo existen en "branches" a través de ellos
+    public static Map<String, Serializable> transfer(int fromBranch, int toBranch, int product, int quantity) {
+        return event("ProductTransferredBetweenBranches", HashMap.of(
+            "fromBranchId", inventoryBranchId(fromBranch),
+            "toBranchId", inventoryBranchId(toBranch),
+            "productId", productId(product),
+            "quantity", (double) quantity));
+    }
+
+    public static Map<String, Serializable> branchNameUpdated(int branch) {
+        return event("BranchNameUpdated", HashMap.of(
+            "branchId", branchId(branch), "newBranchName", "Sucursal renombrada " + branch, "oldBranchName", "Sucursal " + branch));
+    }
+
+    public static Map<String, Serializable> franchiseRemoved() {
+        return event("FranchiseRemoved", HashMap.of("franchiseId", FRANCHISE_ID));
+    }
+
+    // Stock esperado de cada producto ("productId|branchId") después de aplicar la historia
+    public static java.util.Map<String, Double> expectedStock(List<Map<String, Serializable>> history) {
+        java.util.Map<String, Double> stock = new java.util.HashMap<>();
+        history.forEach(event -> {
+            Map<String, Serializable> payload = (Map<String, Serializable>) event.get("payload").get();
+            switch (String.valueOf(event.get("type").get())) {
+                case "ProductAddedToBranch" -> ((Map<String, Map<String, Serializable>>) payload.get("products").get())
+                    .forEach((productId, product) -> stock.put(productId + "|" + payload.get("branchId").get(), (Double) product.get("currentStock").get()));
+                case "ProductStockUpdated" -> stock.put(payload.get("productId").get() + "|" + payload.get("branchId").get(), (Double) payload.get("currentStock").get());
+                default -> { }
+            }
+        });
+        return stock;
+    }
+
+    public static TypedCommand stockCommand(int branch, int product, int quantityChange) {
+        return new TypedCommand.UpdateProductStock(AGGREGATE_ID, FRANCHISE_ID, branchId(branch), productId(product), quantityChange);
+    }
+
+    // Historias de tamaño arbitrario para pruebas basadas en propiedades
+    public static Gen<List<Map<String, Serializable>>> histories(int maxLength) {
+        return SourceDSL.integers().between(3, maxLength)
+            .zip(SourceDSL.longs().all(), HistoryGenerator::history);
+    }
+
+    public static Gen<List<Map<String, Serializable>>> mixedHistories(int maxLength) {
+        return SourceDSL.integers().between(3, maxLength)
+            .zip(SourceDSL.longs().all(), HistoryGenerator::mixedHistory);
+    }
+
+    public static String branchId(int branch) {
+        return "BR" + branch;
+    }
+
+    public static String inventoryBranchId(int branch) {
+        return "BA" + branch;
+    }
+
+    public static String productId(int product) {
+        return "PR" + product;
+    }
+
+    private static String productKey(int product, int branch) {
+        return productId(product) + "|" + branchId(branch);
+    }
+
+    private static Map<String, Serializable> event(String type, Map<String, Serializable> payload) {
+        return HashMap.of("type", type, "aggregateId", AGGREGATE_ID, "payload", payload);
+    }
+}
@@ -0,0 +1,755 @@
+package com.nequi.franchises.IO;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+import software.amazon.awssdk.services.dynamodb.paginators.QueryIterable;
+import software.amazon.awssdk.services.dynamodb.paginators.QueryPublisher;
+import software.amazon.awssdk.services.dynamodb.paginators.ScanIterable;
+import software.amazon.awssdk.services.dynamodb.paginators.ScanPublisher;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// DynamoDB en proceso para pruebas y benchmarks sin red. Cubre las operaciones que usa el proyecto (Query con condiciones
+// de llave, índices, scanIndexForward, limit y paginación de 1 MB; Scan por segmentos; Get/Put/Update/Delete; BatchWrite y
+// TransactWriteItems con condiciones y razones de cancelación por ítem) y el subconjunto de expresiones que el proyecto
+// escribe. La latencia por operación y el throttling por tabla se inyectan con un Random con semilla: con el mismo orden de
+// llamadas la simulación se repite igual.
+public class InMemoryDynamoDb {
+
+    private static final int PAGE_BYTES = 1024 * 1024;
+    private static final int MAX_TRANSACTION_ITEMS = 100;
+    // Marcador de sort key para tablas que solo tienen partition key
+    private static final AttributeValue NO_SORT_KEY = AttributeValue.builder().nul(true).build();
+
+    // Distribución de la latencia simulada de una operación
+    public interface Latency {
+        long sampleNanos(Random random);
+
+        static Latency none() {
+            return random -> 0;
+        }
+
+        static Latency fixed(Duration latency) {
+            return random -> latency.toNanos();
+        }
+
+        static Latency uniform(Duration min, Duration max) {
+            return random -> min.toNanos() + (long) (random.nextDouble() * (max.toNanos() - min.toNanos()));
+        }
+
+        // Cola larga como la de un servicio real: la mediana es median y sigma controla la dispersión
+        static Latency logNormal(Duration median, double sigma) {
+            return random -> (long) (median.toNanos() * Math.exp(sigma * random.nextGaussian()));
+        }
+    }
+
+    // Decide si una solicitud sobre una tabla se rechaza por capacidad
+    public interface Throttle {
+        boolean throttled(Random random, long nowNanos);
+
+        static Throttle probability(double probability) {
+            return (random, now) -> random.nextDouble() < probability;
+        }
+
+        // Token bucket: unitsPerSecond solicitudes sostenidas con ráfagas de hasta burst
+        static Throttle capacity(double unitsPerSecond, double burst) {
+            double[] bucket = {burst, Double.NaN};
+            return (random, now) -> {
+                synchronized (bucket) {
+                    double elapsedSeconds = Double.isNaN(bucket[1]) ? 0 : (now - bucket[1]) / 1e9;
+                    bucket[1] = now;
+                    bucket[0] = Math.min(burst, bucket[0] + elapsedSeconds * unitsPerSecond);
+                    if (bucket[0] < 1) return true;
+                    bucket[0]--;
+                    return false;
+                }
+            };
+        }
+    }
+
+    private record KeySchema(String partitionKey, String sortKey) {
+        Map<String, AttributeValue> keyOf(Map<String, AttributeValue> item) {
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put(partitionKey, item.get(partitionKey));
+            if (sortKey != null) key.put(sortKey, item.get(sortKey));
+            return key;
+        }
+
+        AttributeValue sortValue(Map<String, AttributeValue> item) {
+            return sortKey == null ? NO_SORT_KEY : item.get(sortKey);
+        }
+    }
+
+    private static final class Table {
+        final KeySchema key;
+        final Map<String, KeySchema> indexes = new HashMap<>();
+        final TreeMap<AttributeValue, TreeMap<AttributeValue, Map<String, AttributeValue>>> partitions = new TreeMap<>(InMemoryDynamoDb::compare);
+
+        Table(KeySchema key) {
+            this.key = key;
+        }
+
+        Map<String, AttributeValue> get(Map<String, AttributeValue> key) {
+            TreeMap<AttributeValue, Map<String, AttributeValue>> partition = partitions.get(requireKey(key, this.key.partitionKey()));
+            return partition == null ? null : partition.get(this.key.sortKey() == null ? NO_SORT_KEY : requireKey(key, this.key.sortKey()));
+        }
+
+        void put(Map<String, AttributeValue> item) {
+            partitions.computeIfAbsent(requireKey(item, key.partitionKey()), value -> new TreeMap<>(InMemoryDynamoDb::compare))
+                .put(key.sortKey() == null ? NO_SORT_KEY : requireKey(item, key.sortKey()), Map.copyOf(item));
+        }
+
+        void delete(Map<String, AttributeValue> key) {
+            TreeMap<AttributeValue, Map<String, AttributeValue>> partition = partitions.get(requireKey(key, this.key.partitionKey()));
+            if (partition == null) return;
+            partition.remove(this.key.sortKey() == null ? NO_SORT_KEY : requireKey(key, this.key.sortKey()));
+            if (partition.isEmpty()) partitions.remove(requireKey(key, this.key.partitionKey()));
+        }
+
+        java.util.stream.Stream<Map<String, AttributeValue>> items() {
+            return partitions.values().stream().flatMap(partition -> partition.values().stream());
+        }
+    }
+
+    private final Map<String, Table> tables = new HashMap<>();
+    private final Random random;
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Throttle> throttles = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private volatile Latency defaultLatency = Latency.none();
+    private final Executor asyncExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "in-memory-dynamodb");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public InMemoryDynamoDb(long seed) {
+        this.random = new Random(seed);
+    }
+
+    // Las tablas e índices que usa el event store, con las llaves que esperan sus consultas
+    public static InMemoryDynamoDb eventStore(long seed) {
+        return new InMemoryDynamoDb(seed)
+            .createTable("Events", "aggregateId", "version")
+            .createIndex("Events", EventStoreFactory.TIMESTAMP_INDEX, "aggregateId", "timestamp")
+            .createTable("Idempotency", "hashCommand", "aggregateId")
+            .createTable("ImportProgress", "importId", "chunk")
+            .createTable(AggregateSharding.TABLE, "aggregateId", null)
+            .createTable(AggregateLookup.TABLE, "businessKey", null)
+            .createTable(StockLedger.TABLE, "aggregateId", "productKey")
+            .createIndex(StockLedger.TABLE, StockLevels.INDEX, StockLevels.SHARD_ATTRIBUTE, "currentStock")
+            .createTable(ProjectionStore.SNAPSHOTS_TABLE, "aggregateId", "version")
+            .createTable(ProjectionStore.MAX_PRODUCT_TABLE, "franchiseId", "branchId")
+            .createTable(ProjectionStore.CHECKPOINTS_TABLE, "rebuildId", "segment")
+            .createTable(EventFeed.TABLE, "bucket", "position")
+            .createTable(EventFeed.BUCKETS_TABLE, "feed", "bucket")
+            .createTable(EventFeed.CHECKPOINTS_TABLE, "subscriberId", null);
+    }
+
+    public synchronized InMemoryDynamoDb createTable(String table, String partitionKey, String sortKey) {
+        tables.put(table, new Table(new KeySchema(partitionKey, sortKey)));
+        return this;
+    }
+
+    public synchronized InMemoryDynamoDb createIndex(String table, String index, String partitionKey, String sortKey) {
+        table(table).indexes.put(index, new KeySchema(partitionKey, sortKey));
+        return this;
+    }
+
+    public InMemoryDynamoDb latency(Latency latency) {
+        this.defaultLatency = latency;
+        return this;
+    }
+
+    // Latencia de una operación concreta ("query", "transactWriteItems", ...); las demás usan la latencia por defecto
+    public InMemoryDynamoDb latency(String operation, Latency latency) {
+        latencies.put(operation, latency);
+        return this;
+    }
+
+    public InMemoryDynamoDb throttle(String table, Throttle throttle) {
+        throttles.put(table, throttle);
+        return this;
+    }
+
+    public long requests(String operation) {
+        return requests.getOrDefault(operation, new AtomicLong()).get();
+    }
+
+    public long throttledRequests() {
+        return throttledRequests.get();
+    }
+
+    public DynamoDbClient sync() {
+        return new DynamoDbClient() {
+            @Override public String serviceName() { return SERVICE_NAME; }
+            @Override public void close() {}
+            @Override public QueryResponse query(QueryRequest request) { return call("query", () -> InMemoryDynamoDb.this.query(request)); }
+            @Override public QueryIterable queryPaginator(QueryRequest request) { return new QueryIterable(this, request); }
+            @Override public ScanResponse scan(ScanRequest request) { return call("scan", () -> InMemoryDynamoDb.this.scan(request)); }
+            @Override public ScanIterable scanPaginator(ScanRequest request) { return new ScanIterable(this, request); }
+            @Override public GetItemResponse getItem(GetItemRequest request) { return call("getItem", () -> InMemoryDynamoDb.this.getItem(request)); }
+            @Override public PutItemResponse putItem(PutItemRequest request) { return call("putItem", () -> InMemoryDynamoDb.this.putItem(request)); }
+            @Override public UpdateItemResponse updateItem(UpdateItemRequest request) { return call("updateItem", () -> InMemoryDynamoDb.this.updateItem(request)); }
+            @Override public DeleteItemResponse deleteItem(DeleteItemRequest request) { return call("deleteItem", () -> InMemoryDynamoDb.this.deleteItem(request)); }
+            @Override public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) { return call("batchWriteItem", () -> InMemoryDynamoDb.this.batchWriteItem(request)); }
+            @Override public TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) { return call("transactWriteItems", () -> InMemoryDynamoDb.this.transactWriteItems(request)); }
+        };
+    }
+
+    public DynamoDbAsyncClient async() {
+        return new DynamoDbAsyncClient() {
+            @Override public String serviceName() { return SERVICE_NAME; }
+            @Override public void close() {}
+            @Override public CompletableFuture<QueryResponse> query(QueryRequest request) { return callAsync("query", () -> InMemoryDynamoDb.this.query(request)); }
+            @Override public QueryPublisher queryPaginator(QueryRequest request) { return new QueryPublisher(this, request); }
+            @Override public CompletableFuture<ScanResponse> scan(ScanRequest request) { return callAsync("scan", () -> InMemoryDynamoDb.this.scan(request)); }
+            @Override public ScanPublisher scanPaginator(ScanRequest request) { return new ScanPublisher(this, request); }
+            @Override public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) { return callAsync("getItem", () -> InMemoryDynamoDb.this.getItem(request)); }
+            @Override public CompletableFuture<PutItemResponse> putItem(PutItemRequest request) { return callAsync("putItem", () -> InMemoryDynamoDb.this.putItem(request)); }
+            @Override public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) { return callAsync("updateItem", () -> InMemoryDynamoDb.this.updateItem(request)); }
+            @Override public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) { return callAsync("deleteItem", () -> InMemoryDynamoDb.this.deleteItem(request)); }
+            @Override public CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request) { return callAsync("batchWriteItem", () -> InMemoryDynamoDb.this.batchWriteItem(request)); }
+            @Override public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) { return callAsync("transactWriteItems", () -> InMemoryDynamoDb.this.transactWriteItems(request)); }
+        };
+    }
+
+    // La latencia se espera fuera del lock: solicitudes concurrentes se solapan como contra el servicio
+    private <T> T call(String operation, Supplier<T> execute) {
+        long latency = latencyNanos(operation);
+        if (latency > 0) LockSupport.parkNanos(latency);
+        return execute.get();
+    }
+
+    private <T> CompletableFuture<T> callAsync(String operation, Supplier<T> execute) {
+        long latency = latencyNanos(operation);
+        Executor executor = latency > 0 ? CompletableFuture.delayedExecutor(latency, TimeUnit.NANOSECONDS, asyncExecutor) : asyncExecutor;
+        return CompletableFuture.supplyAsync(execute, executor);
+    }
+
+    private long latencyNanos(String operation) {
+        requests.computeIfAbsent(operation, key -> new AtomicLong()).incrementAndGet();
+        Latency latency = latencies.getOrDefault(operation, defaultLatency);
+        synchronized (random) {
+            return Math.max(0, latency.sampleNanos(random));
+        }
+    }
+
+    private boolean throttled(String table) {
+        Throttle throttle = throttles.get(table);
+        if (throttle == null) return false;
+        boolean throttled;
+        synchronized (random) {
+            throttled = throttle.throttled(random, System.nanoTime());
+        }
+        if (throttled) throttledRequests.incrementAndGet();
+        return throttled;
+    }
+
+    private void checkThrottle(String table) {
+        if (throttled(table)) throw ProvisionedThroughputExceededException.builder()
+            .message("The level of configured provisioned throughput for the table %s was exceeded".formatted(table))
+            .statusCode(400)
+            .build();
+    }
+
+    // --- Lecturas ---
+
+    private synchronized QueryResponse query(QueryRequest request) {
+        Table table = table(request.tableName());
+        checkThrottle(request.tableName());
+        KeySchema schema = request.indexName() == null ? table.key : required(table.indexes.get(request.indexName()), "Index " + request.indexName());
+        Parser keyParser = new Parser(request.keyConditionExpression(), request.expressionAttributeNames(), request.expressionAttributeValues());
+        Predicate<Map<String, AttributeValue>> keyCondition = keyParser.condition();
+        AttributeValue partition = required(keyParser.equalities.get(schema.partitionKey()), "Key condition on " + schema.partitionKey());
+
+        List<Map<String, AttributeValue>> candidates;
+        if (request.indexName() == null) {
+            candidates = new ArrayList<>(table.partitions.getOrDefault(partition, new TreeMap<>(InMemoryDynamoDb::compare)).values());
+        } else {
+            Comparator<Map<String, AttributeValue>> bySortKey = (a, b) -> compare(schema.sortValue(a), schema.sortValue(b));
+            candidates = table.items()
+                .filter(item -> partition.equals(item.get(schema.partitionKey())) && (schema.sortKey() == null || item.containsKey(schema.sortKey())))
+                .sorted(bySortKey.thenComparing((a, b) -> compare(table.key.sortValue(a), table.key.sortValue(b))))
+                .toList();
+        }
+        List<Map<String, AttributeValue>> ordered = new ArrayList<>(candidates.stream().filter(keyCondition).toList());
+        if (Boolean.FALSE.equals(request.scanIndexForward())) java.util.Collections.reverse(ordered);
+
+        Page page = page(ordered, table, schema, request.exclusiveStartKey(), request.limit(),
+            request.filterExpression(), request.projectionExpression(), request.expressionAttributeNames(), request.expressionAttributeValues());
+        QueryResponse.Builder response = QueryResponse.builder().items(page.items()).count(page.items().size()).scannedCount(page.scanned());
+        if (page.lastEvaluatedKey() != null) response.lastEvaluatedKey(page.lastEvaluatedKey());
+        if (wantsCapacity(request.returnConsumedCapacity())) response.consumedCapacity(capacity(request.tableName(), page.bytes(), Boolean.TRUE.equals(request.consistentRead())));
+        return response.build();
+    }
+
+    // Los segmentos se reparten por hash de la partition key, igual que en el servicio todos los ítems de una partición caen juntos
+    private synchronized ScanResponse scan(ScanRequest request) {
+        Table table = table(request.tableName());
+        checkThrottle(request.tableName());
+        int totalSegments = request.totalSegments() == null ? 1 : request.totalSegments();
+        int segment = request.segment() == null ? 0 : request.segment();
+        List<Map<String, AttributeValue>> items = table.partitions.entrySet().stream()
+            .filter(partition -> Math.floorMod(partition.getKey().hashCode(), totalSegments) == segment)
+            .flatMap(partition -> partition.getValue().values().stream())
+            .toList();
+        Page page = page(items, table, table.key, request.exclusiveStartKey(), request.limit(),
+            request.filterExpression(), request.projectionExpression(), request.expressionAttributeNames(), request.expressionAttributeValues());
+        ScanResponse.Builder response = ScanResponse.builder().items(page.items()).count(page.items().size()).scannedCount(page.scanned());
+        if (page.lastEvaluatedKey() != null) response.lastEvaluatedKey(page.lastEvaluatedKey());
+        if (wantsCapacity(request.returnConsumedCapacity())) response.consumedCapacity(capacity(request.tableName(), page.bytes(), Boolean.TRUE.equals(request.consistentRead())));
+        return response.build();
+    }
+
+    private synchronized GetItemResponse getItem(GetItemRequest request) {
+        Table table = table(request.tableName());
+        checkThrottle(request.tableName());
+        Map<String, AttributeValue> item = table.get(request.key());
+        GetItemResponse.Builder response = GetItemResponse.builder();
+        if (item != null) response.item(project(item, request.projectionExpression(), request.expressionAttributeNames()));
+        return response.build();
+    }
+
+    private record Page(List<Map<String, AttributeValue>> items, int scanned, Map<String, AttributeValue> lastEvaluatedKey, long bytes) {}
+
+    // El limit y el tope de 1 MB se aplican antes del filtro, como en el servicio
+    private static Page page(List<Map<String, AttributeValue>> ordered, Table table, KeySchema schema, Map<String, AttributeValue> exclusiveStartKey,
+                             Integer limit, String filterExpression, String projectionExpression,
+                             Map<String, String> names, Map<String, AttributeValue> values) {
+        int start = 0;
+        if (exclusiveStartKey != null && !exclusiveStartKey.isEmpty()) {
+            Map<String, AttributeValue> startKey = table.key.keyOf(exclusiveStartKey);
+            while (start < ordered.size() && !table.key.keyOf(ordered.get(start)).equals(startKey)) start++;
+            start = Math.min(ordered.size(), start + 1);
+        }
+        Predicate<Map<String, AttributeValue>> filter = filterExpression == null ? item -> true : new Parser(filterExpression, names, values).condition();
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        int end = start;
+        long bytes = 0;
+        while (end < ordered.size() && (limit == null || end - start < limit) && bytes < PAGE_BYTES) {
+            Map<String, AttributeValue> item = ordered.get(end++);
+            bytes += WriteCoalescer.estimateSize(item);
+            if (filter.test(item)) items.add(project(item, projectionExpression, names));
+        }
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        if (end < ordered.size()) {
+            lastEvaluatedKey = new HashMap<>(table.key.keyOf(ordered.get(end - 1)));
+            lastEvaluatedKey.putAll(schema.keyOf(ordered.get(end - 1)));
+        }
+        return new Page(items, end - start, lastEvaluatedKey, bytes);
+    }
+
+    // --- Escrituras ---
+
+    private synchronized PutItemResponse putItem(PutItemRequest request) {
+        Table table = table(request.tableName());
+        checkThrottle(request.tableName());
+        checkCondition(request.conditionExpression(), table.get(table.key.keyOf(request.item())), request.expressionAttributeNames(), request.expressionAttributeValues());
+        table.put(request.item());
+        return PutItemResponse.builder().build();
+    }
+
+    private synchronized UpdateItemResponse updateItem(UpdateItemRequest request) {
+        Table table = table(request.tableName());
+        checkThrottle(request.tableName());
+        Map<String, AttributeValue> current = table.get(request.key());
+        checkCondition(request.conditionExpression(), current, request.expressionAttributeNames(), request.expressionAttributeValues());
+        table.put(updated(request.key(), current, request.updateExpression(), request.expressionAttributeNames(), request.expressionAttributeValues()));
+        return UpdateItemResponse.builder().build();
+    }
+
+    private synchronized DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        Table table = table(request.tableName());
+        checkThrottle(request.tableName());
+        checkCondition(request.conditionExpression(), table.get(request.key()), request.expressionAttributeNames(), request.expressionAttributeValues());
+        table.delete(request.key());
+        return DeleteItemResponse.builder().build();
+    }
+
+    // Las solicitudes de una tabla con throttling vuelven como unprocessedItems, para que el llamador reintente
+    private synchronized BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+        Map<String, List<WriteRequest>> unprocessed = new HashMap<>();
+        request.requestItems().forEach((tableName, writes) -> {
+            Table table = table(tableName);
+            if (throttled(tableName)) {
+                unprocessed.put(tableName, writes);
+                return;
+            }
+            writes.forEach(write -> {
+                if (write.putRequest() != null) table.put(write.putRequest().item());
+                else table.delete(write.deleteRequest().key());
+            });
+        });
+        return BatchWriteItemResponse.builder().unprocessedItems(unprocessed).build();
+    }
+
+    // Todo o nada: primero se evalúan todas las condiciones y solo si ninguna falla se aplican las escrituras
+    private synchronized TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+        List<TransactWriteItem> items = request.transactItems();
+        if (items.size() > MAX_TRANSACTION_ITEMS) throw validation("Member must have length less than or equal to " + MAX_TRANSACTION_ITEMS);
+        Set<String> keys = new HashSet<>();
+        List<CancellationReason> reasons = new ArrayList<>();
+        List<Runnable> writes = new ArrayList<>();
+        boolean cancelled = false;
+        for (TransactWriteItem item : items) {
+            String tableName = tableName(item);
+            Table table = table(tableName);
+            Map<String, AttributeValue> key = keyOf(table, item);
+            if (!keys.add(tableName + "#" + key)) throw validation("Transaction request cannot include multiple operations on one item");
+
+            String code = "None";
+            String message = null;
+            if (throttled(tableName)) {
+                code = "ThrottlingError";
+                message = "Throughput exceeds the current capacity of your table or index.";
+            } else if (!conditionHolds(item, table.get(key))) {
+                code = "ConditionalCheckFailed";
+                message = "The conditional request failed";
+            } else {
+                writes.add(write(table, key, item));
+            }
+            cancelled |= !"None".equals(code);
+            reasons.add(CancellationReason.builder().code(code).message(message).build());
+        }
+        if (cancelled) {
+            throw TransactionCanceledException.builder()
+                .message("Transaction cancelled, please refer cancellation reasons for specific reasons %s".formatted(reasons.stream().map(CancellationReason::code).toList()))
+                .cancellationReasons(reasons)
+                .statusCode(400)
+                .build();
+        }
+        writes.forEach(Runnable::run);
+        return TransactWriteItemsResponse.builder().build();
+    }
+
+    private static String tableName(TransactWriteItem item) {
+        if (item.put() != null) return item.put().tableName();
+        if (item.update() != null) return item.update().tableName();
+        if (item.delete() != null) return item.delete().tableName();
+        return item.conditionCheck().tableName();
+    }
+
+    private static Map<String, AttributeValue> keyOf(Table table, TransactWriteItem item) {
+        if (item.put() != null) return table.key.keyOf(item.put().item());
+        if (item.update() != null) return item.update().key();
+        if (item.delete() != null) return item.delete().key();
+        return item.conditionCheck().key();
+    }
+
+    private static boolean conditionHolds(TransactWriteItem item, Map<String, AttributeValue> current) {
+        if (item.put() != null) return holds(item.put().conditionExpression(), current, item.put().expressionAttributeNames(), item.put().expressionAttributeValues());
+        if (item.update() != null) return holds(item.update().conditionExpression(), current, item.update().expressionAttributeNames(), item.update().expressionAttributeValues());
+        if (item.delete() != null) return holds(item.delete().conditionExpression(), current, item.delete().expressionAttributeNames(), item.delete().expressionAttributeValues());
+        return holds(item.conditionCheck().conditionExpression(), current, item.conditionCheck().expressionAttributeNames(), item.conditionCheck().expressionAttributeValues());
+    }
+
+    private static Runnable write(Table table, Map<String, AttributeValue> key, TransactWriteItem item) {
+        if (item.put() != null) return () -> table.put(item.put().item());
+        if (item.update() != null) return () -> table.put(updated(key, table.get(key), item.update().updateExpression(),
+            item.update().expressionAttributeNames(), item.update().expressionAttributeValues()));
+        if (item.delete() != null) return () -> table.delete(key);
+        return () -> {};
+    }
+
+    private static void checkCondition(String expression, Map<String, AttributeValue> current, Map<String, String> names, Map<String, AttributeValue> values) {
+        if (!holds(expression, current, names, values)) throw ConditionalCheckFailedException.builder().message("The conditional request failed").statusCode(400).build();
+    }
+
+    private static boolean holds(String expression, Map<String, AttributeValue> current, Map<String, String> names, Map<String, AttributeValue> values) {
+        return expression == null || new Parser(expression, names, values).condition().test(current == null ? Map.of() : current);
+    }
+
+    private static Map<String, AttributeValue> updated(Map<String, AttributeValue> key, Map<String, AttributeValue> current,
+                                                       String expression, Map<String, String> names, Map<String, AttributeValue> values) {
+        Map<String, AttributeValue> original = current == null ? key : current;
+        Map<String, AttributeValue> item = new HashMap<>(original);
+        if (expression != null) new Parser(expression, names, values).update().forEach(action -> action.accept(original, item));
+        return item;
+    }
+
+    // --- Apoyo ---
+
+    private Table table(String name) {
+        Table table = tables.get(name);
+        if (table == null) throw ResourceNotFoundException.builder().message("Requested resource not found: Table: %s not found".formatted(name)).statusCode(400).build();
+        return table;
+    }
+
+    private static <T> T required(T value, String missing) {
+        if (value == null) throw validation("Query condition missed key schema element: " + missing);
+        return value;
+    }
+
+    private static DynamoDbException validation(String message) {
+        return DynamoDbException.builder()
+            .message(message)
+            .statusCode(400)
+            .awsErrorDetails(AwsErrorDetails.builder().errorCode("ValidationException").errorMessage(message).serviceName(DynamoDbClient.SERVICE_NAME).build())
+            .build();
+    }
+
+    private static AttributeValue requireKey(Map<String, AttributeValue> item, String attribute) {
+        AttributeValue value = item.get(attribute);
+        if (value == null) throw validation("One of the required keys was not given a value: " + attribute);
+        return value;
+    }
+
+    private static boolean wantsCapacity(ReturnConsumedCapacity returnConsumedCapacity) {
+        return returnConsumedCapacity != null && returnConsumedCapacity != ReturnConsumedCapacity.NONE;
+    }
+
+    // Una unidad de lectura cubre 4 KB con lectura fuerte; la eventual cuesta la mitad
+    private static ConsumedCapacity capacity(String table, long bytes, boolean consistent) {
+        double units = Math.max(1, Math.ceil(bytes / 4096.0)) * (consistent ? 1.0 : 0.5);
+        return ConsumedCapacity.builder().tableName(table).capacityUnits(units).readCapacityUnits(units).build();
+    }
+
+    private static Map<String, AttributeValue> project(Map<String, AttributeValue> item, String projectionExpression, Map<String, String> names) {
+        if (projectionExpression == null) return item;
+        Map<String, AttributeValue> projected = new LinkedHashMap<>();
+        for (String path : projectionExpression.split(",")) {
+            String attribute = Parser.resolve(path.trim(), names);
+            if (item.containsKey(attribute)) projected.put(attribute, item.get(attribute));
+        }
+        return projected;
+    }
+
+    // Orden de llaves: números por valor, strings y binarios lexicográficamente
+    private static int compare(AttributeValue a, AttributeValue b) {
+        if (a.n() != null && b.n() != null) return new BigDecimal(a.n()).compareTo(new BigDecimal(b.n()));
+        if (a.s() != null && b.s() != null) return a.s().compareTo(b.s());
+        if (a.b() != null && b.b() != null) return Arrays.compareUnsigned(a.b().asByteArray(), b.b().asByteArray());
+        return Integer.compare(a.type().ordinal(), b.type().ordinal());
+    }
+
+    private static boolean comparable(AttributeValue a, AttributeValue b) {
+        return a != null && b != null && a.type() == b.type() && (a.n() != null || a.s() != null || a.b() != null);
+    }
+
+    // Subconjunto de la gramática de expresiones de DynamoDB: condiciones con AND/OR/NOT, comparaciones, BETWEEN,
+    // attribute_exists/attribute_not_exists/begins_with; actualizaciones SET (con if_not_exists, + y -), ADD y REMOVE
+    private static final class Parser {
+        private static final Pattern TOKEN = Pattern.compile("\\s*(<=|>=|<>|[=<>(),+\\-]|[#:]?[A-Za-z0-9_.]+)");
+
+        private final List<String> tokens = new ArrayList<>();
+        private final Map<String, String> names;
+        private final Map<String, AttributeValue> values;
+        private int position;
+        // Igualdades "atributo = :valor" encontradas: de ahí sale la partition key de una condición de llave
+        final Map<String, AttributeValue> equalities = new HashMap<>();
+
+        private record Operand(String path, AttributeValue constant, Function<Map<String, AttributeValue>, AttributeValue> value) {}
+
+        Parser(String expression, Map<String, String> names, Map<String, AttributeValue> values) {
+            this.names = names == null ? Map.of() : names;
+            this.values = values == null ? Map.of() : values;
+            Matcher matcher = TOKEN.matcher(expression);
+            int end = 0;
+            while (matcher.find() && matcher.start() == end) {
+                tokens.add(matcher.group(1));
+                end = matcher.end();
+            }
+            if (!expression.substring(end).isBlank()) throw validation("Invalid expression: " + expression);
+        }
+
+        static String resolve(String path, Map<String, String> names) {
+            return path.startsWith("#") ? required(names.get(path), "Expression attribute name " + path) : path;
+        }
+
+        Predicate<Map<String, AttributeValue>> condition() {
+            Predicate<Map<String, AttributeValue>> condition = disjunction();
+            if (position < tokens.size()) throw validation("Unexpected token in expression: " + tokens.get(position));
+            return condition;
+        }
+
+        List<BiConsumer<Map<String, AttributeValue>, Map<String, AttributeValue>>> update() {
+            List<BiConsumer<Map<String, AttributeValue>, Map<String, AttributeValue>>> actions = new ArrayList<>();
+            while (position < tokens.size()) {
+                String clause = next().toUpperCase();
+                do {
+                    String path = resolve(next(), names);
+                    switch (clause) {
+                        case "SET" -> {
+                            expect("=");
+                            Operand value = sum();
+                            actions.add((original, item) -> item.put(path, value.value().apply(original)));
+                        }
+                        case "ADD" -> {
+                            Operand delta = operand();
+                            actions.add((original, item) -> item.put(path, arithmetic(original.get(path) == null ? number(BigDecimal.ZERO) : original.get(path), "+", delta.value().apply(original))));
+                        }
+                        case "REMOVE" -> actions.add((original, item) -> item.remove(path));
+                        default -> throw validation("Unsupported update clause: " + clause);
+                    }
+                } while (accept(","));
+            }
+            return actions;
+        }
+
+        private Predicate<Map<String, AttributeValue>> disjunction() {
+            Predicate<Map<String, AttributeValue>> left = conjunction();
+            while (accept("OR")) left = left.or(conjunction());
+            return left;
+        }
+
+        private Predicate<Map<String, AttributeValue>> conjunction() {
+            Predicate<Map<String, AttributeValue>> left = negation();
+            while (accept("AND")) left = left.and(negation());
+            return left;
+        }
+
+        private Predicate<Map<String, AttributeValue>> negation() {
+            return accept("NOT") ? negation().negate() : comparison();
+        }
+
+        private Predicate<Map<String, AttributeValue>> comparison() {
+            if (accept("(")) {
+                Predicate<Map<String, AttributeValue>> inner = disjunction();
+                expect(")");
+                return inner;
+            }
+            String function = peek();
+            if (function != null && List.of("attribute_exists", "attribute_not_exists", "begins_with").contains(function) && "(".equals(peekAhead())) {
+                next();
+                expect("(");
+                Operand path = operand();
+                Operand prefix = accept(",") ? operand() : null;
+                expect(")");
+                return switch (function) {
+                    case "attribute_exists" -> item -> path.value().apply(item) != null;
+                    case "attribute_not_exists" -> item -> path.value().apply(item) == null;
+                    default -> item -> {
+                        AttributeValue value = path.value().apply(item);
+                        return value != null && value.s() != null && value.s().startsWith(prefix.value().apply(item).s());
+                    };
+                };
+            }
+            Operand left = operand();
+            if (accept("BETWEEN")) {
+                Operand low = operand();
+                expect("AND");
+                Operand high = operand();
+                return item -> {
+                    AttributeValue value = left.value().apply(item);
+                    return comparable(value, low.value().apply(item)) && compare(value, low.value().apply(item)) >= 0
+                        && comparable(value, high.value().apply(item)) && compare(value, high.value().apply(item)) <= 0;
+                };
+            }
+            String operator = next();
+            Operand right = operand();
+            if ("=".equals(operator) && left.path() != null && right.constant() != null) equalities.put(left.path(), right.constant());
+            return item -> {
+                AttributeValue a = left.value().apply(item);
+                AttributeValue b = right.value().apply(item);
+                return switch (operator) {
+                    case "=" -> a != null && a.equals(b) || comparable(a, b) && compare(a, b) == 0;
+                    case "<>" -> !(a != null && a.equals(b) || comparable(a, b) && compare(a, b) == 0);
+                    case "<" -> comparable(a, b) && compare(a, b) < 0;
+                    case "<=" -> comparable(a, b) && compare(a, b) <= 0;
+                    case ">" -> comparable(a, b) && compare(a, b) > 0;
+                    case ">=" -> comparable(a, b) && compare(a, b) >= 0;
+                    default -> throw validation("Unsupported comparator: " + operator);
+                };
+            };
+        }
+
+        private Operand sum() {
+            Operand left = operand();
+            while ("+".equals(peek()) || "-".equals(peek())) {
+                String operator = next();
+                Operand right = operand();
+                Operand current = left;
+                left = new Operand(null, null, item -> arithmetic(current.value().apply(item), operator, right.value().apply(item)));
+            }
+            return left;
+        }
+
+        private Operand operand() {
+            String token = next();
+            if (token.startsWith(":")) {
+                AttributeValue constant = required(values.get(token), "Expression attribute value " + token);
+                return new Operand(null, constant, item -> constant);
+            }
+            if ("if_not_exists".equals(token) && accept("(")) {
+                Operand path = operand();
+                expect(",");
+                Operand fallback = operand();
+                expect(")");
+                return new Operand(null, null, item -> path.value().apply(item) != null ? path.value().apply(item) : fallback.value().apply(item));
+            }
+            String[] segments = token.split("\\.");
+            for (int i = 0; i < segments.length; i++) segments[i] = resolve(segments[i], names);
+            String path = String.join(".", segments);
+            return new Operand(path, null, item -> {
+                AttributeValue value = item.get(segments[0]);
+                for (int i = 1; i < segments.length && value != null; i++) value = value.hasM() ? value.m().get(segments[i]) : null;
+                return value;
+            });
+        }
+
+        private static AttributeValue arithmetic(AttributeValue a, String operator, AttributeValue b) {
+            if (a == null || b == null || a.n() == null || b.n() == null) throw validation("An operand in the update expression has an incorrect data type");
+            BigDecimal left = new BigDecimal(a.n());
+            BigDecimal right = new BigDecimal(b.n());
+            return number("+".equals(operator) ? left.add(right) : left.subtract(right));
+        }
+
+        private static AttributeValue number(BigDecimal value) {
+            return AttributeValue.builder().n(value.stripTrailingZeros().toPlainString()).build();
+        }
+
+        private String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private String peekAhead() {
+            return position + 1 < tokens.size() ? tokens.get(position + 1) : null;
+        }
+
+        private String next() {
+            if (position >= tokens.size()) throw validation("Unexpected end of expression");
+            return tokens.get(position++);
+        }
+
+        private boolean accept(String token) {
+            if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) throw validation("Expected '%s' in expression".formatted(token));
+        }
+    }
+}
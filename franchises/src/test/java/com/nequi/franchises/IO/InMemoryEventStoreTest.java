@@ -0,0 +1,176 @@
+package com.nequi.franchises.IO;
+
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import io.vavr.control.Option;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// El event store contra el DynamoDB en memoria: mismas solicitudes que en producción, sin red ni contenedor
+public class InMemoryEventStoreTest {
+
+    private InMemoryDynamoDb dynamoDb;
+
+    @BeforeEach
+    void useInMemoryDynamoDb() {
+        dynamoDb = InMemoryDynamoDb.eventStore(42);
+        EventStoreFactory.useClients(dynamoDb.sync(), dynamoDb.async());
+    }
+
+    @Test
+    void appendedEventsReplayInVersionOrder() {
+        String aggregateId = UUID.randomUUID().toString();
+        EventStoreFactory.appendEvents(aggregateId, List.of(event("FranchiseCreated"), event("BranchAdded")), 1, List.empty());
+        EventStoreFactory.appendEvents(aggregateId, List.of(event("FranchiseNameUpdated")), 3, List.empty());
+
+        List<Map<String, Object>> events = EventStoreFactory.fetchEventsFromDynamo().apply(aggregateId);
+        assertEquals(List.of("FranchiseCreated", "BranchAdded", "FranchiseNameUpdated"), events.map(event -> event.get("type").get()));
+        assertEquals(3, EventStoreFactory.getMaxVersionForAggregate(aggregateId));
+    }
+
+    // Dos escritores que replayaron la misma versión: el segundo pierde por la condición attribute_not_exists(version)
+    @Test
+    void writeAtAnOccupiedVersionIsAStaleWrite() {
+        String aggregateId = UUID.randomUUID().toString();
+        EventStoreFactory.appendEvents(aggregateId, List.of(event("FranchiseCreated")), 1, List.empty());
+
+        DynamoDbException error = assertThrows(DynamoDbException.class,
+            () -> EventStoreFactory.appendEvents(aggregateId, List.of(event("BranchAdded")), 1, List.empty()));
+        assertTrue(ReadConsistency.isStaleWrite(error, 1));
+        assertEquals(1, EventStoreFactory.fetchEventsFromDynamo().apply(aggregateId).size());
+    }
+
+    // Una clave de negocio ya tomada por otro agregado cancela la transacción, pero releer no la resolvería
+    @Test
+    void lookupConflictIsNotAStaleWrite() {
+        Map<String, Serializable> created = HashMap.of("type", "FranchiseCreated", "payload", HashMap.of("franchiseId", "STB1", "franchiseName", "Starbucks"));
+        EventStoreFactory.appendEvents(UUID.randomUUID().toString(), List.of(created), 1, List.empty());
+
+        DynamoDbException error = assertThrows(DynamoDbException.class,
+            () -> EventStoreFactory.appendEvents(UUID.randomUUID().toString(), List.of(created), 1, List.empty()));
+        assertFalse(ReadConsistency.isStaleWrite(error, 1));
+    }
+
+    @Test
+    void throttledTransactionsSurfaceAsThrottling() {
+        dynamoDb.throttle("Events", InMemoryDynamoDb.Throttle.probability(1.0));
+        String aggregateId = UUID.randomUUID().toString();
+
+        DynamoDbException error = assertThrows(DynamoDbException.class,
+            () -> EventStoreFactory.appendEvents(aggregateId, List.of(event("FranchiseCreated")), 1, List.empty()));
+        assertTrue(AggregateSharding.isThrottling(error));
+        assertTrue(dynamoDb.throttledRequests() > 0);
+    }
+
+    // El limit corta la página y lastEvaluatedKey permite seguir, hacia adelante o hacia atrás
+    @Test
+    void queriesPaginateInBothDirections() {
+        String aggregateId = UUID.randomUUID().toString();
+        EventStoreFactory.appendEvents(aggregateId, List.range(0, 7).map(i -> event("BranchAdded")), 1, List.empty());
+
+        for (boolean forward : new boolean[]{true, false}) {
+            QueryRequest request = QueryRequest.builder()
+                .tableName("Events")
+                .keyConditionExpression("aggregateId = :aggregateId AND version BETWEEN :from AND :to")
+                .expressionAttributeValues(java.util.Map.of(
+                    ":aggregateId", AttributeValue.builder().s(aggregateId).build(),
+                    ":from", AttributeValue.builder().n("2").build(),
+                    ":to", AttributeValue.builder().n("6").build()))
+                .scanIndexForward(forward)
+                .limit(2)
+                .build();
+            List<QueryResponse> pages = List.ofAll(dynamoDb.sync().queryPaginator(request));
+            List<String> versions = pages.flatMap(page -> List.ofAll(page.items())).map(item -> item.get("version").n());
+            assertEquals(forward ? List.of("2", "3", "4", "5", "6") : List.of("6", "5", "4", "3", "2"), versions);
+            assertEquals(3, pages.size());
+        }
+    }
+
+    // Con la misma semilla la latencia simulada se repite y se suma a cada llamada
+    @Test
+    void injectedLatencyDelaysCalls() {
+        dynamoDb.latency("query", InMemoryDynamoDb.Latency.fixed(Duration.ofMillis(20)));
+        String aggregateId = UUID.randomUUID().toString();
+        EventStoreFactory.appendEvents(aggregateId, List.of(event("FranchiseCreated")), 1, List.empty());
+
+        long started = System.nanoTime();
+        EventStoreFactory.getMaxVersionForAggregate(aggregateId);
+        assertTrue(Duration.ofNanos(System.nanoTime() - started).toMillis() >= 20);
+        assertTrue(dynamoDb.requests("query") >= 1);
+    }
+
+    // Timestamps guardados y consultados con el mismo ancho fijo: un instante entre dos escrituras separa sus versiones
+    @Test
+    void versionAtTimeSeesOnlyEarlierWrites() throws InterruptedException {
+        String aggregateId = UUID.randomUUID().toString();
+        EventStoreFactory.appendEvents(aggregateId, List.of(event("FranchiseCreated")), 1, List.empty());
+        Thread.sleep(2);
+        Instant between = Instant.now();
+        Thread.sleep(2);
+        EventStoreFactory.appendEvents(aggregateId, List.of(event("FranchiseNameUpdated")), 2, List.empty());
+
+        assertEquals(Option.of(1), EventStoreFactory.versionAtTime().apply(aggregateId, between));
+        assertEquals(Option.of(2), EventStoreFactory.versionAtTime().apply(aggregateId, Instant.now()));
+        assertEquals(Option.none(), EventStoreFactory.versionAtTime().apply(aggregateId, between.minusSeconds(60)));
+    }
+
+    // El índice sigue al ledger sin replay, y un agotamiento se reclama una sola vez hasta que el stock vuelve a subir
+    @Test
+    void stockIndexAnswersThresholdsAndClaimsDepletionOnce() {
+        String aggregateId = UUID.randomUUID().toString();
+        EventStoreFactory.appendEvents(aggregateId, List.of(stockEvent("ProductAddedToBranch", HashMap.of("branchId", "B1", "products", HashMap.of(
+            "p1", HashMap.of("productName", "Café", "currentStock", 3),
+            "p2", HashMap.of("productName", "Té", "currentStock", 40))))), 1, List.empty());
+        List<Map<String, Serializable>> depleting = List.of(stockEvent("ProductStockUpdated", HashMap.of("branchId", "B1", "productId", "p1", "quantityChange", -3)));
+        EventStoreFactory.appendEvents(aggregateId, depleting, 2, List.empty());
+
+        List<Map<String, Serializable>> low = EventStoreFactory.stockBetween(BigDecimal.ZERO, BigDecimal.TEN).collectList().map(List::ofAll).block();
+        assertEquals(List.of("p1"), low.filter(product -> aggregateId.equals(product.get("aggregateId").get())).map(product -> product.get("productId").get()));
+
+        assertEquals(1, EventStoreFactory.claimDepleted().apply(aggregateId, depleting).size());
+        assertEquals(0, EventStoreFactory.claimDepleted().apply(aggregateId, depleting).size());
+
+        EventStoreFactory.appendEvents(aggregateId, List.of(stockEvent("ProductStockAdjusted", HashMap.of("branchId", "B1", "productId", "p1", "newStock", 5))), 3, List.empty());
+        EventStoreFactory.appendEvents(aggregateId, List.of(stockEvent("ProductStockUpdated", HashMap.of("branchId", "B1", "productId", "p1", "quantityChange", -5))), 4, List.empty());
+        assertEquals(1, EventStoreFactory.claimDepleted().apply(aggregateId, depleting).size());
+    }
+
+    // La ruta rápida no proyecta el estado: la baja de la sucursal la detiene en la misma transacción, sin tocar el contador
+    @Test
+    void ledgerFastPathRejectsRemovedBranches() {
+        String aggregateId = UUID.randomUUID().toString();
+        EventStoreFactory.appendEvents(aggregateId, List.of(stockEvent("ProductAddedToBranch", HashMap.of("branchId", "B1", "products", HashMap.of(
+            "p1", HashMap.of("productName", "Café", "currentStock", 3))))), 1, List.empty());
+        Map<String, Serializable> update = HashMap.of("aggregateId", aggregateId, "branchId", "B1", "productId", "p1", "quantityChange", 2);
+        assertTrue(EventStoreFactory.updateStockWithLedger().apply(update).isDefined());
+
+        EventStoreFactory.appendEvents(aggregateId, List.of(stockEvent("BranchRemoved", HashMap.of("branchId", "B1"))), 3, List.empty());
+        IllegalStateException error = assertThrows(IllegalStateException.class, () -> EventStoreFactory.updateStockWithLedger().apply(update));
+        assertEquals("La sucursal no existe.", error.getMessage());
+        assertEquals(3, EventStoreFactory.getMaxVersionForAggregate(aggregateId));
+    }
+
+    private static Map<String, Serializable> stockEvent(String type, Map<String, Serializable> payload) {
+        return HashMap.of("type", type, "payload", payload);
+    }
+
+    private static Map<String, Serializable> event(String type) {
+        return HashMap.of("type", type, "payload", HashMap.of("franchiseName", "Starbucks"));
+    }
+}
@@ -0,0 +1,191 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.comands.TypedCommand;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.quicktheories.WithQuickTheories;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static com.nequi.franchises.CommandController.projectState;
+import static com.nequi.franchises.util.Utils.getValue;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Regresiones de escalamiento: el costo (tiempo y bytes asignados) de projectState, decide y getValue se mide en
+// tamaños que se duplican y se ajusta una recta en escala log-log. Pendiente 1 es lineal, 2 es cuadrático.
+// Se toma el mejor de varias repeticiones para filtrar ruido del GC y del planificador. El build solo se bloquea con la
+// pendiente de bytes asignados, que no depende de la carga de la máquina; la de tiempo corre aparte (@Tag("benchmark")).
+public class ProjectionScalingTest implements WithQuickTheories {
+
+    private static final int[] HISTORY_LENGTHS = {5_000, 10_000, 20_000, 40_000};
+    private static final int[] BRANCH_COUNTS = {100, 200, 400, 800};
+    private static final int REPETITIONS = 5;
+    private static final int LOOKUPS = 2_000;
+    private static final double MAX_TIME_SLOPE = 1.35;
+    private static final double MAX_ALLOCATION_SLOPE = 1.15;
+
+    private record Cost(long nanos, long bytes) {}
+
+    @Test
+    void generatedHistoriesProjectToTheExpectedStock() {
+        qt().withExamples(50).forAll(HistoryGenerator.mixedHistories(400)).check(history -> {
+            Map<String, Serializable> state = projectState.apply(HashMap.empty(), history).block();
+            Map<String, Map<String, Serializable>> products = getValue(state, "products", HashMap.empty());
+            return HistoryGenerator.expectedStock(history).entrySet().stream()
+                .allMatch(expected -> expected.getValue().equals(getValue(products.get(expected.getKey()).getOrElse(HashMap.empty()), "currentStock", -1.0)));
+        });
+    }
+
+    // El plegado por sucursal en paralelo produce el mismo estado que el foldLeft secuencial, con barreras incluidas
+    @Test
+    void parallelProjectionMatchesSequentialFold() {
+        qt().withExamples(20).forAll(HistoryGenerator.mixedHistories(20_000)).check(ProjectionScalingTest::matchesSequentialFold);
+    }
+
+    // Barreras justo al cierre de tramos que sí se reparten (3.000 eventos en 8 sucursales, sobre minSegmentEvents):
+    // un traspaso, un cambio de nombre pegado a él y FranchiseRemoved como último evento
+    @Test
+    void barrierAtASegmentBoundaryMatchesSequentialFold() {
+        List<Map<String, Serializable>> history = HistoryGenerator.mixedHistory(4, 6_000, 11L, 0);
+        int boundary = history.size() - 3_000;
+        List<Map<String, Serializable>> withBarriers = HistoryGenerator.versioned(history
+            .insert(boundary, HistoryGenerator.transfer(0, 1, 0, 5))
+            .insert(boundary + 1, HistoryGenerator.branchNameUpdated(2))
+            .append(HistoryGenerator.franchiseRemoved()));
+        assertTrue(matchesSequentialFold(withBarriers));
+    }
+
+    private static boolean matchesSequentialFold(List<Map<String, Serializable>> history) {
+        return ParallelProjection.project(HashMap.empty(), history).block()
+            .equals(history.foldLeft(HashMap.<String, Serializable>empty(), CommandController.projectEvent));
+    }
+
+    @Test
+    void projectionGrowsLinearlyWithHistoryLength() {
+        assertLinear("projectState", HISTORY_LENGTHS, ProjectionScalingTest::projection, false);
+    }
+
+    // Un comando sobre un estado más grande no debe costar más que proporcionalmente por cada decisión
+    @Test
+    void decideGrowsAtMostLinearlyWithStateSize() {
+        assertLinear("decide", BRANCH_COUNTS, decisions(), false);
+    }
+
+    @Test
+    void pathLookupsGrowAtMostLinearlyWithMapSize() {
+        assertLinear("getValue", BRANCH_COUNTS, ProjectionScalingTest::pathLookups, false);
+    }
+
+    @Test
+    @Tag("benchmark")
+    void projectionTimeGrowsLinearlyWithHistoryLength() {
+        assertLinear("projectState", HISTORY_LENGTHS, ProjectionScalingTest::projection, true);
+    }
+
+    @Test
+    @Tag("benchmark")
+    void decideTimeGrowsAtMostLinearlyWithStateSize() {
+        assertLinear("decide", BRANCH_COUNTS, decisions(), true);
+    }
+
+    @Test
+    @Tag("benchmark")
+    void pathLookupTimeGrowsAtMostLinearlyWithMapSize() {
+        assertLinear("getValue", BRANCH_COUNTS, ProjectionScalingTest::pathLookups, true);
+    }
+
+    private static Runnable projection(int length) {
+        List<Map<String, Serializable>> history = HistoryGenerator.history(length, length);
+        return () -> projectState.apply(HashMap.empty(), history).block();
+    }
+
+    private static IntFunction<Runnable> decisions() {
+        CommandController controller = new CommandController();
+        return branches -> {
+            Map<String, Serializable> state = projectState.apply(HashMap.empty(), HistoryGenerator.history(branches, branches * 10, branches)).block();
+            List<TypedCommand> stockCommands = commands(branches, (branch, product) -> HistoryGenerator.stockCommand(branch, product, 1));
+            List<TypedCommand> addBranches = List.range(0, LOOKUPS / 10)
+                .map(i -> new TypedCommand.AddBranch(HistoryGenerator.AGGREGATE_ID, HistoryGenerator.FRANCHISE_ID, HistoryGenerator.branchId(branches + i), "Sucursal nueva"));
+            List<TypedCommand> commands = stockCommands.appendAll(addBranches);
+            return () -> commands.forEach(command -> controller.decide(command, HistoryGenerator.AGGREGATE_ID, state).block());
+        };
+    }
+
+    private static Runnable pathLookups(int branches) {
+        Map<String, Serializable> state = projectState.apply(HashMap.empty(), HistoryGenerator.history(branches, 0, branches)).block();
+        Map<String, Serializable> products = getValue(state, "products", HashMap.empty());
+        List<String> paths = commands(branches, (branch, product) -> HistoryGenerator.productId(product) + "|" + HistoryGenerator.branchId(branch) + ".currentStock");
+        return () -> paths.forEach(path -> getValue(products, path, 0.0));
+    }
+
+    // Los tamaños se duplican: con costo lineal, el costo por elemento no cambia y la pendiente se mantiene cerca de 1
+    private static void assertLinear(String name, int[] sizes, IntFunction<Runnable> workload, boolean time) {
+        Runnable[] work = new Runnable[sizes.length];
+        for (int i = 0; i < sizes.length; i++) work[i] = workload.apply(sizes[i]);
+        // Calentamiento con el tamaño mayor: el JIT compila antes de medir el menor
+        measure(work[sizes.length - 1]);
+
+        double[] nanos = new double[sizes.length];
+        double[] bytes = new double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            Cost cost = measure(work[i]);
+            nanos[i] = cost.nanos();
+            bytes[i] = cost.bytes();
+        }
+        if (time) {
+            double timeSlope = slope(sizes, nanos);
+            assertTrue(timeSlope <= MAX_TIME_SLOPE,
+                "%s crece de forma superlineal en tiempo: pendiente %.2f (máximo %.2f), nanos %s".formatted(name, timeSlope, MAX_TIME_SLOPE, java.util.Arrays.toString(nanos)));
+        } else {
+            double allocationSlope = slope(sizes, bytes);
+            assertTrue(allocationSlope <= MAX_ALLOCATION_SLOPE,
+                "%s crece de forma superlineal en memoria asignada: pendiente %.2f (máximo %.2f), bytes %s".formatted(name, allocationSlope, MAX_ALLOCATION_SLOPE, java.util.Arrays.toString(bytes)));
+        }
+    }
+
+    // La carga se ejecuta de forma síncrona en el hilo actual, así los bytes asignados del hilo son los de la carga
+    private static Cost measure(Runnable work) {
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < REPETITIONS; i++) {
+            long allocatedBefore = allocatedBytes();
+            long started = System.nanoTime();
+            work.run();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - started);
+            bestBytes = Math.min(bestBytes, allocatedBytes() - allocatedBefore);
+        }
+        return new Cost(bestNanos, bestBytes);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    // Mínimos cuadrados sobre (log tamaño, log costo)
+    private static double slope(int[] sizes, double[] costs) {
+        int n = sizes.length;
+        double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+        for (int i = 0; i < n; i++) {
+            double x = Math.log(sizes[i]);
+            double y = Math.log(Math.max(1.0, costs[i]));
+            sumX += x;
+            sumY += y;
+            sumXY += x * y;
+            sumXX += x * x;
+        }
+        return (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+    }
+
+    // Una cantidad fija de consultas por cada sucursal: el trabajo total crece con el número de sucursales
+    private static <T> List<T> commands(int branches, java.util.function.BiFunction<Integer, Integer, T> build) {
+        Random random = new Random(branches);
+        return List.range(0, LOOKUPS * branches / BRANCH_COUNTS[0])
+            .map(i -> build.apply(random.nextInt(branches), random.nextInt(HistoryGenerator.PRODUCTS_PER_BRANCH)));
+    }
+}
@@ -0,0 +1,87 @@
+package com.nequi.franchises;
+
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Tres lecturas independientes de 100, 150 y 200 ms sobre tiempo virtual: en paralelo el grafo termina cuando termina
+// la más lenta, en cadena cuando termina la suma. El orden de inicio de cada etapa muestra qué corrió solapado
+public class StageGraphTest {
+
+    private static final Map<String, Serializable> INPUT = HashMap.of("type", "AddBranch", "aggregateId", "franchise-1");
+
+    @Test
+    void independentStagesRunOnTheCriticalPath() {
+        java.util.Map<String, Long> startedAt = new ConcurrentHashMap<>();
+        StepVerifier.withVirtualTime(() -> reads(StageGraph.named("benchmark.concurrent"), true, startedAt).run(INPUT))
+            .expectSubscription()
+            .expectNoEvent(Duration.ofMillis(199))
+            .thenAwait(Duration.ofMillis(1))
+            .assertNext(StageGraphTest::allStagesDone)
+            .verifyComplete();
+
+        assertEquals(HashMap.of("resolve", 0L, "idempotency", 0L, "fetch", 0L), HashMap.ofAll(startedAt));
+    }
+
+    @Test
+    void dependentStagesRunOneAfterAnother() {
+        java.util.Map<String, Long> startedAt = new ConcurrentHashMap<>();
+        StepVerifier.withVirtualTime(() -> reads(StageGraph.named("benchmark.sequential"), false, startedAt).run(INPUT))
+            .expectSubscription()
+            .expectNoEvent(Duration.ofMillis(449))
+            .thenAwait(Duration.ofMillis(1))
+            .assertNext(StageGraphTest::allStagesDone)
+            .verifyComplete();
+
+        assertEquals(HashMap.of("resolve", 0L, "idempotency", 100L, "fetch", 250L), HashMap.ofAll(startedAt));
+    }
+
+    @Test
+    void aFailingStageCancelsItsSiblings() {
+        AtomicInteger cancelled = new AtomicInteger();
+        StageGraph graph = StageGraph.named("benchmark.failure")
+            .stage("slow", List.of(StageGraph.INPUT), results -> Mono.<Map<String, Serializable>>never().doOnCancel(cancelled::incrementAndGet))
+            .stage("failing", List.of(StageGraph.INPUT), results -> Mono.error(new IllegalStateException("falla")));
+
+        assertThrows(IllegalStateException.class, () -> graph.run(INPUT).block(Duration.ofSeconds(1)));
+        assertEquals(1, cancelled.get());
+    }
+
+    @Test
+    void dependenciesMustBeDeclaredFirst() {
+        assertThrows(IllegalArgumentException.class, () -> StageGraph.named("benchmark.invalid")
+            .stage("fetch", List.of("validate"), StageGraph.using("validate", Mono::just)));
+    }
+
+    private static StageGraph reads(StageGraph graph, boolean concurrent, java.util.Map<String, Long> startedAt) {
+        return graph
+            .stage("resolve", List.of(StageGraph.INPUT), StageGraph.using(StageGraph.INPUT, delayed("resolve", 100, startedAt)))
+            .stage("idempotency", List.of(concurrent ? StageGraph.INPUT : "resolve"), StageGraph.using(StageGraph.INPUT, delayed("idempotency", 150, startedAt)))
+            .stage("fetch", List.of(concurrent ? StageGraph.INPUT : "idempotency"), StageGraph.using(StageGraph.INPUT, delayed("fetch", 200, startedAt)));
+    }
+
+    // Registra el instante virtual en que arranca la etapa
+    private static java.util.function.Function<Map<String, Serializable>, Mono<Map<String, Serializable>>> delayed(String stage, long millis, java.util.Map<String, Long> startedAt) {
+        return input -> Mono.defer(() -> {
+            startedAt.put(stage, VirtualTimeScheduler.get().now(TimeUnit.MILLISECONDS));
+            return Mono.just(input).delayElement(Duration.ofMillis(millis));
+        });
+    }
+
+    private static void allStagesDone(Map<String, Map<String, Serializable>> results) {
+        assertEquals(List.of("fetch", "idempotency", "input", "resolve"), results.keySet().toList().sorted());
+    }
+}
@@ -0,0 +1,63 @@
+package com.nequi.franchises;
+
+import com.nequi.franchises.IO.EventStoreFactory;
+import com.nequi.franchises.IO.InMemoryDynamoDb;
+import com.nequi.franchises.comands.TypedCommand;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.List;
+import io.vavr.collection.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.ResponseEntity;
+
+import java.io.Serializable;
+import java.time.Duration;
+
+import static com.nequi.franchises.util.Utils.getValue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// De punta a punta contra el DynamoDB en memoria: el UpdateProductStock que deja un producto en cero termina en un
+// NotifyStockDepleted guardado en el agregado, despachado por el mismo pipeline después de responder
+public class StockDepletionTest {
+
+    private static final String FRANCHISE_ID = "STB123";
+    private static final String BRANCH_ID = "B1";
+    private static final String PRODUCT_ID = "P1";
+
+    private CommandController controller;
+
+    @BeforeEach
+    void useInMemoryDynamoDb() {
+        InMemoryDynamoDb dynamoDb = InMemoryDynamoDb.eventStore(7);
+        EventStoreFactory.useClients(dynamoDb.sync(), dynamoDb.async());
+        controller = new CommandController();
+    }
+
+    @Test
+    void depletingUpdateStoresANotification() throws InterruptedException {
+        Map<String, Serializable> created = send(new TypedCommand.CreateFranchise(null, FRANCHISE_ID, "Starbucks"));
+        String aggregateId = getValue(getValue(created, "events", List.<Map<String, Serializable>>empty()).head(), "aggregateId", "");
+        send(new TypedCommand.AddBranch(aggregateId, FRANCHISE_ID, BRANCH_ID, "Centro"));
+        send(new TypedCommand.AddProductToBranch(aggregateId, FRANCHISE_ID, BRANCH_ID,
+            HashMap.<String, Map<String, Serializable>>of(PRODUCT_ID, HashMap.of("productName", "Café", "currentStock", 3))));
+
+        send(new TypedCommand.UpdateProductStock(aggregateId, FRANCHISE_ID, BRANCH_ID, PRODUCT_ID, -3));
+
+        List<Map<String, Object>> notifications = List.empty();
+        for (long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos(); notifications.isEmpty() && System.nanoTime() < deadline; Thread.sleep(50)) {
+            notifications = EventStoreFactory.fetchEventsFromDynamo().apply(aggregateId)
+                .filter(event -> "NotifyStockDepleted".equals(event.get("type").getOrNull()));
+        }
+        assertEquals(1, notifications.size());
+        Map<String, Serializable> payload = getValue(notifications.head(), "payload", HashMap.empty());
+        assertEquals(List.of(FRANCHISE_ID, BRANCH_ID, PRODUCT_ID),
+            List.of(getValue(payload, "franchiseId", ""), getValue(payload, "branchId", ""), getValue(payload, "productId", "")));
+    }
+
+    private Map<String, Serializable> send(TypedCommand command) {
+        ResponseEntity<Map<String, Serializable>> response = controller.handleCommand(command, null, null).block();
+        assertTrue(response.getStatusCode().is2xxSuccessful(), command.type() + ": " + response.getBody());
+        return response.getBody();
+    }
+}